@@ -0,0 +1,134 @@
+package com.example.bench;
+
+import com.example.domain.ChatSummary;
+import com.example.domain.Message;
+import com.example.mapper.ChatSummaryMapper;
+import com.example.mapper.MessageMapper;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * 基准测试用的本地桩：向量和回复都由输入确定性地生成，不访问网络和数据库
+ */
+final class BenchStubs {
+    private static final String[] WORDS = {
+            "检索", "向量", "文档", "索引", "片段", "模型", "上下文", "问题", "回答", "知识库",
+            "retrieval", "embedding", "document", "index", "segment", "model", "context", "query", "answer", "vector"
+    };
+
+    private BenchStubs() {
+    }
+
+    /**
+     * 单位长度的随机向量，同一 seed 总是得到同一向量
+     */
+    static float[] vector(long seed, int dim) {
+        SplittableRandom random = new SplittableRandom(seed);
+        float[] v = new float[dim];
+        double norm = 0;
+        for (int i = 0; i < dim; i++) {
+            v[i] = (float) (random.nextDouble() * 2 - 1);
+            norm += v[i] * v[i];
+        }
+        float scale = (float) (1 / Math.sqrt(norm));
+        for (int i = 0; i < dim; i++) {
+            v[i] *= scale;
+        }
+        return v;
+    }
+
+    /**
+     * 由若干段落组成的合成文本，段落之间用空行分隔
+     */
+    static String text(long seed, int chars) {
+        SplittableRandom random = new SplittableRandom(seed);
+        StringBuilder sb = new StringBuilder(chars + 64);
+        while (sb.length() < chars) {
+            int words = 40 + random.nextInt(120);
+            for (int i = 0; i < words; i++) {
+                sb.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(8) == 0 ? "。" : " ");
+            }
+            sb.append("\n\n");
+        }
+        sb.setLength(chars);
+        return sb.toString();
+    }
+
+    /**
+     * 按文本哈希生成向量的 embedding 模型
+     */
+    static final class StubEmbeddingModel implements EmbeddingModel {
+        private final int dim;
+
+        StubEmbeddingModel(int dim) {
+            this.dim = dim;
+        }
+
+        @Override
+        public Response<List<Embedding>> embedAll(List<TextSegment> segments) {
+            List<Embedding> embeddings = new ArrayList<>(segments.size());
+            for (TextSegment segment : segments) {
+                embeddings.add(Embedding.from(vector(segment.text().hashCode(), dim)));
+            }
+            return Response.from(embeddings);
+        }
+
+        @Override
+        public int dimension() {
+            return dim;
+        }
+    }
+
+    /**
+     * 总是返回固定回答的对话模型
+     */
+    static final class StubChatModel implements ChatLanguageModel {
+        @Override
+        public Response<AiMessage> generate(List<ChatMessage> messages) {
+            return Response.from(AiMessage.from("ok"));
+        }
+    }
+
+    /**
+     * 每个会话都返回同一段历史（最近 messages.size() 条，按 id 升序）
+     */
+    static MessageMapper messageMapper(List<Message> messages) {
+        return (MessageMapper) Proxy.newProxyInstance(MessageMapper.class.getClassLoader(),
+                new Class<?>[]{MessageMapper.class}, (proxy, method, args) -> switch (method.getName()) {
+                    case "listByChat" -> {
+                        int limit = (int) args[2];
+                        yield messages.subList(Math.max(0, messages.size() - limit), messages.size());
+                    }
+                    case "listBetween" -> List.of();
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    case "toString" -> "StubMessageMapper";
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    /**
+     * 每个会话都返回同一份摘要
+     */
+    static ChatSummaryMapper summaryMapper(ChatSummary summary) {
+        return (ChatSummaryMapper) Proxy.newProxyInstance(ChatSummaryMapper.class.getClassLoader(),
+                new Class<?>[]{ChatSummaryMapper.class}, (proxy, method, args) -> switch (method.getName()) {
+                    case "findByChat" -> summary;
+                    case "upsert" -> 1;
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    case "toString" -> "StubChatSummaryMapper";
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
+}
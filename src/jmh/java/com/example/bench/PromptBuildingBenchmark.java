@@ -0,0 +1,141 @@
+package com.example.bench;
+
+import com.example.domain.ChatSummary;
+import com.example.domain.Message;
+import com.example.service.ContextAssembler;
+import com.example.service.QueryEmbeddingCache;
+import com.example.service.RagService;
+import com.example.service.RetrievalResult;
+import com.example.service.SemanticAnswerCache;
+import com.example.store.Bm25Index;
+import com.example.tracing.Spans;
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.store.embedding.inmemory.InMemoryEmbeddingStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一轮对话在调用模型之前的热路径：检索并构建系统提示词（{@link RagService#retrieve}），
+ * 以及把会话历史按 token 预算转换为 ChatMessage 列表（{@link ContextAssembler#assemble}）
+ * <p>
+ * embedding 模型和对话模型使用确定性的本地桩，会话历史和摘要由内存中的 mapper 桩提供。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PromptBuildingBenchmark {
+    private static final int DIM = 384;
+    private static final int QUERIES = 1024;
+    private static final String MODEL = "gpt-4o-mini";
+
+    @Param({"10000"})
+    int segments;
+
+    @Param({"40"})
+    int historyMessages;
+
+    /**
+     * 问题向量缓存大小；0 表示每次都调用 embedding 桩，大于 QUERIES 时全部命中
+     */
+    @Param({"0", "10000"})
+    int queryCacheSize;
+
+    /**
+     * 是否开启 BM25 + 向量的混合检索
+     */
+    @Param({"false", "true"})
+    boolean hybrid;
+
+    private RagService ragService;
+    private ContextAssembler contextAssembler;
+    private String[] queries;
+    private RetrievalResult retrieval;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        EmbeddingModel embeddingModel = new BenchStubs.StubEmbeddingModel(DIM);
+        InMemoryEmbeddingStore<TextSegment> store = new InMemoryEmbeddingStore<>();
+        List<Embedding> embeddings = new ArrayList<>(segments);
+        List<TextSegment> chunks = new ArrayList<>(segments);
+        for (int i = 0; i < segments; i++) {
+            embeddings.add(Embedding.from(BenchStubs.vector(i, DIM)));
+            chunks.add(TextSegment.from(BenchStubs.text(i, 900), new Metadata().put("source", "doc-" + (i % 200) + ".pdf")));
+        }
+        List<String> ids = store.addAll(embeddings, chunks);
+        Bm25Index lexicalIndex = new Bm25Index(1.2, 0.75);
+        if (hybrid) {
+            lexicalIndex.addAll(ids, chunks);
+        }
+
+        List<Message> history = new ArrayList<>(historyMessages);
+        for (int i = 0; i < historyMessages; i++) {
+            Message msg = new Message();
+            msg.setId(1000L + i);
+            msg.setChatId(1L);
+            msg.setRole(i % 2 == 0 ? "user" : "assistant");
+            msg.setContent(BenchStubs.text(-i, i % 2 == 0 ? 120 : 600));
+            history.add(msg);
+        }
+        ChatSummary summary = new ChatSummary();
+        summary.setChatId(1L);
+        summary.setSummary(BenchStubs.text(42, 800));
+        summary.setCoveredUntilId(999L);
+
+        // summarize-after 设为最大值，基准中不触发后台摘要
+        contextAssembler = new ContextAssembler(new BenchStubs.StubChatModel(),
+                BenchStubs.messageMapper(history), BenchStubs.summaryMapper(summary), registry, MODEL,
+                6000, 3000, 2000, 400, 8, historyMessages, Integer.MAX_VALUE);
+        QueryEmbeddingCache queryCache = new QueryEmbeddingCache(embeddingModel, registry, queryCacheSize, 60);
+        SemanticAnswerCache answerCache = new SemanticAnswerCache(registry, false, 0.95, 0, 0);
+        ragService = new RagService(new BenchStubs.StubChatModel(), null, embeddingModel, store,
+                queryCache, answerCache, contextAssembler, lexicalIndex, registry, Spans.noop(), 16,
+                hybrid, 60, 2000, 30000, 4, 64);
+
+        queries = new String[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            queries[i] = "问题 " + i + " " + BenchStubs.text(10_000 + i, 60);
+        }
+        retrieval = ragService.retrieve(queries[0]);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        contextAssembler.shutdown();
+        ragService.shutdown();
+    }
+
+    @Benchmark
+    public RetrievalResult retrieve() {
+        return ragService.retrieve(queries[next++ & (QUERIES - 1)]);
+    }
+
+    @Benchmark
+    public List<ChatMessage> assembleHistory() {
+        return contextAssembler.assemble(1L, retrieval);
+    }
+}
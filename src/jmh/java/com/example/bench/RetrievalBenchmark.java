@@ -0,0 +1,107 @@
+package com.example.bench;
+
+import com.example.store.HnswEmbeddingStore;
+import com.example.store.MappedEmbeddingStore;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.inmemory.InMemoryEmbeddingStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 向量库 top-k 检索：合成向量，规模 10k / 100k / 1M
+ * <p>
+ * storeType 可选 memory（langchain4j 的 InMemoryEmbeddingStore）、mapped（持久化精确检索）、
+ * hnsw（mapped 之上的近似索引，1M 规模建图较慢，需要时用 -p storeType=hnsw 单独运行）。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms4g", "-Xmx8g"})
+public class RetrievalBenchmark {
+    private static final int QUERIES = 256;
+    private static final int LOAD_BATCH = 10_000;
+
+    @Param({"10000", "100000", "1000000"})
+    int size;
+
+    // 1M × 1536 维约需 6GB，默认用较小维度；与线上一致的维度用 -p dim=1536 并调大 -Xmx
+    @Param({"384"})
+    int dim;
+
+    @Param({"memory", "mapped"})
+    String storeType;
+
+    @Param({"8"})
+    int topK;
+
+    private EmbeddingStore<TextSegment> store;
+    private Path dir;
+    private Embedding[] queries;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        store = switch (storeType) {
+            case "memory" -> new InMemoryEmbeddingStore<>();
+            case "mapped" -> MappedEmbeddingStore.open(dir = Files.createTempDirectory("bench-mapped"));
+            case "hnsw" -> HnswEmbeddingStore.open(MappedEmbeddingStore.open(dir = Files.createTempDirectory("bench-hnsw")),
+                    16, 200, 64, 0);
+            default -> throw new IllegalArgumentException("Unknown store type: " + storeType);
+        };
+        for (int from = 0; from < size; from += LOAD_BATCH) {
+            int end = Math.min(size, from + LOAD_BATCH);
+            List<Embedding> embeddings = new ArrayList<>(end - from);
+            List<TextSegment> segments = new ArrayList<>(end - from);
+            for (int i = from; i < end; i++) {
+                embeddings.add(Embedding.from(BenchStubs.vector(i, dim)));
+                segments.add(TextSegment.from("segment " + i));
+            }
+            store.addAll(embeddings, segments);
+        }
+        queries = new Embedding[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            queries[i] = Embedding.from(BenchStubs.vector(-1 - i, dim));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (store instanceof Closeable closeable) {
+            closeable.close();
+        }
+        if (dir != null) {
+            FileSystemUtils.deleteRecursively(dir);
+        }
+    }
+
+    @Benchmark
+    public List<EmbeddingMatch<TextSegment>> findRelevant() {
+        Embedding query = queries[next++ & (QUERIES - 1)];
+        return store.findRelevant(query, topK);
+    }
+}
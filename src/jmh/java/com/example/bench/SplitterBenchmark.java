@@ -0,0 +1,63 @@
+package com.example.bench;
+
+import com.example.service.StreamingSplitter;
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.DocumentSplitter;
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.document.splitter.DocumentSplitters;
+import dev.langchain4j.data.segment.TextSegment;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 文档分割：整篇交给 DocumentSplitters.recursive(1000, 100)，
+ * 与索引流水线实际使用的 {@link StreamingSplitter}（按 16K 字符一段喂入）对比
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SplitterBenchmark {
+    private static final int FEED_CHARS = 16 * 1024;
+
+    @Param({"100000", "1000000"})
+    int docChars;
+
+    private String text;
+    private final DocumentSplitter splitter = DocumentSplitters.recursive(1000, 100);
+
+    @Setup(Level.Trial)
+    public void setup() {
+        text = BenchStubs.text(7, docChars);
+    }
+
+    @Benchmark
+    public List<TextSegment> recursive() {
+        return splitter.split(Document.from(text, new Metadata().put("source", "bench.txt")));
+    }
+
+    @Benchmark
+    public int streaming(Blackhole bh) {
+        StreamingSplitter streaming = new StreamingSplitter(new Metadata().put("source", "bench.txt"), bh::consume);
+        for (int from = 0; from < text.length(); from += FEED_CHARS) {
+            streaming.append(text.substring(from, Math.min(text.length(), from + FEED_CHARS)));
+        }
+        return streaming.finish();
+    }
+}
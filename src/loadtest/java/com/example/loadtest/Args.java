@@ -0,0 +1,54 @@
+package com.example.loadtest;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * "--key value" 形式的命令行参数
+ */
+final class Args {
+    private final Map<String, String> values;
+
+    private Args(Map<String, String> values) {
+        this.values = values;
+    }
+
+    static Args parse(String[] argv) {
+        Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < argv.length; i++) {
+            String arg = argv[i];
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("unexpected argument: " + arg);
+            }
+            String key = arg.substring(2);
+            int eq = key.indexOf('=');
+            if (eq >= 0) {
+                values.put(key.substring(0, eq), key.substring(eq + 1));
+            } else if (i + 1 < argv.length && !argv[i + 1].startsWith("--")) {
+                values.put(key, argv[++i]);
+            } else {
+                values.put(key, "true");
+            }
+        }
+        return new Args(values);
+    }
+
+    String string(String key, String defaultValue) {
+        return values.getOrDefault(key, defaultValue);
+    }
+
+    int intValue(String key, int defaultValue) {
+        String v = values.get(key);
+        return v == null ? defaultValue : Integer.parseInt(v);
+    }
+
+    long longValue(String key, long defaultValue) {
+        String v = values.get(key);
+        return v == null ? defaultValue : Long.parseLong(v);
+    }
+
+    double doubleValue(String key, double defaultValue) {
+        String v = values.get(key);
+        return v == null ? defaultValue : Double.parseDouble(v);
+    }
+}
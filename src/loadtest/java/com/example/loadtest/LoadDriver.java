@@ -0,0 +1,394 @@
+package com.example.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * 压测驱动：N 个虚拟用户各自注册、登录、创建会话，然后在持续时间内按权重循环执行 /send、/stream 和上传，
+ * 结束后输出各操作的吞吐和延迟分位数
+ * <pre>
+ * --target http://localhost:8080  被测服务
+ * --users 20                      并发虚拟用户数
+ * --duration 60                   持续秒数（不含准备阶段）
+ * --ramp-up 5                     在这段秒数内逐个启动虚拟用户
+ * --mix send=4,stream=4,upload=1  各操作的权重，权重为 0 的操作不执行
+ * --think-ms 0                    两次操作之间的间隔
+ * --upload-kb 64                  上传文本文件的大小
+ * --report target/loadtest/report.md  报告另存一份（Markdown），不填只打印
+ * </pre>
+ * 上传需要管理员，mix 中 upload 权重大于 0 时虚拟用户以管理员身份注册。
+ */
+public class LoadDriver {
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final String[] WORDS = {
+            "检索", "向量", "文档", "索引", "片段", "模型", "上下文", "问题", "回答", "知识库",
+            "retrieval", "embedding", "document", "index", "segment", "model", "context", "query", "answer", "vector"
+    };
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(120);
+
+    private final String target;
+    private final int users;
+    private final long durationMs;
+    private final long rampUpMs;
+    private final Map<String, Integer> mix;
+    private final long thinkMs;
+    private final int uploadBytes;
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+    private final HttpClient http = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+    private final Map<String, OpStats> stats = new ConcurrentHashMap<>();
+
+    public LoadDriver(String target, int users, long durationMs, long rampUpMs, Map<String, Integer> mix,
+                      long thinkMs, int uploadBytes) {
+        this.target = target.endsWith("/") ? target.substring(0, target.length() - 1) : target;
+        this.users = Math.max(1, users);
+        this.durationMs = durationMs;
+        this.rampUpMs = rampUpMs;
+        this.mix = mix;
+        this.thinkMs = thinkMs;
+        this.uploadBytes = uploadBytes;
+    }
+
+    public static void main(String[] argv) throws Exception {
+        Args args = Args.parse(argv);
+        LoadDriver driver = new LoadDriver(
+                args.string("target", "http://localhost:8080"),
+                args.intValue("users", 20),
+                TimeUnit.SECONDS.toMillis(args.longValue("duration", 60)),
+                TimeUnit.SECONDS.toMillis(args.longValue("ramp-up", 5)),
+                parseMix(args.string("mix", "send=4,stream=4,upload=1")),
+                args.longValue("think-ms", 0),
+                args.intValue("upload-kb", 64) * 1024);
+        String report = driver.run();
+        System.out.println(report);
+        String reportFile = args.string("report", null);
+        if (reportFile != null) {
+            Path path = Paths.get(reportFile);
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            Files.writeString(path, report);
+            System.out.println("[LoadDriver] report written to " + path.toAbsolutePath());
+        }
+    }
+
+    static Map<String, Integer> parseMix(String spec) {
+        Map<String, Integer> mix = new LinkedHashMap<>();
+        for (String part : spec.split(",")) {
+            String[] kv = part.trim().split("=");
+            if (kv.length != 2 || !List.of("send", "stream", "upload").contains(kv[0])) {
+                throw new IllegalArgumentException("bad mix entry: " + part);
+            }
+            mix.put(kv[0], Integer.parseInt(kv[1]));
+        }
+        return mix;
+    }
+
+    /**
+     * 执行压测并返回 Markdown 报告
+     */
+    public String run() throws InterruptedException {
+        System.out.printf("[LoadDriver] target=%s, users=%d, durationMs=%d, rampUpMs=%d, mix=%s%n",
+                target, users, durationMs, rampUpMs, mix);
+        long start = System.currentTimeMillis();
+        long deadline = start + rampUpMs + durationMs;
+        List<Thread> threads = new ArrayList<>(users);
+        for (int i = 0; i < users; i++) {
+            int id = i;
+            Thread t = new Thread(() -> virtualUser(id, deadline), "vu-" + i);
+            threads.add(t);
+            t.start();
+            if (rampUpMs > 0 && i < users - 1) {
+                Thread.sleep(rampUpMs / users);
+            }
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        return report(System.currentTimeMillis() - start);
+    }
+
+    private void virtualUser(int id, long deadline) {
+        SplittableRandom random = new SplittableRandom(runId.hashCode() * 31L + id);
+        String username = "lt-" + runId + "-" + id;
+        String password = "loadtest-" + id;
+        String token;
+        long chatId;
+        try {
+            boolean admin = mix.getOrDefault("upload", 0) > 0;
+            timed("register", () -> postJson("/api/auth/register", null,
+                    Map.of("username", username, "password", password, "isAdmin", admin)));
+            JsonNode login = timed("login", () -> postJson("/api/auth/login", null,
+                    Map.of("username", username, "password", password)));
+            token = login.path("token").asText();
+            JsonNode chat = timed("create_chat", () -> postJson("/api/chat/create", token,
+                    Map.of("title", "load test " + id)));
+            chatId = chat.path("id").asLong();
+        } catch (Exception e) {
+            System.err.printf("[LoadDriver] vu-%d setup failed: %s%n", id, e.getMessage());
+            return;
+        }
+
+        int total = mix.values().stream().mapToInt(Integer::intValue).sum();
+        while (System.currentTimeMillis() < deadline && total > 0) {
+            String op = pick(random, total);
+            try {
+                switch (op) {
+                    case "send" -> timed("send", () -> postJson("/api/chat/" + chatId + "/send", token,
+                            Map.of("content", question(random))));
+                    case "stream" -> stream(chatId, token, question(random));
+                    case "upload" -> timed("upload", () -> upload(token, random));
+                    default -> throw new IllegalStateException(op);
+                }
+            } catch (Exception e) {
+                // 已在 timed 中计为失败
+            }
+            if (thinkMs > 0) {
+                try {
+                    Thread.sleep(thinkMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private String pick(SplittableRandom random, int total) {
+        int r = random.nextInt(total);
+        for (Map.Entry<String, Integer> e : mix.entrySet()) {
+            r -= e.getValue();
+            if (r < 0) {
+                return e.getKey();
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    /**
+     * 流式请求单独记录首个 token 事件的到达时间（stream.first_token）和整个流的耗时（stream）
+     */
+    private void stream(long chatId, String token, String question) throws Exception {
+        long t0 = System.nanoTime();
+        HttpRequest request = request("/api/chat/" + chatId + "/stream", token)
+                .header("Content-Type", "application/json")
+                .header("Accept", "text/event-stream")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(JSON.writeValueAsBytes(Map.of("content", question))))
+                .build();
+        try {
+            HttpResponse<Stream<String>> response = http.send(request, HttpResponse.BodyHandlers.ofLines());
+            if (response.statusCode() != 200) {
+                response.body().close();
+                throw new IOException("HTTP " + response.statusCode());
+            }
+            boolean first = true;
+            boolean done = false;
+            try (Stream<String> lines = response.body()) {
+                Iterator<String> it = lines.iterator();
+                while (it.hasNext()) {
+                    String line = it.next();
+                    if (!line.startsWith("event:")) {
+                        continue;
+                    }
+                    String event = line.substring("event:".length()).trim();
+                    if (first && "token".equals(event)) {
+                        first = false;
+                        stats("stream.first_token").success(System.nanoTime() - t0);
+                    } else if ("done".equals(event)) {
+                        done = true;
+                    }
+                }
+            }
+            if (!done) {
+                throw new IOException("stream ended without done event");
+            }
+            stats("stream").success(System.nanoTime() - t0);
+        } catch (Exception e) {
+            stats("stream").failure(e);
+            throw e;
+        }
+    }
+
+    private JsonNode upload(String token, SplittableRandom random) throws Exception {
+        String boundary = "----loadtest" + Long.toHexString(random.nextLong());
+        String name = "loadtest-" + runId + "-" + Long.toHexString(random.nextLong()) + ".txt";
+        StringBuilder text = new StringBuilder(uploadBytes);
+        while (text.length() < uploadBytes) {
+            text.append(question(random)).append(random.nextInt(8) == 0 ? "\n\n" : " ");
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream(uploadBytes * 3 + 512);
+        body.writeBytes(("--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"title\"\r\n\r\n"
+                + name + "\r\n"
+                + "--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"" + name + "\"\r\n"
+                + "Content-Type: text/plain\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        body.writeBytes(text.toString().getBytes(StandardCharsets.UTF_8));
+        body.writeBytes(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        HttpRequest request = request("/api/docs/upload", token)
+                .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body.toByteArray()))
+                .build();
+        return send(request);
+    }
+
+    private JsonNode postJson(String path, String token, Object payload) throws Exception {
+        HttpRequest request = request(path, token)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(JSON.writeValueAsBytes(payload)))
+                .build();
+        return send(request);
+    }
+
+    private HttpRequest.Builder request(String path, String token) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(target + path)).timeout(REQUEST_TIMEOUT);
+        if (token != null) {
+            builder.header("Authorization", "Bearer " + token);
+        }
+        return builder;
+    }
+
+    private JsonNode send(HttpRequest request) throws Exception {
+        HttpResponse<byte[]> response = http.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException("HTTP " + response.statusCode());
+        }
+        byte[] body = response.body();
+        return body.length == 0 ? JSON.nullNode() : JSON.readTree(body);
+    }
+
+    private static String question(SplittableRandom random) {
+        StringBuilder sb = new StringBuilder();
+        int n = 4 + random.nextInt(12);
+        for (int i = 0; i < n; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return sb.append('?').toString();
+    }
+
+    @FunctionalInterface
+    private interface Call<T> {
+        T call() throws Exception;
+    }
+
+    private <T> T timed(String op, Call<T> call) throws Exception {
+        long t0 = System.nanoTime();
+        try {
+            T result = call.call();
+            stats(op).success(System.nanoTime() - t0);
+            return result;
+        } catch (Exception e) {
+            stats(op).failure(e);
+            throw e;
+        }
+    }
+
+    private OpStats stats(String op) {
+        return stats.computeIfAbsent(op, k -> new OpStats());
+    }
+
+    private String report(long elapsedMs) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("## Load test report%n%n"));
+        sb.append(String.format("target=%s, users=%d, duration=%ds (ramp-up %ds), mix=%s, elapsed=%.1fs%n%n",
+                target, users, durationMs / 1000, rampUpMs / 1000, mix, elapsedMs / 1000.0));
+        sb.append(String.format("| %-18s | %7s | %6s | %8s | %9s | %9s | %9s | %9s | %9s |%n",
+                "operation", "ok", "failed", "req/s", "mean ms", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+        sb.append(String.format("|%s|%s|%s|%s|%s|%s|%s|%s|%s|%n",
+                "-".repeat(20), "-".repeat(9), "-".repeat(8), "-".repeat(10), "-".repeat(11),
+                "-".repeat(11), "-".repeat(11), "-".repeat(11), "-".repeat(11)));
+        List<String> errors = new ArrayList<>();
+        for (String op : List.of("register", "login", "create_chat", "send", "stream", "stream.first_token", "upload")) {
+            OpStats s = stats.get(op);
+            if (s == null) {
+                continue;
+            }
+            sb.append(s.row(op, elapsedMs));
+            s.errors.forEach((msg, count) -> errors.add(String.format("- %s: %s × %d", op, msg, count)));
+        }
+        if (!errors.isEmpty()) {
+            sb.append(String.format("%nFailures:%n"));
+            errors.forEach(e -> sb.append(e).append(System.lineSeparator()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 单个操作的耗时样本和失败原因
+     */
+    private static final class OpStats {
+        private long[] samples = new long[1024];
+        private int count;
+        private long failed;
+        private final Map<String, Long> errors = new LinkedHashMap<>();
+
+        synchronized void success(long nanos) {
+            if (count == samples.length) {
+                long[] grown = new long[samples.length * 2];
+                System.arraycopy(samples, 0, grown, 0, count);
+                samples = grown;
+            }
+            samples[count++] = nanos;
+        }
+
+        synchronized void failure(Exception e) {
+            failed++;
+            String msg = e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+            errors.merge(msg, 1L, Long::sum);
+        }
+
+        synchronized String row(String op, long elapsedMs) {
+            long[] sorted = new long[count];
+            System.arraycopy(samples, 0, sorted, 0, count);
+            Arrays.sort(sorted);
+            double mean = 0;
+            for (long v : sorted) {
+                mean += v;
+            }
+            mean = count == 0 ? 0 : mean / count;
+            return String.format("| %-18s | %7d | %6d | %8.2f | %9.1f | %9.1f | %9.1f | %9.1f | %9.1f |%n",
+                    op, count, failed, count * 1000.0 / Math.max(1, elapsedMs),
+                    millis(mean), millis(percentile(sorted, 0.50)), millis(percentile(sorted, 0.90)),
+                    millis(percentile(sorted, 0.99)), millis(count == 0 ? 0 : sorted[count - 1]));
+        }
+
+        private static double percentile(long[] sorted, double p) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int idx = (int) Math.ceil(p * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, idx))];
+        }
+
+        private static double millis(double nanos) {
+            return nanos / 1_000_000.0;
+        }
+    }
+}
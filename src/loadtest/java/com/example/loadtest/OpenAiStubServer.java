@@ -0,0 +1,276 @@
+package com.example.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 本地 OpenAI 兼容桩服务，压测时代替 api.openai.com
+ * <p>
+ * 支持 /v1/chat/completions（普通和 stream=true 的 SSE）和 /v1/embeddings。
+ * 回复和向量由请求内容确定性地生成；首 token 延迟、token 速率、回复长度和向量化延迟可配置。
+ * <pre>
+ * --port 18080            监听端口
+ * --first-token-ms 300    收到请求到第一个 token 的延迟
+ * --tokens-per-second 50  流式输出速率，0 表示不限速
+ * --completion-tokens 200 每个回复的 token 数
+ * --embedding-ms 20       每个向量化请求的延迟
+ * --dimension 1536        向量维度，需与 app.rag.embedding-model 的维度一致
+ * </pre>
+ */
+public class OpenAiStubServer {
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final String[] WORDS = {
+            "检索", "向量", "文档", "索引", "片段", "模型", "上下文", "问题", "回答", "知识库",
+            "retrieval", "embedding", "document", "index", "segment", "model", "context", "query", "answer", "vector"
+    };
+
+    private final int port;
+    private final long firstTokenMs;
+    private final double tokensPerSecond;
+    private final int completionTokens;
+    private final long embeddingMs;
+    private final int dimension;
+    private final AtomicLong ids = new AtomicLong();
+    private final AtomicLong chatRequests = new AtomicLong();
+    private final AtomicLong embeddingRequests = new AtomicLong();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public OpenAiStubServer(int port, long firstTokenMs, double tokensPerSecond, int completionTokens,
+                            long embeddingMs, int dimension) {
+        this.port = port;
+        this.firstTokenMs = firstTokenMs;
+        this.tokensPerSecond = tokensPerSecond;
+        this.completionTokens = Math.max(1, completionTokens);
+        this.embeddingMs = embeddingMs;
+        this.dimension = dimension;
+    }
+
+    public static void main(String[] argv) throws Exception {
+        Args args = Args.parse(argv);
+        OpenAiStubServer stub = new OpenAiStubServer(
+                args.intValue("port", 18080),
+                args.longValue("first-token-ms", 300),
+                args.doubleValue("tokens-per-second", 50),
+                args.intValue("completion-tokens", 200),
+                args.longValue("embedding-ms", 20),
+                args.intValue("dimension", 1536));
+        stub.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(stub::stop));
+        Thread.currentThread().join();
+    }
+
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 1024);
+        // 每个连接一个线程：流式回复按 token 速率 sleep，不能占用共享的小线程池
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/v1/chat/completions", this::handleChat);
+        server.createContext("/v1/embeddings", this::handleEmbeddings);
+        server.start();
+        System.out.printf("[OpenAiStubServer] listening on http://localhost:%d/v1, firstTokenMs=%d, tokensPerSecond=%s, "
+                        + "completionTokens=%d, embeddingMs=%d, dimension=%d%n",
+                port, firstTokenMs, tokensPerSecond, completionTokens, embeddingMs, dimension);
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            System.out.printf("[OpenAiStubServer] stopped, chatRequests=%d, embeddingRequests=%d%n",
+                    chatRequests.get(), embeddingRequests.get());
+        }
+    }
+
+    private void handleChat(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            chatRequests.incrementAndGet();
+            JsonNode request = JSON.readTree(exchange.getRequestBody());
+            String model = request.path("model").asText("gpt-4o-mini");
+            String prompt = request.path("messages").toString();
+            int promptTokens = estimateTokens(prompt);
+            List<String> tokens = completion(prompt);
+            sleepMillis(firstTokenMs);
+            if (request.path("stream").asBoolean(false)) {
+                streamChat(exchange, model, tokens);
+            } else {
+                sleepNanos(tokenIntervalNanos() * (tokens.size() - 1));
+                ObjectNode body = chatEnvelope("chat.completion", model);
+                ObjectNode choice = body.putArray("choices").addObject();
+                choice.put("index", 0);
+                choice.putObject("message").put("role", "assistant").put("content", String.join("", tokens));
+                choice.put("finish_reason", "stop");
+                usage(body, promptTokens, tokens.size());
+                sendJson(exchange, body);
+            }
+        } catch (IOException e) {
+            // 客户端取消流式请求时写出失败，属于正常情况
+        }
+    }
+
+    private void streamChat(HttpExchange exchange, String model, List<String> tokens) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        long interval = tokenIntervalNanos();
+        long start = System.nanoTime();
+        for (int i = 0; i < tokens.size(); i++) {
+            if (i > 0 && interval > 0) {
+                // 按开始时间对齐节奏，避免 sleep 误差累积
+                sleepNanos(start + i * interval - System.nanoTime());
+            }
+            ObjectNode chunk = chatEnvelope("chat.completion.chunk", model);
+            ObjectNode choice = chunk.putArray("choices").addObject();
+            choice.put("index", 0);
+            ObjectNode delta = choice.putObject("delta");
+            if (i == 0) {
+                delta.put("role", "assistant");
+            }
+            delta.put("content", tokens.get(i));
+            choice.putNull("finish_reason");
+            writeEvent(out, JSON.writeValueAsString(chunk));
+        }
+        ObjectNode last = chatEnvelope("chat.completion.chunk", model);
+        ObjectNode choice = last.putArray("choices").addObject();
+        choice.put("index", 0);
+        choice.putObject("delta");
+        choice.put("finish_reason", "stop");
+        writeEvent(out, JSON.writeValueAsString(last));
+        writeEvent(out, "[DONE]");
+    }
+
+    private void handleEmbeddings(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            embeddingRequests.incrementAndGet();
+            JsonNode request = JSON.readTree(exchange.getRequestBody());
+            List<String> inputs = new ArrayList<>();
+            JsonNode input = request.path("input");
+            if (input.isArray()) {
+                input.forEach(n -> inputs.add(n.asText()));
+            } else {
+                inputs.add(input.asText());
+            }
+            sleepMillis(embeddingMs);
+            ObjectNode body = JSON.createObjectNode();
+            body.put("object", "list");
+            ArrayNode data = body.putArray("data");
+            int promptTokens = 0;
+            for (int i = 0; i < inputs.size(); i++) {
+                ObjectNode item = data.addObject();
+                item.put("object", "embedding");
+                item.put("index", i);
+                ArrayNode vector = item.putArray("embedding");
+                for (float v : vector(inputs.get(i))) {
+                    vector.add(v);
+                }
+                promptTokens += estimateTokens(inputs.get(i));
+            }
+            body.put("model", request.path("model").asText("text-embedding-3-small"));
+            body.putObject("usage").put("prompt_tokens", promptTokens).put("total_tokens", promptTokens);
+            sendJson(exchange, body);
+        }
+    }
+
+    private ObjectNode chatEnvelope(String object, String model) {
+        ObjectNode node = JSON.createObjectNode();
+        node.put("id", "chatcmpl-stub-" + ids.incrementAndGet());
+        node.put("object", object);
+        node.put("created", System.currentTimeMillis() / 1000);
+        node.put("model", model);
+        return node;
+    }
+
+    private static void usage(ObjectNode body, int promptTokens, int completionTokens) {
+        body.putObject("usage")
+                .put("prompt_tokens", promptTokens)
+                .put("completion_tokens", completionTokens)
+                .put("total_tokens", promptTokens + completionTokens);
+    }
+
+    private List<String> completion(String prompt) {
+        SplittableRandom random = new SplittableRandom(prompt.hashCode());
+        List<String> tokens = new ArrayList<>(completionTokens);
+        for (int i = 0; i < completionTokens; i++) {
+            String word = WORDS[random.nextInt(WORDS.length)];
+            tokens.add(i == 0 ? word : " " + word);
+        }
+        return tokens;
+    }
+
+    /**
+     * 单位长度的向量，同一文本总是得到同一向量
+     */
+    private float[] vector(String text) {
+        SplittableRandom random = new SplittableRandom(text.hashCode());
+        float[] v = new float[dimension];
+        double norm = 0;
+        for (int i = 0; i < dimension; i++) {
+            v[i] = (float) (random.nextDouble() * 2 - 1);
+            norm += v[i] * v[i];
+        }
+        float scale = (float) (1 / Math.sqrt(norm));
+        for (int i = 0; i < dimension; i++) {
+            v[i] *= scale;
+        }
+        return v;
+    }
+
+    private long tokenIntervalNanos() {
+        return tokensPerSecond <= 0 ? 0 : (long) (TimeUnit.SECONDS.toNanos(1) / tokensPerSecond);
+    }
+
+    // 粗略按 4 个字符一个 token 估算
+    private static int estimateTokens(String text) {
+        return Math.max(1, text.length() / 4);
+    }
+
+    private static void writeEvent(OutputStream out, String data) throws IOException {
+        out.write(("data: " + data + "\n\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static void sendJson(HttpExchange exchange, JsonNode body) throws IOException {
+        byte[] bytes = JSON.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    private static void sleepMillis(long millis) {
+        sleepNanos(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    private static void sleepNanos(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        while (nanos > 0) {
+            LockSupport.parkNanos(nanos);
+            nanos = deadline - System.nanoTime();
+        }
+    }
+}
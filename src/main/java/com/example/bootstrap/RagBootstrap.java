@@ -1,6 +1,12 @@
 package com.example.bootstrap;
 
+import com.example.domain.Document;
+import com.example.domain.IndexJob;
+import com.example.mapper.DocumentMapper;
+import com.example.service.IndexJobService;
+import com.example.service.IngestionPipeline;
 import com.example.service.RagService;
+import com.example.store.IndexManifest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
@@ -12,18 +18,32 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 @Component
 public class RagBootstrap implements ApplicationRunner {
     private static final Logger log = LoggerFactory.getLogger(RagBootstrap.class);
 
     private final RagService ragService;
+    private final IngestionPipeline pipeline;
+    private final IndexManifest manifest;
+    private final DocumentMapper documentMapper;
+    private final IndexJobService indexJobService;
 
     @Value("${app.rag.upload-dir}")
     private String uploadDir;
 
-    public RagBootstrap(RagService ragService) {
+    public RagBootstrap(RagService ragService, IngestionPipeline pipeline, IndexManifest manifest,
+                        DocumentMapper documentMapper, IndexJobService indexJobService) {
         this.ragService = ragService;
+        this.pipeline = pipeline;
+        this.manifest = manifest;
+        this.documentMapper = documentMapper;
+        this.indexJobService = indexJobService;
     }
 
     @Override
@@ -33,16 +53,26 @@ public class RagBootstrap implements ApplicationRunner {
             log.warn("[RagBootstrap] upload dir not exists: {}", root);
             return;
         }
-        log.info("[RagBootstrap] rebuilding index from: {}", root);
-        try {
-            Files.walk(root)
-                .filter(Files::isRegularFile)
+        long t0 = System.currentTimeMillis();
+        log.info("[RagBootstrap] syncing index with: {}", root);
+        Set<Path> seen = new HashSet<>();
+        AtomicInteger indexed = new AtomicInteger();
+        AtomicInteger unchanged = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicInteger queued = new AtomicInteger();
+        IngestionPipeline.Batch batch = pipeline.newBatch("bootstrap");
+        try (Stream<Path> files = Files.walk(root)) {
+            files.filter(Files::isRegularFile)
+                .filter(p -> RagService.fileType(p.getFileName().toString(), null) != null)
                 .forEach(p -> {
+                    seen.add(p.toAbsolutePath().normalize());
                     try {
-                        indexFileByType(p);
-                        log.info("[RagBootstrap] indexed: {}", p);
+                        if (!syncFile(p, batch, indexed, queued, failed)) {
+                            unchanged.incrementAndGet();
+                        }
                     } catch (Exception e) {
                         // 捕获所有异常，包括 API 错误，不阻止应用启动
+                        failed.incrementAndGet();
                         log.warn("[RagBootstrap] index failed: {} - {}", p, e.getMessage());
                         log.debug("[RagBootstrap] index error details", e);
                     }
@@ -54,27 +84,87 @@ public class RagBootstrap implements ApplicationRunner {
             log.warn("[RagBootstrap] unexpected error during indexing: {}", e.getMessage());
             log.debug("[RagBootstrap] unexpected error details", e);
         }
+        batch.awaitAndReport();
+
+        // 清单里有、磁盘上已经不存在的文件，删除其向量
+        int removed = 0;
+        for (IndexManifest.Entry entry : manifest.entries()) {
+            Path path = Paths.get(entry.path());
+            if (path.startsWith(root.toAbsolutePath().normalize()) && !seen.contains(path)) {
+                ragService.removeSegments(entry.chunkIds());
+                manifest.remove(path);
+                removed++;
+                log.info("[RagBootstrap] dropped vectors of missing file: {}", path);
+            }
+        }
+        try {
+            manifest.save();
+        } catch (IOException e) {
+            log.warn("[RagBootstrap] failed to save manifest: {}", e.getMessage());
+        }
+        log.info("[RagBootstrap] sync done, indexed={}, queued={}, unchanged={}, removed={}, failed={}, costMs={}",
+                indexed.get(), queued.get(), unchanged.get(), removed, failed.get(), System.currentTimeMillis() - t0);
     }
 
     /**
-     * 根据文件类型调用相应的索引方法
+     * 对比清单同步单个文件，有变化时提交到索引流水线；属于已上传文档的文件交给索引任务重新索引，
+     * 由任务一并更新 document_segments、content_sha256 和提取文本
+     * @return true 表示文件有变化并已提交重新索引
      */
-    private void indexFileByType(Path filePath) throws IOException {
-        String filename = filePath.getFileName().toString().toLowerCase();
-        
-        // 根据文件扩展名判断文件类型并索引
-        if (filename.endsWith(".pdf")) {
-            ragService.indexPdf(filePath);
-        } else if (filename.endsWith(".txt") || filename.endsWith(".md") || filename.endsWith(".markdown")) {
-            ragService.indexText(filePath);
-        } else if (filename.endsWith(".html") || filename.endsWith(".htm")) {
-            ragService.indexHtml(filePath);
-        } else if (filename.endsWith(".doc") || filename.endsWith(".docx")) {
-            ragService.indexWord(filePath);
+    private boolean syncFile(Path filePath, IngestionPipeline.Batch batch,
+                             AtomicInteger indexed, AtomicInteger queued, AtomicInteger failed) throws IOException {
+        if (manifest.isUnchanged(filePath)) {
+            return false;
+        }
+        IndexManifest.Entry entry = manifest.get(filePath);
+        String sha256 = IndexManifest.sha256(filePath);
+        if (entry != null && sha256.equals(entry.sha256())) {
+            // 只是修改时间变了，内容相同，更新清单即可
+            manifest.put(filePath, sha256, entry.chunkIds());
+            return false;
+        }
+        String fileType = RagService.fileType(filePath.getFileName().toString(), null);
+        Document doc = documentMapper.findByStoragePath(filePath.toAbsolutePath().toString());
+        if (doc != null) {
+            return queueReindex(doc, fileType, queued, failed);
+        }
+        if (entry == null) {
+            // 没有清单记录时先按文件名清理，避免与清单引入前写入的向量重复
+            ragService.removeSegmentsBySource(filePath.getFileName().toString());
+        }
+        // 写入阶段用新片段原子替换旧片段：启动同步时 Web 服务已在处理请求，检索不会同时看到新旧两套片段
+        List<String> oldIds = entry == null ? null : entry.chunkIds();
+        batch.submit(filePath, fileType, null, oldIds).whenComplete((chunkIds, error) -> {
+            if (error != null) {
+                failed.incrementAndGet();
+                return;
+            }
+            try {
+                manifest.put(filePath, sha256, chunkIds);
+                indexed.incrementAndGet();
+            } catch (Exception e) {
+                failed.incrementAndGet();
+                log.warn("[RagBootstrap] failed to record {} - {}", filePath, e.getMessage());
+            }
+        });
+        return true;
+    }
+
+    /**
+     * 为内容有变化的已上传文档排队重新索引任务；已有未完成的任务（如上次运行中断）时由其恢复后处理
+     */
+    private boolean queueReindex(Document doc, String fileType, AtomicInteger queued, AtomicInteger failed) {
+        if (indexJobService.hasUnfinishedJob(doc.getId())) {
+            log.info("[RagBootstrap] document has an unfinished index job, leaving it to resume, documentId={}", doc.getId());
+            return true;
+        }
+        IndexJob job = indexJobService.enqueue(doc, fileType, IndexJob.REINDEX);
+        if (IndexJob.FAILED.equals(job.getStatus())) {
+            failed.incrementAndGet();
         } else {
-            log.debug("[RagBootstrap] skipping unsupported file: {}", filename);
+            queued.incrementAndGet();
+            log.info("[RagBootstrap] document changed on disk, reindex queued, documentId={}, jobId={}", doc.getId(), job.getId());
         }
+        return true;
     }
 }
-
-
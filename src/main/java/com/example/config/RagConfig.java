@@ -1,64 +1,147 @@
 package com.example.config;
 
+import com.example.service.CancellableStreamingChatModel;
+import com.example.service.EmbeddingBatcher;
+import com.example.store.Bm25Index;
+import com.example.store.DocumentTextStore;
+import com.example.store.HnswEmbeddingStore;
+import com.example.store.IndexManifest;
+import com.example.store.MappedEmbeddingStore;
+import com.example.store.ScannableEmbeddingStore;
 import dev.langchain4j.model.chat.ChatLanguageModel;
 import dev.langchain4j.model.chat.StreamingChatLanguageModel;
 import dev.langchain4j.model.openai.OpenAiChatModel;
-import dev.langchain4j.model.openai.OpenAiStreamingChatModel;
 import dev.langchain4j.model.embedding.EmbeddingModel;
 import dev.langchain4j.model.openai.OpenAiEmbeddingModel;
 import dev.langchain4j.store.embedding.EmbeddingStore;
 import dev.langchain4j.store.embedding.inmemory.InMemoryEmbeddingStore;
 import dev.langchain4j.data.segment.TextSegment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
 @Configuration
 public class RagConfig {
+    private static final Logger log = LoggerFactory.getLogger(RagConfig.class);
 
+    /**
+     * 三个模型共用 app.openai.base-url，压测时指向本地的 OpenAI 兼容桩服务
+     */
     @Bean
     public ChatLanguageModel chatLanguageModel(
+            @Value("${app.openai.base-url}") String baseUrl,
             @Value("${app.openai.api-key}") String apiKey,
             @Value("${app.openai.model}") String model
     ) {
         return OpenAiChatModel.builder()
+                .baseUrl(baseUrl)
                 .apiKey(apiKey)
                 .modelName(model)
                 .build();
     }
 
+    /**
+     * 流式对话使用可中断的实现：客户端断开或读取过慢时取消上游生成
+     */
     @Bean
     public StreamingChatLanguageModel streamingChatLanguageModel(
+            @Value("${app.openai.base-url}") String baseUrl,
             @Value("${app.openai.api-key}") String apiKey,
             @Value("${app.openai.model}") String model
     ) {
-        return OpenAiStreamingChatModel.builder()
-                .apiKey(apiKey)
-                .modelName(model)
-                .build();
+        return new CancellableStreamingChatModel(baseUrl, apiKey, model, Duration.ofSeconds(60));
     }
 
+    /**
+     * 开启 embedding-batch 时，索引片段和并发的查询向量化请求会合并为多输入请求再发给 OpenAI
+     */
     @Bean
     public EmbeddingModel embeddingModel(
+            @Value("${app.openai.base-url}") String baseUrl,
             @Value("${app.openai.api-key}") String apiKey,
-            @Value("${app.rag.embedding-model}") String embeddingModel
+            @Value("${app.rag.embedding-model}") String embeddingModel,
+            @Value("${app.rag.embedding-batch.enabled:true}") boolean batchEnabled,
+            @Value("${app.rag.embedding-batch.max-size:128}") int maxBatchSize,
+            @Value("${app.rag.embedding-batch.max-wait-ms:10}") long maxWaitMillis,
+            @Value("${app.rag.embedding-batch.max-in-flight:4}") int maxInFlight,
+            @Value("${app.rag.embedding-batch.max-queued:4096}") int maxQueued
     ) {
-        return OpenAiEmbeddingModel.builder()
+        EmbeddingModel model = OpenAiEmbeddingModel.builder()
+                .baseUrl(baseUrl)
                 .apiKey(apiKey)
                 .modelName(embeddingModel)
                 .build();
+        if (!batchEnabled) {
+            return model;
+        }
+        return new EmbeddingBatcher(model, maxBatchSize, maxWaitMillis, maxInFlight, maxQueued);
     }
 
+    /**
+     * 默认使用 app.rag.index-dir 下的持久化向量库，重启后无需重新向量化；
+     * 开启 hnsw 时在其上构建近似最近邻图，store-type 配置为 memory 时退回纯内存实现
+     */
     @Bean
-    public EmbeddingStore<TextSegment> embeddingStore() {
-        return new InMemoryEmbeddingStore<>();
+    public EmbeddingStore<TextSegment> embeddingStore(
+            @Value("${app.rag.index-dir}") String indexDir,
+            @Value("${app.rag.store-type:mapped}") String storeType,
+            @Value("${app.rag.hnsw.enabled:true}") boolean hnswEnabled,
+            @Value("${app.rag.hnsw.m:16}") int m,
+            @Value("${app.rag.hnsw.ef-construction:200}") int efConstruction,
+            @Value("${app.rag.hnsw.ef-search:64}") int efSearch,
+            @Value("${app.rag.hnsw.recall-sample-rate:0}") double recallSampleRate
+    ) throws IOException {
+        if ("memory".equalsIgnoreCase(storeType)) {
+            return new InMemoryEmbeddingStore<>();
+        }
+        MappedEmbeddingStore mapped = MappedEmbeddingStore.open(Paths.get(indexDir));
+        if (!hnswEnabled) {
+            return mapped;
+        }
+        return HnswEmbeddingStore.open(mapped, m, efConstruction, efSearch, recallSampleRate);
     }
-}
-
-
-
-
-
 
+    /**
+     * 混合检索用的 BM25 倒排索引，只在内存中；启动时从向量库中已持久化的片段重建
+     */
+    @Bean
+    public Bm25Index bm25Index(
+            EmbeddingStore<TextSegment> embeddingStore,
+            @Value("${app.rag.hybrid.enabled:true}") boolean hybridEnabled,
+            @Value("${app.rag.hybrid.bm25-k1:1.2}") double k1,
+            @Value("${app.rag.hybrid.bm25-b:0.75}") double b
+    ) {
+        Bm25Index index = new Bm25Index(k1, b);
+        if (hybridEnabled && embeddingStore instanceof ScannableEmbeddingStore scannable) {
+            long t0 = System.currentTimeMillis();
+            List<String> ids = new ArrayList<>();
+            List<TextSegment> segments = new ArrayList<>();
+            scannable.forEachSegment((id, segment) -> {
+                ids.add(id);
+                segments.add(segment);
+            });
+            index.addAll(ids, segments);
+            log.info("[RagConfig] bm25 index built, segments={}, terms={}, costMs={}",
+                    index.size(), index.termCount(), System.currentTimeMillis() - t0);
+        }
+        return index;
+    }
 
+    @Bean
+    public IndexManifest indexManifest(@Value("${app.rag.index-dir}") String indexDir) throws IOException {
+        return IndexManifest.load(Paths.get(indexDir));
+    }
 
+    @Bean
+    public DocumentTextStore documentTextStore(@Value("${app.rag.index-dir}") String indexDir) throws IOException {
+        return DocumentTextStore.open(Paths.get(indexDir));
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.config;
+
+import com.example.tracing.FileSpanExporter;
+import com.example.tracing.MapperTracingInterceptor;
+import com.example.tracing.Spans;
+import io.micrometer.tracing.Tracer;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * 请求追踪：HTTP 请求的根 span 由 Spring Boot 自动创建，业务阶段和 mapper 调用的子 span 在这里接入。
+ * span 写入 app.tracing.file（JSON Lines）；配置 management.otlp.tracing.endpoint 时同时发往 OTLP 采集端
+ */
+@Configuration
+public class TracingConfig {
+
+    /**
+     * 关闭追踪（management.tracing.enabled=false）时没有 Tracer，退化为空实现
+     */
+    @Bean
+    public Spans spans(ObjectProvider<Tracer> tracer) {
+        return new Spans(tracer.getIfAvailable(() -> Tracer.NOOP));
+    }
+
+    @Bean
+    public MapperTracingInterceptor mapperTracingInterceptor(ObjectProvider<Tracer> tracer) {
+        return new MapperTracingInterceptor(tracer.getIfAvailable(() -> Tracer.NOOP));
+    }
+
+    @Bean
+    @ConditionalOnExpression("!'${app.tracing.file:}'.isEmpty()")
+    public SpanExporter fileSpanExporter(@Value("${app.tracing.file}") String file,
+                                         @Value("${app.tracing.file-max-mb:100}") long maxMb) throws IOException {
+        return new FileSpanExporter(Paths.get(file), maxMb * 1024 * 1024);
+    }
+}
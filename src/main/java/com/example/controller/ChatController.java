@@ -3,12 +3,21 @@ package com.example.controller;
 import com.example.domain.Chat;
 import com.example.domain.Message;
 import com.example.service.ChatService;
+import com.example.service.ChatStreamExecutor;
+import com.example.service.CoalescingSseWriter;
 import com.example.service.CurrentUserService;
 import com.example.service.RagService;
+import com.example.service.RetrievalResult;
+import com.example.service.StreamCancelledException;
+import com.example.tracing.Spans;
 import dev.langchain4j.data.message.AiMessage;
 import dev.langchain4j.model.StreamingResponseHandler;
 import dev.langchain4j.model.output.Response;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import jakarta.validation.constraints.NotBlank;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
@@ -19,9 +28,9 @@ import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import java.io.IOException;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,8 +44,13 @@ public class ChatController {
     private final ChatService chatService;
     private final CurrentUserService currentUserService;
     private final RagService ragService;
-    private final ExecutorService executorService;
+    private final ChatStreamExecutor streamExecutor;
+    private final CoalescingSseWriter sseWriter;
+    private final Timer timeToFirstToken;
+    private final MeterRegistry meterRegistry;
+    private final Spans spans;
     private static final Logger log = LoggerFactory.getLogger(ChatController.class);
+    private static final String NEXT_BEFORE_ID = "X-Next-Before-Id";
     
     /**
      * 去除文件名中的UUID前缀
@@ -54,82 +68,177 @@ public class ChatController {
         return filename;
     }
 
-    public ChatController(ChatService chatService, CurrentUserService currentUserService, RagService ragService) {
+    public ChatController(ChatService chatService, CurrentUserService currentUserService, RagService ragService,
+                          ChatStreamExecutor streamExecutor, CoalescingSseWriter sseWriter, MeterRegistry meterRegistry,
+                          Spans spans) {
         this.chatService = chatService;
         this.currentUserService = currentUserService;
         this.ragService = ragService;
-        this.executorService = Executors.newCachedThreadPool();
+        this.streamExecutor = streamExecutor;
+        this.sseWriter = sseWriter;
+        this.timeToFirstToken = Timer.builder("chat.stream.time_to_first_token")
+                .description("Time from /stream request arrival to the first token sent to the client")
+                .publishPercentiles(0.5, 0.9, 0.99)
+                .register(meterRegistry);
+        this.meterRegistry = meterRegistry;
+        this.spans = spans;
     }
 
     @PostMapping("/create")
     public ResponseEntity<Chat> create(@RequestBody CreateChatReq req, Authentication auth) {
-        Long userId = currentUserService.requireUserIdByUsername(auth.getName());
+        Long userId = currentUserService.requireUserId(auth);
         log.info("[ChatController] create chat, user={}, title={}", auth.getName(), req.title());
         Chat chat = chatService.createChat(userId, req.title());
         log.info("[ChatController] chat created, chatId={}", chat.getId());
         return ResponseEntity.ok(chat);
     }
 
+    /**
+     * 会话列表，按创建时间从新到旧分页；还有下一页时在 X-Next-Before-Id 中返回游标
+     */
     @GetMapping("/list")
-    public ResponseEntity<List<Chat>> list(Authentication auth) {
-        Long userId = currentUserService.requireUserIdByUsername(auth.getName());
-        List<Chat> chats = chatService.listChats(userId);
+    public ResponseEntity<List<Chat>> list(@RequestParam(value = "beforeId", required = false) Long beforeId,
+                                           @RequestParam(value = "limit", defaultValue = "50") int limit,
+                                           Authentication auth) {
+        Long userId = currentUserService.requireUserId(auth);
+        List<Chat> chats = chatService.listChats(userId, beforeId, limit);
         log.info("[ChatController] list chats, user={}, count={}", auth.getName(), chats.size());
-        return ResponseEntity.ok(chats);
+        ResponseEntity.BodyBuilder ok = ResponseEntity.ok();
+        if (chats.size() == ChatService.pageSize(limit)) {
+            ok.header(NEXT_BEFORE_ID, String.valueOf(chats.get(chats.size() - 1).getId()));
+        }
+        return ok.body(chats);
     }
 
+    /**
+     * 会话历史，每页为 beforeId 之前最近的 limit 条消息（页内按时间正序）；
+     * 还有更早的消息时在 X-Next-Before-Id 中返回加载上一页用的游标
+     */
     @GetMapping("/{chatId}/history")
-    public ResponseEntity<List<Message>> history(@PathVariable("chatId") Long chatId) {
-        List<Message> history = chatService.history(chatId);
-        log.info("[ChatController] history, chatId={}, messages={}", chatId, history.size());
-        return ResponseEntity.ok(history);
+    public ResponseEntity<List<Message>> history(@PathVariable("chatId") Long chatId,
+                                                 @RequestParam(value = "beforeId", required = false) Long beforeId,
+                                                 @RequestParam(value = "limit", defaultValue = "50") int limit) {
+        List<Message> history = chatService.history(chatId, beforeId, limit);
+        log.info("[ChatController] history, chatId={}, beforeId={}, messages={}", chatId, beforeId, history.size());
+        ResponseEntity.BodyBuilder ok = ResponseEntity.ok();
+        if (history.size() == ChatService.pageSize(limit)) {
+            ok.header(NEXT_BEFORE_ID, String.valueOf(history.get(0).getId()));
+        }
+        return ok.body(history);
     }
 
+    /**
+     * 非流式发送，只返回本轮新增的用户消息和 AI 回复
+     */
     @PostMapping("/{chatId}/send")
     public ResponseEntity<List<Message>> send(@PathVariable("chatId") Long chatId, @RequestBody SendReq req) {
         log.info("[ChatController] send, chatId={}, contentLen={}", chatId, req.content() == null ? 0 : req.content().length());
-        chatService.userSend(chatId, req.content());
-        chatService.aiReply(chatId, req.content());
-        List<Message> all = chatService.history(chatId);
-        log.info("[ChatController] send done, chatId={}, totalMessages={}", chatId, all.size());
-        return ResponseEntity.ok(all);
+        Message question = chatService.userSend(chatId, req.content());
+        Message answer = chatService.aiReply(chatId, req.content());
+        log.info("[ChatController] send done, chatId={}, userMessageId={}, replyId={}", chatId, question.getId(), answer.getId());
+        return ResponseEntity.ok(List.of(question, answer));
     }
 
     @PostMapping(value = "/{chatId}/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-    public SseEmitter stream(@PathVariable("chatId") Long chatId, @RequestBody SendReq req) {
+    public ResponseEntity<SseEmitter> stream(@PathVariable("chatId") Long chatId, @RequestBody SendReq req, Authentication auth) {
+        long t0 = System.nanoTime();
         log.info("[ChatController] stream, chatId={}, contentLen={}", chatId, req.content() == null ? 0 : req.content().length());
         
-        // 先保存用户消息
-        chatService.userSend(chatId, req.content());
-        
-        // 获取RAG引用列表
-        Set<String> references = ragService.getRagReferences(req.content());
+        // 申请流名额：全局已满返回 503，当前用户并发流过多返回 429
+        ChatStreamExecutor.Lease lease = streamExecutor.acquire(auth.getName());
+        if (!lease.accepted()) {
+            log.warn("[ChatController] stream rejected, chatId={}, user={}, reason={}", chatId, auth.getName(), lease.admission());
+            HttpStatus status = lease.admission() == ChatStreamExecutor.Admission.USER_LIMIT
+                    ? HttpStatus.TOO_MANY_REQUESTS : HttpStatus.SERVICE_UNAVAILABLE;
+            return ResponseEntity.status(status).header(HttpHeaders.RETRY_AFTER, "5").build();
+        }
         
         // 创建 SSE emitter，设置超时时间为 5 分钟
         SseEmitter emitter = new SseEmitter(300000L);
-        StringBuilder fullResponse = new StringBuilder();
+        CoalescingSseWriter.Stream writer = sseWriter.open(emitter);
+        
+        // 设置完成和错误回调，流结束时释放名额；未正常结束时写出器随之关闭，上游生成在下一个 token 时取消
+        AtomicBoolean ended = new AtomicBoolean();
+        emitter.onCompletion(() -> {
+            recordStreamDuration(ended, t0, writer.isCancelled() ? "cancelled" : "completed");
+            writer.close();
+            lease.release();
+            log.debug("[ChatController] SSE emitter completed for chatId={}", chatId);
+        });
+        
+        emitter.onError((ex) -> {
+            recordStreamDuration(ended, t0, "error");
+            writer.close();
+            lease.release();
+            log.error("[ChatController] SSE emitter error for chatId={}", chatId, ex);
+        });
+        
+        emitter.onTimeout(() -> {
+            recordStreamDuration(ended, t0, "timeout");
+            writer.close();
+            lease.release();
+            log.warn("[ChatController] SSE emitter timeout for chatId={}", chatId);
+            emitter.complete();
+        });
         
-        // 创建流式响应处理器
-        StreamingResponseHandler<AiMessage> handler = new StreamingResponseHandler<AiMessage>() {
+        // 保存用户消息、检索、读取历史和调用模型全部在流执行器上完成，请求线程立即返回
+        try {
+            // 任务 span 从开始执行时算起，与请求 span 之间的空隙即排队时间
+            streamExecutor.execute(() -> spans.run("chat.stream.task", () -> {
+                spans.tag("chat.id", String.valueOf(chatId));
+                try {
+                    chatService.userSend(chatId, req.content());
+                    
+                    // 检索一次，引用列表和流式生成共用同一份结果
+                    RetrievalResult retrieval = ragService.retrieve(req.content());
+                    ragService.chatWithRagStreaming(chatId, retrieval, streamHandler(chatId, writer, retrieval.references(), t0));
+                } catch (StreamCancelledException e) {
+                    log.info("[ChatController] stream cancelled before generation, chatId={}, reason={}", chatId, e.getMessage());
+                } catch (Exception e) {
+                    log.error("[ChatController] Failed to start streaming", e);
+                    writer.fail(e);
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            lease.release();
+            log.warn("[ChatController] stream executor saturated, chatId={}", chatId);
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "5").build();
+        }
+        
+        return ResponseEntity.ok(emitter);
+    }
+
+    /**
+     * 记录 SSE 流从请求到结束的总时长，每个流只记录一次（完成回调在出错和超时后也会触发）
+     */
+    private void recordStreamDuration(AtomicBoolean ended, long startNanos, String outcome) {
+        if (ended.compareAndSet(false, true)) {
+            Timer.builder("chat.stream.duration")
+                    .tag("outcome", outcome)
+                    .description("SSE stream duration from request arrival to emitter completion")
+                    .register(meterRegistry)
+                    .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * 创建流式响应处理器：token 交给合并写出器批量推送，完成时保存回复（附引用列表）
+     * @param startNanos 请求开始时间，用于记录首 token 延迟
+     */
+    private StreamingResponseHandler<AiMessage> streamHandler(Long chatId, CoalescingSseWriter.Stream writer, Set<String> references, long startNanos) {
+        StringBuilder fullResponse = new StringBuilder();
+        AtomicBoolean firstToken = new AtomicBoolean(true);
+        return new StreamingResponseHandler<AiMessage>() {
             @Override
             public void onNext(String token) {
-                try {
+                if (firstToken.compareAndSet(true, false)) {
+                    timeToFirstToken.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+                }
+                if (token != null) {
                     fullResponse.append(token);
-                    // 发送每个 token 到前端
-                    // 确保每个事件都有正确的格式
-                    SseEmitter.SseEventBuilder event = SseEmitter.event()
-                        .name("token")
-                        .data(token != null ? token : "");
-                    emitter.send(event);
-                    log.debug("[ChatController] Sent token, len={}", token != null ? token.length() : 0);
-                } catch (IOException e) {
-                    log.error("[ChatController] Failed to send token", e);
-                    try {
-                        emitter.completeWithError(e);
-                    } catch (Exception ex) {
-                        log.error("[ChatController] Failed to complete emitter with error", ex);
-                    }
                 }
+                // 客户端断开或过慢时抛出 StreamCancelledException，由模型取消上游生成
+                writer.write(token);
             }
 
             @Override
@@ -155,57 +264,23 @@ public class ChatController {
                         answer = answerWithRefs.toString();
                     }
                     
+                    // 生成已经完成，即使客户端刚断开也保存回复，刷新后可在历史中看到
                     chatService.aiReplySave(chatId, answer);
-                    // 发送完成事件
-                    emitter.send(SseEmitter.event()
-                        .name("done")
-                        .data(""));
-                    emitter.complete();
-                    log.info("[ChatController] stream done, chatId={}, answerLen={}, references={}", 
-                             chatId, answer.length(), references.size());
+                    // 发送剩余 token 和完成事件
+                    writer.finish();
+                    log.info("[ChatController] stream done, chatId={}, answerLen={}, references={}, cancelled={}, costMs={}", 
+                             chatId, answer.length(), references.size(), writer.isCancelled(), (System.nanoTime() - startNanos) / 1_000_000);
                 } catch (IOException e) {
                     log.error("[ChatController] Failed to send completion", e);
-                    emitter.completeWithError(e);
+                    writer.fail(e);
                 }
             }
 
             @Override
             public void onError(Throwable error) {
                 log.error("[ChatController] Stream error", error);
-                emitter.completeWithError(error);
+                writer.fail(error);
             }
         };
-        
-        // 设置完成和错误回调
-        emitter.onCompletion(() -> {
-            log.debug("[ChatController] SSE emitter completed for chatId={}", chatId);
-        });
-        
-        emitter.onError((ex) -> {
-            log.error("[ChatController] SSE emitter error for chatId={}", chatId, ex);
-        });
-        
-        emitter.onTimeout(() -> {
-            log.warn("[ChatController] SSE emitter timeout for chatId={}", chatId);
-            emitter.complete();
-        });
-        
-        // 异步执行流式生成（带历史上下文）
-        CompletableFuture.runAsync(() -> {
-            try {
-                ragService.chatWithRagStreaming(chatId, req.content(), handler);
-            } catch (Exception e) {
-                log.error("[ChatController] Failed to start streaming", e);
-                try {
-                    emitter.completeWithError(e);
-                } catch (Exception ex) {
-                    log.error("[ChatController] Failed to complete emitter with error", ex);
-                }
-            }
-        }, executorService);
-        
-        return emitter;
     }
 }
-
-
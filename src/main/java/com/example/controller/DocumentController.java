@@ -1,8 +1,12 @@
 package com.example.controller;
 
 import com.example.domain.Document;
+import com.example.domain.IndexJob;
 import com.example.service.CurrentUserService;
 import com.example.service.DocumentService;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.Authentication;
@@ -10,6 +14,7 @@ import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
+import java.net.URI;
 import java.util.List;
 
 @RestController
@@ -28,9 +33,44 @@ public class DocumentController {
     public ResponseEntity<Document> upload(@RequestParam("title") String title,
                                            @RequestParam("file") MultipartFile file,
                                            Authentication auth) throws IOException {
-        Long adminId = currentUserService.requireUserIdByUsername(auth.getName());
-        Document doc = documentService.upload(adminId, title, file);
-        return ResponseEntity.ok(doc);
+        // 索引队列已满时直接拒绝，不写入文件
+        if (!documentService.canAcceptIndexJob()) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "30").build();
+        }
+        Long adminId = currentUserService.requireUserId(auth);
+        DocumentService.UploadResult result = documentService.upload(adminId, title, file);
+        Document doc = result.document();
+        if (result.job() == null) {
+            return ResponseEntity.ok(doc);
+        }
+        // 索引在后台进行，通过 index-status 查询进度
+        return ResponseEntity.accepted()
+                .header("X-Index-Job-Id", String.valueOf(result.job().getId()))
+                .location(URI.create("/api/docs/" + doc.getId() + "/index-status"))
+                .body(doc);
+    }
+
+    @PreAuthorize("hasRole('ADMIN')")
+    @PostMapping("/{id}/reindex")
+    public ResponseEntity<IndexJob> reindex(@PathVariable("id") Long id) {
+        if (!documentService.canAcceptIndexJob()) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "30").build();
+        }
+        IndexJob job = documentService.reindex(id);
+        if (job == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.accepted()
+                .header("X-Index-Job-Id", String.valueOf(job.getId()))
+                .location(URI.create("/api/docs/" + id + "/index-status"))
+                .body(job);
+    }
+
+    @PreAuthorize("hasRole('ADMIN')")
+    @GetMapping("/{id}/index-status")
+    public ResponseEntity<IndexJob> indexStatus(@PathVariable("id") Long id) {
+        IndexJob job = documentService.indexStatus(id);
+        return job == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(job);
     }
 
     @PreAuthorize("hasRole('ADMIN')")
@@ -53,11 +93,23 @@ public class DocumentController {
         return doc == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(doc);
     }
     
+    /**
+     * 文档文本预览；返回文件资源，支持 Range 分段读取和 If-None-Match（ETag 为内容哈希）
+     */
     @PreAuthorize("hasRole('ADMIN')")
     @GetMapping("/{id}/content")
-    public ResponseEntity<String> getContent(@PathVariable("id") Long id) throws IOException {
-        String content = documentService.getDocumentContent(id);
-        return content == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(content);
+    public ResponseEntity<Resource> getContent(@PathVariable("id") Long id) throws IOException {
+        DocumentService.DocumentContent content = documentService.getDocumentContent(id);
+        if (content == null) {
+            return ResponseEntity.notFound().build();
+        }
+        ResponseEntity.BodyBuilder ok = ResponseEntity.ok()
+                .contentType(content.contentType())
+                .header(HttpHeaders.ACCEPT_RANGES, "bytes");
+        if (content.etag() != null) {
+            ok.eTag("\"" + content.etag() + "\"");
+        }
+        return ok.body(content.body());
     }
 }
 
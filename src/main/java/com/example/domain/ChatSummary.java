@@ -0,0 +1,22 @@
+package com.example.domain;
+
+import java.time.LocalDateTime;
+
+/**
+ * 会话的滚动摘要：id 不超过 coveredUntilId 的消息已并入 summary
+ */
+public class ChatSummary {
+    private Long chatId;
+    private String summary;
+    private Long coveredUntilId;
+    private LocalDateTime updatedAt;
+
+    public Long getChatId() { return chatId; }
+    public void setChatId(Long chatId) { this.chatId = chatId; }
+    public String getSummary() { return summary; }
+    public void setSummary(String summary) { this.summary = summary; }
+    public Long getCoveredUntilId() { return coveredUntilId; }
+    public void setCoveredUntilId(Long coveredUntilId) { this.coveredUntilId = coveredUntilId; }
+    public LocalDateTime getUpdatedAt() { return updatedAt; }
+    public void setUpdatedAt(LocalDateTime updatedAt) { this.updatedAt = updatedAt; }
+}
@@ -7,6 +7,7 @@ public class Document {
     private String contentType;
     private Long sizeBytes;
     private String storagePath;
+    private String contentSha256;
     private Long createdBy;
 
     public Long getId() { return id; }
@@ -21,6 +22,8 @@ public class Document {
     public void setSizeBytes(Long sizeBytes) { this.sizeBytes = sizeBytes; }
     public String getStoragePath() { return storagePath; }
     public void setStoragePath(String storagePath) { this.storagePath = storagePath; }
+    public String getContentSha256() { return contentSha256; }
+    public void setContentSha256(String contentSha256) { this.contentSha256 = contentSha256; }
     public Long getCreatedBy() { return createdBy; }
     public void setCreatedBy(Long createdBy) { this.createdBy = createdBy; }
 }
@@ -0,0 +1,59 @@
+package com.example.domain;
+
+import java.time.LocalDateTime;
+
+/**
+ * 文档索引任务，kind 取值：INDEX（上传后首次索引）/ REINDEX（管理员重新索引）；
+ * status 取值：QUEUED / PARSING / EMBEDDING / DONE / FAILED
+ */
+public class IndexJob {
+    public static final String INDEX = "INDEX";
+    public static final String REINDEX = "REINDEX";
+
+    public static final String QUEUED = "QUEUED";
+    public static final String PARSING = "PARSING";
+    public static final String EMBEDDING = "EMBEDDING";
+    public static final String DONE = "DONE";
+    public static final String FAILED = "FAILED";
+
+    private Long id;
+    private Long documentId;
+    private String kind;
+    private String status;
+    private Integer attempts;
+    private Integer chunkCount;
+    private String error;
+    private Long parseMs;
+    private Long embedMs;
+    private Long storeMs;
+    private LocalDateTime createdAt;
+    private LocalDateTime startedAt;
+    private LocalDateTime finishedAt;
+
+    public Long getId() { return id; }
+    public void setId(Long id) { this.id = id; }
+    public Long getDocumentId() { return documentId; }
+    public void setDocumentId(Long documentId) { this.documentId = documentId; }
+    public String getKind() { return kind; }
+    public void setKind(String kind) { this.kind = kind; }
+    public String getStatus() { return status; }
+    public void setStatus(String status) { this.status = status; }
+    public Integer getAttempts() { return attempts; }
+    public void setAttempts(Integer attempts) { this.attempts = attempts; }
+    public Integer getChunkCount() { return chunkCount; }
+    public void setChunkCount(Integer chunkCount) { this.chunkCount = chunkCount; }
+    public String getError() { return error; }
+    public void setError(String error) { this.error = error; }
+    public Long getParseMs() { return parseMs; }
+    public void setParseMs(Long parseMs) { this.parseMs = parseMs; }
+    public Long getEmbedMs() { return embedMs; }
+    public void setEmbedMs(Long embedMs) { this.embedMs = embedMs; }
+    public Long getStoreMs() { return storeMs; }
+    public void setStoreMs(Long storeMs) { this.storeMs = storeMs; }
+    public LocalDateTime getCreatedAt() { return createdAt; }
+    public void setCreatedAt(LocalDateTime createdAt) { this.createdAt = createdAt; }
+    public LocalDateTime getStartedAt() { return startedAt; }
+    public void setStartedAt(LocalDateTime startedAt) { this.startedAt = startedAt; }
+    public LocalDateTime getFinishedAt() { return finishedAt; }
+    public void setFinishedAt(LocalDateTime finishedAt) { this.finishedAt = finishedAt; }
+}
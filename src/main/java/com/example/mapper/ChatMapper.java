@@ -10,7 +10,10 @@ import java.util.List;
 public interface ChatMapper {
     void insert(Chat chat);
     Chat findById(@Param("id") Long id);
-    List<Chat> listByUser(@Param("userId") Long userId);
+    /**
+     * 用户 id 小于 beforeId（为 null 时不限）的最近 limit 个会话，按 id 降序返回
+     */
+    List<Chat> listByUser(@Param("userId") Long userId, @Param("beforeId") Long beforeId, @Param("limit") int limit);
 }
 
 
@@ -0,0 +1,11 @@
+package com.example.mapper;
+
+import com.example.domain.ChatSummary;
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+
+@Mapper
+public interface ChatSummaryMapper {
+    ChatSummary findByChat(@Param("chatId") Long chatId);
+    int upsert(ChatSummary summary);
+}
@@ -9,8 +9,11 @@ import java.util.List;
 @Mapper
 public interface DocumentMapper {
     void insert(Document doc);
+    int updateContentSha256(@Param("id") Long id, @Param("sha256") String sha256);
+    int countByContentSha256(@Param("sha256") String sha256);
     int deleteById(@Param("id") Long id);
     Document findById(@Param("id") Long id);
+    Document findByStoragePath(@Param("storagePath") String storagePath);
     List<Document> listAll();
 }
 
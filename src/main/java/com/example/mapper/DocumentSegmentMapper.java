@@ -0,0 +1,13 @@
+package com.example.mapper;
+
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
+
+@Mapper
+public interface DocumentSegmentMapper {
+    void insertBatch(@Param("documentId") Long documentId, @Param("segmentIds") List<String> segmentIds);
+    int deleteByDocument(@Param("documentId") Long documentId);
+    List<String> listByDocument(@Param("documentId") Long documentId);
+}
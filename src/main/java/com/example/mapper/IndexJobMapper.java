@@ -0,0 +1,16 @@
+package com.example.mapper;
+
+import com.example.domain.IndexJob;
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
+
+@Mapper
+public interface IndexJobMapper {
+    void insert(IndexJob job);
+    int update(IndexJob job);
+    IndexJob findById(@Param("id") Long id);
+    IndexJob findLatestByDocument(@Param("documentId") Long documentId);
+    List<IndexJob> listUnfinished();
+}
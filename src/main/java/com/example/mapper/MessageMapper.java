@@ -9,7 +9,16 @@ import java.util.List;
 @Mapper
 public interface MessageMapper {
     void insert(Message message);
-    List<Message> listByChat(@Param("chatId") Long chatId);
+    /**
+     * 会话中 id 小于 beforeId（为 null 时不限）的最近 limit 条消息，按 id 升序返回
+     */
+    List<Message> listByChat(@Param("chatId") Long chatId, @Param("beforeId") Long beforeId, @Param("limit") int limit);
+
+    /**
+     * 会话中 id 在 (afterId, beforeId) 区间内最早的 limit 条消息，按 id 升序返回
+     */
+    List<Message> listBetween(@Param("chatId") Long chatId, @Param("afterId") long afterId,
+                              @Param("beforeId") long beforeId, @Param("limit") int limit);
 }
 
 
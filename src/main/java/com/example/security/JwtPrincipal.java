@@ -0,0 +1,15 @@
+package com.example.security;
+
+import java.security.Principal;
+
+/**
+ * 验证通过的 JWT 中携带的身份信息，作为 Authentication 的 principal，getName() 返回用户名
+ * @param userId uid claim，旧令牌中没有时为 null
+ * @param expiresAtMillis 令牌过期时间（exp），缓存条目在此之后失效
+ */
+public record JwtPrincipal(Long userId, String username, boolean admin, long expiresAtMillis) implements Principal {
+    @Override
+    public String getName() {
+        return username;
+    }
+}
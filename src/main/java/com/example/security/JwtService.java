@@ -1,8 +1,14 @@
 package com.example.security;
 
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.JwtParser;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.SignatureAlgorithm;
 import io.jsonwebtoken.security.Keys;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
@@ -11,23 +17,51 @@ import java.security.Key;
 import java.time.Instant;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
+/**
+ * 签发和验证 JWT
+ * <p>
+ * 签名密钥和解析器在启动时构建一次。验证通过的令牌缓存到其自身的 exp 为止（LRU，最多 token-cache.max-size 条），
+ * 同一令牌的后续请求不再做 HMAC 校验和 claims 解析。
+ */
 @Service
 public class JwtService {
 
-    @Value("${app.security.jwt-secret}")
-    private String jwtSecret;
+    private final Key key;
+    private final JwtParser parser;
+    private final long expirationMinutes;
+    private final int cacheSize;
+    private final LinkedHashMap<String, JwtPrincipal> cache;
+    private final Counter hits;
+    private final Counter misses;
 
-    @Value("${app.security.jwt-expiration-minutes}")
-    private long expirationMinutes;
+    public JwtService(MeterRegistry meterRegistry,
+                      @Value("${app.security.jwt-secret}") String jwtSecret,
+                      @Value("${app.security.jwt-expiration-minutes}") long expirationMinutes,
+                      @Value("${app.security.token-cache.max-size:10000}") int cacheSize) {
+        this.key = Keys.hmacShaKeyFor(jwtSecret.getBytes(StandardCharsets.UTF_8));
+        this.parser = Jwts.parserBuilder().setSigningKey(key).build();
+        this.expirationMinutes = expirationMinutes;
+        this.cacheSize = cacheSize;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, JwtPrincipal> eldest) {
+                return size() > JwtService.this.cacheSize;
+            }
+        };
+        this.hits = Counter.builder("security.jwt.cache").tag("result", "hit").register(meterRegistry);
+        this.misses = Counter.builder("security.jwt.cache").tag("result", "miss").register(meterRegistry);
+        Gauge.builder("security.jwt.cache.size", this, JwtService::cacheSize).register(meterRegistry);
+    }
 
-    public String generateToken(String username, boolean isAdmin) {
+    public String generateToken(Long userId, String username, boolean isAdmin) {
         Map<String, Object> claims = new HashMap<>();
+        claims.put("uid", userId);
         claims.put("isAdmin", isAdmin);
         Instant now = Instant.now();
         Instant exp = now.plusSeconds(expirationMinutes * 60);
-        Key key = Keys.hmacShaKeyFor(jwtSecret.getBytes(StandardCharsets.UTF_8));
         return Jwts.builder()
                 .setClaims(claims)
                 .setSubject(username)
@@ -36,12 +70,52 @@ public class JwtService {
                 .signWith(key, SignatureAlgorithm.HS256)
                 .compact();
     }
-}
-
-
-
-
-
-
 
+    /**
+     * 验证令牌并返回其中的身份信息，优先使用缓存
+     * @return 令牌无效、已过期或没有 subject 时返回 null
+     */
+    public JwtPrincipal verify(String token) {
+        long now = System.currentTimeMillis();
+        if (cacheSize > 0) {
+            synchronized (cache) {
+                JwtPrincipal cached = cache.get(token);
+                if (cached != null) {
+                    if (now < cached.expiresAtMillis()) {
+                        hits.increment();
+                        return cached;
+                    }
+                    cache.remove(token);
+                }
+            }
+        }
+        misses.increment();
+        Claims claims;
+        try {
+            claims = parser.parseClaimsJws(token).getBody();
+        } catch (JwtException | IllegalArgumentException e) {
+            return null;
+        }
+        if (claims.getSubject() == null) {
+            return null;
+        }
+        Boolean isAdmin = claims.get("isAdmin", Boolean.class);
+        Number uid = claims.get("uid", Number.class);
+        Date exp = claims.getExpiration();
+        JwtPrincipal principal = new JwtPrincipal(uid == null ? null : uid.longValue(), claims.getSubject(), isAdmin != null && isAdmin,
+                exp == null ? Long.MAX_VALUE : exp.getTime());
+        // 没有 exp 的令牌不缓存，避免永不过期的条目
+        if (cacheSize > 0 && exp != null) {
+            synchronized (cache) {
+                cache.put(token, principal);
+            }
+        }
+        return principal;
+    }
 
+    public int cacheSize() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.service;
+
+import dev.ai4j.openai4j.OpenAiClient;
+import dev.ai4j.openai4j.ResponseHandle;
+import dev.ai4j.openai4j.chat.ChatCompletionChoice;
+import dev.ai4j.openai4j.chat.ChatCompletionRequest;
+import dev.ai4j.openai4j.chat.ChatCompletionResponse;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.model.StreamingResponseHandler;
+import dev.langchain4j.model.Tokenizer;
+import dev.langchain4j.model.chat.StreamingChatLanguageModel;
+import dev.langchain4j.model.openai.InternalOpenAiHelper;
+import dev.langchain4j.model.openai.OpenAiStreamingResponseBuilder;
+import dev.langchain4j.model.openai.OpenAiTokenizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 可中断的 OpenAI 流式对话模型
+ * <p>
+ * 与 OpenAiStreamingChatModel 的请求和回调一致，区别在于保留了底层流的 {@link ResponseHandle}：
+ * 处理器的 onNext 抛出 {@link StreamCancelledException} 时立即取消 HTTP 流，不再为无人读取的 token 付费。
+ * 仅支持普通文本对话（不含工具调用）。
+ */
+public class CancellableStreamingChatModel implements StreamingChatLanguageModel {
+    private static final Logger log = LoggerFactory.getLogger(CancellableStreamingChatModel.class);
+
+    private final OpenAiClient client;
+    private final String modelName;
+    private final Tokenizer tokenizer = new OpenAiTokenizer();
+
+    public CancellableStreamingChatModel(String baseUrl, String apiKey, String modelName, Duration timeout) {
+        this.client = OpenAiClient.builder()
+                .baseUrl(baseUrl)
+                .openAiApiKey(apiKey)
+                .callTimeout(timeout)
+                .connectTimeout(timeout)
+                .readTimeout(timeout)
+                .writeTimeout(timeout)
+                .build();
+        this.modelName = modelName;
+    }
+
+    @Override
+    public void generate(List<ChatMessage> messages, StreamingResponseHandler<AiMessage> handler) {
+        ChatCompletionRequest request = ChatCompletionRequest.builder()
+                .stream(true)
+                .model(modelName)
+                .messages(InternalOpenAiHelper.toOpenAiMessages(messages))
+                .build();
+        // 流式响应不带用量，与 OpenAiStreamingChatModel 一样用 tokenizer 估算输入和输出 token 数
+        OpenAiStreamingResponseBuilder responseBuilder =
+                new OpenAiStreamingResponseBuilder(tokenizer.estimateTokenCountInMessages(messages));
+        AtomicBoolean cancelled = new AtomicBoolean();
+        AtomicReference<ResponseHandle> handle = new AtomicReference<>();
+
+        ResponseHandle started = client.chatCompletion(request)
+                .onPartialResponse(partial -> {
+                    if (cancelled.get()) {
+                        return;
+                    }
+                    responseBuilder.append(partial);
+                    String token = content(partial);
+                    if (token == null || token.isEmpty()) {
+                        return;
+                    }
+                    try {
+                        handler.onNext(token);
+                    } catch (StreamCancelledException e) {
+                        cancelled.set(true);
+                        ResponseHandle h = handle.get();
+                        if (h != null) {
+                            h.cancel();
+                        }
+                        log.info("[CancellableStreamingChatModel] upstream stream cancelled: {}", e.getMessage());
+                    }
+                })
+                .onComplete(() -> {
+                    if (!cancelled.get()) {
+                        handler.onComplete(responseBuilder.build(tokenizer, false));
+                    }
+                })
+                .onError(error -> {
+                    if (!cancelled.get()) {
+                        handler.onError(error);
+                    }
+                })
+                .execute();
+        handle.set(started);
+        // 首个 token 可能在 execute 返回前就已触发取消
+        if (cancelled.get()) {
+            started.cancel();
+        }
+    }
+
+    private static String content(ChatCompletionResponse partial) {
+        List<ChatCompletionChoice> choices = partial.choices();
+        if (choices == null || choices.isEmpty() || choices.get(0).delta() == null) {
+            return null;
+        }
+        return choices.get(0).delta().content();
+    }
+}
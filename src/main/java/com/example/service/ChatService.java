@@ -4,6 +4,9 @@ import com.example.domain.Chat;
 import com.example.domain.Message;
 import com.example.mapper.ChatMapper;
 import com.example.mapper.MessageMapper;
+import com.example.tracing.Spans;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.springframework.stereotype.Service;
 
 import java.util.List;
@@ -15,8 +18,14 @@ public class ChatService {
     private final ChatMapper chatMapper;
     private final MessageMapper messageMapper;
     private final RagService ragService;
+    private final Timer historyPageTimer;
+    private final Spans spans;
     private static final Logger log = LoggerFactory.getLogger(ChatService.class);
     
+    // 分页查询的默认和最大条数
+    public static final int DEFAULT_PAGE_SIZE = 50;
+    public static final int MAX_PAGE_SIZE = 200;
+    
     /**
      * 去除文件名中的UUID前缀
      * 例如: "a78c2d2a-289e-4062-8ff9-0751eb348cfc_Track_B_Example_QA.pdf" -> "Track_B_Example_QA.pdf"
@@ -35,10 +44,15 @@ public class ChatService {
         return filename;
     }
 
-    public ChatService(ChatMapper chatMapper, MessageMapper messageMapper, RagService ragService) {
+    public ChatService(ChatMapper chatMapper, MessageMapper messageMapper, RagService ragService, MeterRegistry meterRegistry,
+                       Spans spans) {
         this.chatMapper = chatMapper;
         this.messageMapper = messageMapper;
         this.ragService = ragService;
+        this.spans = spans;
+        this.historyPageTimer = Timer.builder("chat.history.load").tag("source", "page")
+                .description("Loading one page of chat history for the client")
+                .register(meterRegistry);
     }
 
     public Chat createChat(Long userId, String title) {
@@ -50,19 +64,36 @@ public class ChatService {
         return chat;
     }
 
-    public List<Chat> listChats(Long userId) {
-        List<Chat> list = chatMapper.listByUser(userId);
-        log.info("[ChatService] list chats, userId={}, count={}", userId, list.size());
+    /**
+     * 按 id 从新到旧分页列出会话
+     * @param beforeId 上一页最后一个会话的 id，首页传 null
+     */
+    public List<Chat> listChats(Long userId, Long beforeId, int limit) {
+        List<Chat> list = chatMapper.listByUser(userId, beforeId, pageSize(limit));
+        log.info("[ChatService] list chats, userId={}, beforeId={}, count={}", userId, beforeId, list.size());
         return list;
     }
 
-    public List<Message> history(Long chatId) {
-        List<Message> list = messageMapper.listByChat(chatId);
-        log.debug("[ChatService] history loaded, chatId={}, messages={}", chatId, list.size());
+    /**
+     * 分页读取会话消息：返回 id 小于 beforeId 的最近 limit 条，页内按时间正序
+     * @param beforeId 已加载的最早一条消息的 id，首页传 null
+     */
+    public List<Message> history(Long chatId, Long beforeId, int limit) {
+        List<Message> list = spans.in("chat.history", () ->
+                historyPageTimer.record(() -> messageMapper.listByChat(chatId, beforeId, pageSize(limit))));
+        log.debug("[ChatService] history loaded, chatId={}, beforeId={}, messages={}", chatId, beforeId, list.size());
         return list;
     }
 
+    public static int pageSize(int limit) {
+        return limit <= 0 ? DEFAULT_PAGE_SIZE : Math.min(limit, MAX_PAGE_SIZE);
+    }
+
     public Message userSend(Long chatId, String content) {
+        return spans.in("chat.user_send", () -> saveUserMessage(chatId, content));
+    }
+
+    private Message saveUserMessage(Long chatId, String content) {
         Message m = new Message();
         m.setChatId(chatId);
         m.setRole("user");
@@ -73,13 +104,18 @@ public class ChatService {
     }
 
     public Message aiReply(Long chatId, String userContent) {
+        return spans.in("chat.ai_reply", () -> generateReply(chatId, userContent));
+    }
+
+    private Message generateReply(Long chatId, String userContent) {
         long t0 = System.currentTimeMillis();
         
-        // 获取RAG引用列表
-        java.util.Set<String> references = ragService.getRagReferences(userContent);
+        // 检索一次，引用列表和回复生成共用同一份结果
+        RetrievalResult retrieval = ragService.retrieve(userContent);
+        java.util.Set<String> references = retrieval.references();
         
         // 使用带历史上下文的版本
-        String answer = ragService.chatWithRag(chatId, userContent);
+        String answer = ragService.chatWithRag(chatId, retrieval);
         
         // 添加引用列表（如果有）
         if (references != null && !references.isEmpty()) {
@@ -106,6 +142,10 @@ public class ChatService {
     }
 
     public Message aiReplySave(Long chatId, String answer) {
+        return spans.in("chat.reply_save", () -> saveReply(chatId, answer));
+    }
+
+    private Message saveReply(Long chatId, String answer) {
         Message m = new Message();
         m.setChatId(chatId);
         m.setRole("assistant");
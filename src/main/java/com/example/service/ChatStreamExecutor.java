@@ -0,0 +1,186 @@
+package com.example.service;
+
+import com.example.tracing.Spans;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 流式聊天的执行模型与并发控制
+ * <p>
+ * executor 为 virtual 时每个流使用一个虚拟线程（需要 Java 21+），bounded 时使用有界线程池，
+ * auto 在支持虚拟线程的 JVM 上选择 virtual，否则 bounded。
+ * 每个流开始前先申请 {@link Lease}：全局活跃流数超过 max-active 时拒绝（503），
+ * 单个用户的活跃流数超过 max-per-user 时拒绝（429）。流结束（完成、出错或超时）时释放。
+ */
+@Service
+public class ChatStreamExecutor {
+    private static final Logger log = LoggerFactory.getLogger(ChatStreamExecutor.class);
+
+    /**
+     * 申请结果
+     */
+    public enum Admission { ACCEPTED, USER_LIMIT, SATURATED }
+
+    private final ExecutorService executor;
+    private final ThreadPoolExecutor boundedPool;
+    private final String mode;
+    private final int maxActive;
+    private final int maxPerUser;
+    private final AtomicInteger active = new AtomicInteger();
+    private final ConcurrentHashMap<String, Integer> perUser = new ConcurrentHashMap<>();
+    private final Counter rejectedUser;
+    private final Counter rejectedSaturated;
+    private final Spans spans;
+
+    public ChatStreamExecutor(MeterRegistry meterRegistry, Spans spans,
+                              @Value("${app.chat.stream.executor:auto}") String executorType,
+                              @Value("${app.chat.stream.threads:32}") int threads,
+                              @Value("${app.chat.stream.queue-capacity:100}") int queueCapacity,
+                              @Value("${app.chat.stream.max-active:200}") int maxActive,
+                              @Value("${app.chat.stream.max-per-user:3}") int maxPerUser) {
+        this.spans = spans;
+        this.maxActive = maxActive;
+        this.maxPerUser = maxPerUser;
+        ExecutorService virtual = "bounded".equalsIgnoreCase(executorType) ? null : newVirtualThreadExecutor();
+        if ("virtual".equalsIgnoreCase(executorType) && virtual == null) {
+            log.warn("[ChatStreamExecutor] virtual threads not available on Java {}, falling back to bounded pool",
+                    Runtime.version().feature());
+        }
+        if (virtual != null) {
+            this.executor = virtual;
+            this.boundedPool = null;
+            this.mode = "virtual";
+        } else {
+            AtomicInteger seq = new AtomicInteger();
+            this.boundedPool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity), r -> {
+                        Thread t = new Thread(r, "chat-stream-" + seq.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }, new ThreadPoolExecutor.AbortPolicy());
+            this.boundedPool.allowCoreThreadTimeOut(true);
+            this.executor = boundedPool;
+            this.mode = "bounded";
+        }
+
+        Gauge.builder("chat.streams.active", active, AtomicInteger::get).register(meterRegistry);
+        Gauge.builder("chat.streams.users", perUser, ConcurrentHashMap::size).register(meterRegistry);
+        if (boundedPool != null) {
+            Gauge.builder("chat.streams.executor.busy", boundedPool, ThreadPoolExecutor::getActiveCount).register(meterRegistry);
+            Gauge.builder("chat.streams.executor.queued", boundedPool, p -> p.getQueue().size()).register(meterRegistry);
+        }
+        this.rejectedUser = Counter.builder("chat.streams.rejected").tag("reason", "user_limit").register(meterRegistry);
+        this.rejectedSaturated = Counter.builder("chat.streams.rejected").tag("reason", "saturated").register(meterRegistry);
+        log.info("[ChatStreamExecutor] mode={}, threads={}, queueCapacity={}, maxActive={}, maxPerUser={}",
+                mode, boundedPool == null ? "-" : threads, boundedPool == null ? "-" : queueCapacity, maxActive, maxPerUser);
+    }
+
+    /**
+     * 通过反射创建虚拟线程执行器，编译目标仍为 Java 17
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) java.util.concurrent.Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 为一个新的流申请名额，调用方必须在流结束时调用 {@link Lease#release()}
+     */
+    public Lease acquire(String user) {
+        int now = active.incrementAndGet();
+        if (maxActive > 0 && now > maxActive) {
+            active.decrementAndGet();
+            rejectedSaturated.increment();
+            return new Lease(null, Admission.SATURATED);
+        }
+        if (maxPerUser > 0) {
+            boolean[] overLimit = new boolean[1];
+            perUser.compute(user, (k, count) -> {
+                int n = count == null ? 0 : count;
+                if (n >= maxPerUser) {
+                    overLimit[0] = true;
+                    return count;
+                }
+                return n + 1;
+            });
+            if (overLimit[0]) {
+                active.decrementAndGet();
+                rejectedUser.increment();
+                return new Lease(null, Admission.USER_LIMIT);
+            }
+        }
+        return new Lease(user, Admission.ACCEPTED);
+    }
+
+    /**
+     * 在流执行器上运行任务，任务延续提交时的当前 span；有界线程池队列已满时抛出 RejectedExecutionException
+     */
+    public void execute(Runnable task) {
+        try {
+            executor.execute(spans.wrap(task));
+        } catch (RejectedExecutionException e) {
+            rejectedSaturated.increment();
+            throw e;
+        }
+    }
+
+    public int activeStreams() {
+        return active.get();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 一个流占用的名额，重复释放是安全的
+     */
+    public final class Lease {
+        private final String user;
+        private final Admission admission;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Lease(String user, Admission admission) {
+            this.user = user;
+            this.admission = admission;
+        }
+
+        public Admission admission() {
+            return admission;
+        }
+
+        public boolean accepted() {
+            return admission == Admission.ACCEPTED;
+        }
+
+        public void release() {
+            if (!accepted() || !released.compareAndSet(false, true)) {
+                return;
+            }
+            active.decrementAndGet();
+            if (maxPerUser > 0) {
+                perUser.computeIfPresent(user, (k, count) -> count <= 1 ? null : count - 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package com.example.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 合并 token 的 SSE 写出器
+ * <p>
+ * 生成线程只把 token 追加到缓冲区；缓冲区达到 flush-bytes 时立即发送，否则最多等待 flush-interval-ms
+ * 由定时线程发送，一次发送合并为一个 token 事件。首个 token 总是立即发送，不影响首字延迟。
+ * 发送失败视为客户端已断开；上一次发送阻塞期间积压超过 max-pending-bytes 视为客户端读取过慢。
+ * 两种情况都会结束 SSE 流，之后的 {@link Stream#write} 抛出 {@link StreamCancelledException}，
+ * 由 {@link CancellableStreamingChatModel} 取消上游生成。
+ */
+@Service
+public class CoalescingSseWriter {
+    private static final Logger log = LoggerFactory.getLogger(CoalescingSseWriter.class);
+
+    private final long flushIntervalMs;
+    private final int flushBytes;
+    private final int maxPendingBytes;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final Counter flushes;
+    private final Counter cancelledDisconnected;
+    private final Counter cancelledSlow;
+
+    public CoalescingSseWriter(MeterRegistry meterRegistry,
+                               @Value("${app.chat.stream.flush-interval-ms:50}") long flushIntervalMs,
+                               @Value("${app.chat.stream.flush-bytes:256}") int flushBytes,
+                               @Value("${app.chat.stream.max-pending-bytes:65536}") int maxPendingBytes,
+                               @Value("${app.chat.stream.flush-threads:2}") int flushThreads) {
+        this.flushIntervalMs = Math.max(1, flushIntervalMs);
+        this.flushBytes = Math.max(1, flushBytes);
+        this.maxPendingBytes = maxPendingBytes;
+        AtomicInteger seq = new AtomicInteger();
+        this.scheduler = new ScheduledThreadPoolExecutor(Math.max(1, flushThreads), r -> {
+            Thread t = new Thread(r, "sse-flush-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.scheduler.setRemoveOnCancelPolicy(true);
+        this.flushes = Counter.builder("chat.stream.flushes").register(meterRegistry);
+        this.cancelledDisconnected = Counter.builder("chat.stream.cancelled").tag("reason", "disconnected").register(meterRegistry);
+        this.cancelledSlow = Counter.builder("chat.stream.cancelled").tag("reason", "slow_client").register(meterRegistry);
+        log.info("[CoalescingSseWriter] flushIntervalMs={}, flushBytes={}, maxPendingBytes={}",
+                this.flushIntervalMs, this.flushBytes, maxPendingBytes);
+    }
+
+    /**
+     * 为一个 SSE 连接创建写出器；调用方应在 emitter 的完成/出错/超时回调中调用 {@link Stream#close()}
+     */
+    public Stream open(SseEmitter emitter) {
+        return new Stream(emitter);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private static int utf8Length(String s) {
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                n += 1;
+            } else if (c < 0x800 || Character.isSurrogate(c)) {
+                n += 2;
+            } else {
+                n += 3;
+            }
+        }
+        return n;
+    }
+
+    public final class Stream {
+        private final SseEmitter emitter;
+        private final StringBuilder buffer = new StringBuilder();
+        private final ReentrantLock sendLock = new ReentrantLock();
+        // 以下字段由 buffer 保护
+        private int pendingBytes;
+        private boolean timerArmed;
+        private boolean sentFirst;
+        // 非 null 表示流已取消
+        private volatile String cancelReason;
+        private volatile boolean finished;
+
+        private Stream(SseEmitter emitter) {
+            this.emitter = emitter;
+        }
+
+        /**
+         * 追加一个 token
+         * @throws StreamCancelledException 客户端已断开或读取过慢
+         */
+        public void write(String token) {
+            ensureOpen();
+            if (token == null || token.isEmpty()) {
+                return;
+            }
+            boolean flushNow;
+            boolean arm = false;
+            boolean slow;
+            synchronized (buffer) {
+                buffer.append(token);
+                pendingBytes += utf8Length(token);
+                slow = maxPendingBytes > 0 && pendingBytes > maxPendingBytes;
+                flushNow = !sentFirst || pendingBytes >= flushBytes;
+                if (!flushNow && !timerArmed) {
+                    timerArmed = true;
+                    arm = true;
+                }
+            }
+            if (slow) {
+                cancel("slow_client");
+            } else if (flushNow) {
+                flush(false);
+            } else if (arm) {
+                schedule();
+            }
+            ensureOpen();
+        }
+
+        /**
+         * 发送剩余内容和完成事件并结束 SSE 流；流已取消时不做任何事
+         */
+        public void finish() throws IOException {
+            flush(true);
+            if (cancelReason != null) {
+                return;
+            }
+            finished = true;
+            emitter.send(SseEmitter.event().name("done").data(""));
+            emitter.complete();
+        }
+
+        /**
+         * 以错误结束 SSE 流
+         */
+        public void fail(Throwable error) {
+            finished = true;
+            try {
+                emitter.completeWithError(error);
+            } catch (Exception e) {
+                log.debug("[CoalescingSseWriter] emitter already completed", e);
+            }
+        }
+
+        /**
+         * emitter 已结束（完成、出错或超时）；未正常结束时按客户端断开处理
+         */
+        public void close() {
+            if (!finished && cancelReason == null) {
+                cancelReason = "disconnected";
+                cancelledDisconnected.increment();
+                log.info("[CoalescingSseWriter] client gone before stream finished");
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelReason != null;
+        }
+
+        private void ensureOpen() {
+            String reason = cancelReason;
+            if (reason != null) {
+                throw new StreamCancelledException(reason);
+            }
+        }
+
+        private void schedule() {
+            scheduler.schedule(() -> {
+                synchronized (buffer) {
+                    timerArmed = false;
+                }
+                flush(false);
+            }, flushIntervalMs, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * 发送缓冲区内容；blocking 为 false 时若已有发送在进行则交给它（并留一个定时器兜底）
+         */
+        private void flush(boolean blocking) {
+            if (blocking) {
+                sendLock.lock();
+            } else if (!sendLock.tryLock()) {
+                boolean arm = false;
+                synchronized (buffer) {
+                    if (!timerArmed) {
+                        timerArmed = true;
+                        arm = true;
+                    }
+                }
+                if (arm) {
+                    schedule();
+                }
+                return;
+            }
+            try {
+                while (cancelReason == null) {
+                    String chunk;
+                    synchronized (buffer) {
+                        if (buffer.length() == 0) {
+                            return;
+                        }
+                        chunk = buffer.toString();
+                        buffer.setLength(0);
+                        pendingBytes = 0;
+                        sentFirst = true;
+                    }
+                    try {
+                        emitter.send(SseEmitter.event().name("token").data(chunk));
+                        flushes.increment();
+                    } catch (IOException | IllegalStateException e) {
+                        log.debug("[CoalescingSseWriter] send failed", e);
+                        cancel("disconnected");
+                    }
+                }
+            } finally {
+                sendLock.unlock();
+            }
+        }
+
+        private void cancel(String reason) {
+            synchronized (buffer) {
+                if (cancelReason != null) {
+                    return;
+                }
+                cancelReason = reason;
+                buffer.setLength(0);
+                pendingBytes = 0;
+            }
+            ("slow_client".equals(reason) ? cancelledSlow : cancelledDisconnected).increment();
+            log.warn("[CoalescingSseWriter] stream cancelled, reason={}", reason);
+            try {
+                emitter.complete();
+            } catch (Exception e) {
+                log.debug("[CoalescingSseWriter] emitter already completed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package com.example.service;
+
+import com.example.domain.ChatSummary;
+import com.example.domain.Message;
+import com.example.mapper.ChatSummaryMapper;
+import com.example.mapper.MessageMapper;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.Tokenizer;
+import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.openai.OpenAiTokenizer;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按 token 预算组装对话上下文
+ * <p>
+ * 预算（本地 tokenizer 估算）分为三部分：检索片段不超过 retrieval-tokens，历史消息不超过 history-tokens，
+ * 系统提示词、会话摘要、历史和当前问题合计不超过 max-tokens。
+ * 放不进历史预算的较早消息由后台线程增量并入该会话的滚动摘要（chat_summaries），
+ * 每次只处理上次摘要之后新增的消息，摘要随系统提示词一起发送。
+ */
+@Service
+public class ContextAssembler {
+    private static final Logger log = LoggerFactory.getLogger(ContextAssembler.class);
+
+    // 单条消息送去摘要时的最大字符数
+    private static final int MAX_SUMMARY_INPUT_CHARS = 4000;
+    // 每次摘要最多合并的消息数
+    private static final int SUMMARY_BATCH = 40;
+
+    private final ChatLanguageModel chatModel;
+    private final MessageMapper messageMapper;
+    private final ChatSummaryMapper summaryMapper;
+    private final Tokenizer tokenizer;
+    private final int maxTokens;
+    private final int retrievalTokens;
+    private final int historyTokens;
+    private final int summaryTokens;
+    private final int retrievalCandidates;
+    private final int historyWindow;
+    private final int summarizeAfter;
+    private final ThreadPoolExecutor summarizer;
+    private final Set<Long> summarizing = ConcurrentHashMap.newKeySet();
+    private final Timer assembleTimer;
+    private final Timer historyLoadTimer;
+
+    public ContextAssembler(ChatLanguageModel chatModel, MessageMapper messageMapper, ChatSummaryMapper summaryMapper,
+                            MeterRegistry meterRegistry,
+                            @Value("${app.openai.model}") String model,
+                            @Value("${app.rag.context.max-tokens:6000}") int maxTokens,
+                            @Value("${app.rag.context.retrieval-tokens:3000}") int retrievalTokens,
+                            @Value("${app.rag.context.history-tokens:2000}") int historyTokens,
+                            @Value("${app.rag.context.summary-tokens:400}") int summaryTokens,
+                            @Value("${app.rag.context.retrieval-candidates:8}") int retrievalCandidates,
+                            @Value("${app.rag.context.history-window:40}") int historyWindow,
+                            @Value("${app.rag.context.summarize-after:6}") int summarizeAfter) {
+        this.chatModel = chatModel;
+        this.messageMapper = messageMapper;
+        this.summaryMapper = summaryMapper;
+        this.tokenizer = tokenizerFor(model);
+        this.maxTokens = maxTokens;
+        this.retrievalTokens = retrievalTokens;
+        this.historyTokens = historyTokens;
+        this.summaryTokens = summaryTokens;
+        this.retrievalCandidates = Math.max(1, retrievalCandidates);
+        this.historyWindow = Math.max(1, historyWindow);
+        this.summarizeAfter = Math.max(1, summarizeAfter);
+        this.summarizer = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(100), r -> {
+            Thread t = new Thread(r, "chat-summary");
+            t.setDaemon(true);
+            return t;
+        }, new ThreadPoolExecutor.AbortPolicy());
+        this.summarizer.allowCoreThreadTimeOut(true);
+        this.assembleTimer = Timer.builder("rag.prompt.assemble")
+                .description("Building the message list for the model, including the history load")
+                .register(meterRegistry);
+        this.historyLoadTimer = Timer.builder("chat.history.load").tag("source", "context")
+                .description("Loading the summary and recent messages for the model context")
+                .register(meterRegistry);
+        log.info("[ContextAssembler] maxTokens={}, retrievalTokens={}, historyTokens={}, summaryTokens={}, candidates={}",
+                maxTokens, retrievalTokens, historyTokens, summaryTokens, this.retrievalCandidates);
+    }
+
+    private static Tokenizer tokenizerFor(String model) {
+        try {
+            return new OpenAiTokenizer(model);
+        } catch (RuntimeException e) {
+            // 未知模型名时退回默认编码（cl100k），估算足够使用
+            return new OpenAiTokenizer();
+        }
+    }
+
+    /**
+     * 检索时向向量库请求的候选片段数，最终进入提示词的片段由 {@link #selectChunks} 按预算决定
+     */
+    public int retrievalCandidates() {
+        return retrievalCandidates;
+    }
+
+    public int estimateTokens(String text) {
+        return text == null || text.isEmpty() ? 0 : tokenizer.estimateTokenCountInText(text);
+    }
+
+    /**
+     * 按相关度从高到低选取片段，直到用完检索预算；放不下的片段跳过，继续尝试更短的片段
+     */
+    public List<EmbeddingMatch<TextSegment>> selectChunks(List<EmbeddingMatch<TextSegment>> matches) {
+        List<EmbeddingMatch<TextSegment>> selected = new ArrayList<>();
+        if (matches == null) {
+            return selected;
+        }
+        int used = 0;
+        for (EmbeddingMatch<TextSegment> match : matches) {
+            if (match.embedded() == null) {
+                continue;
+            }
+            int tokens = estimateTokens(match.embedded().text());
+            if (retrievalTokens > 0 && used + tokens > retrievalTokens) {
+                continue;
+            }
+            selected.add(match);
+            used += tokens;
+        }
+        return selected;
+    }
+
+    /**
+     * 组装发给模型的消息：系统提示词（检索上下文 + 会话摘要）、预算内的最近历史、当前问题
+     */
+    public List<ChatMessage> assemble(Long chatId, RetrievalResult retrieval) {
+        long t0 = System.nanoTime();
+        String query = retrieval.query();
+        ChatSummary summary = summaryMapper.findByChat(chatId);
+        List<Message> window = messageMapper.listByChat(chatId, null, historyWindow);
+        historyLoadTimer.record(System.nanoTime() - t0, TimeUnit.NANOSECONDS);
+        String summaryText = summary == null ? null : fitSummary(summary.getSummary());
+
+        String system = retrieval.systemPrompt();
+        if (summaryText != null && !summaryText.isEmpty()) {
+            system = system + "\nSummary of the earlier conversation:\n" + summaryText + "\n";
+        }
+        int fixed = estimateTokens(system) + estimateTokens(query);
+        int budget = Math.min(historyTokens, maxTokens - fixed);
+
+        // 当前问题在调用前已保存为最新一条消息，历史中不再重复
+        int end = window.size();
+        if (end > 0) {
+            Message last = window.get(end - 1);
+            if ("user".equals(last.getRole()) && last.getContent() != null && last.getContent().equals(query)) {
+                end--;
+            }
+        }
+
+        // 已并入摘要的消息不再原文发送：本轮检索片段较少、历史预算变宽时，也只从摘要之后的消息开始取
+        int floor = 0;
+        if (summaryText != null && !summaryText.isEmpty() && summary.getCoveredUntilId() != null) {
+            long coveredUntil = summary.getCoveredUntilId();
+            while (floor < end && window.get(floor).getId() <= coveredUntil) {
+                floor++;
+            }
+        }
+
+        // 从最新的消息往前取，直到用完历史预算
+        int start = end;
+        int used = 0;
+        while (start > floor) {
+            Message msg = window.get(start - 1);
+            int tokens = estimateTokens(msg.getContent());
+            if (used + tokens > budget) {
+                break;
+            }
+            used += tokens;
+            start--;
+        }
+
+        List<ChatMessage> messages = new ArrayList<>();
+        messages.add(SystemMessage.from(system));
+        for (int i = start; i < end; i++) {
+            Message msg = window.get(i);
+            if ("user".equals(msg.getRole())) {
+                messages.add(UserMessage.from(msg.getContent()));
+            } else if ("assistant".equals(msg.getRole())) {
+                messages.add(AiMessage.from(msg.getContent()));
+            }
+        }
+        messages.add(UserMessage.from(query));
+
+        maybeSummarize(chatId, summary, window, start);
+        assembleTimer.record(System.nanoTime() - t0, TimeUnit.NANOSECONDS);
+        log.debug("[ContextAssembler] assembled, chatId={}, systemTokens={}, historyMsgs={}, historyTokens={}, summaryTokens={}",
+                chatId, estimateTokens(retrieval.systemPrompt()), end - start, used, estimateTokens(summaryText));
+        return messages;
+    }
+
+    /**
+     * 摘要超出预算时按比例截断（正常情况下模型生成的摘要不会超出）
+     */
+    private String fitSummary(String text) {
+        if (text == null || summaryTokens <= 0) {
+            return null;
+        }
+        int tokens = estimateTokens(text);
+        if (tokens <= summaryTokens) {
+            return text;
+        }
+        int end = (int) ((long) text.length() * summaryTokens / tokens);
+        // 不在代理对中间截断，避免把孤立的高位代理发给模型
+        if (end > 0 && Character.isHighSurrogate(text.charAt(end - 1))) {
+            end--;
+        }
+        return text.substring(0, end);
+    }
+
+    /**
+     * 放不进历史预算、且尚未并入摘要的较早消息累计到 summarize-after 条时，提交后台摘要任务
+     */
+    private void maybeSummarize(Long chatId, ChatSummary summary, List<Message> window, int keptStart) {
+        if (summaryTokens <= 0 || window.isEmpty() || (keptStart == 0 && window.size() < historyWindow)) {
+            return;
+        }
+        long coveredUntil = summary == null ? 0L : summary.getCoveredUntilId();
+        // 摘要只覆盖仍保留在上下文中的第一条消息之前的部分
+        long beforeId = keptStart < window.size() ? window.get(keptStart).getId() : window.get(window.size() - 1).getId() + 1;
+        int pending = 0;
+        for (int i = 0; i < keptStart; i++) {
+            if (window.get(i).getId() > coveredUntil) {
+                pending++;
+            }
+        }
+        // 窗口已满且最早一条也未被摘要覆盖时，窗口之外还有未摘要的消息
+        boolean beyondWindow = window.size() >= historyWindow && window.get(0).getId() > coveredUntil + 1;
+        if (pending < summarizeAfter && !beyondWindow) {
+            return;
+        }
+        if (!summarizing.add(chatId)) {
+            return;
+        }
+        try {
+            summarizer.execute(() -> {
+                try {
+                    summarize(chatId, beforeId);
+                } catch (Exception e) {
+                    log.warn("[ContextAssembler] summary update failed, chatId={}", chatId, e);
+                } finally {
+                    summarizing.remove(chatId);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            summarizing.remove(chatId);
+            log.debug("[ContextAssembler] summary queue full, chatId={}", chatId);
+        }
+    }
+
+    /**
+     * 把上次摘要之后、beforeId 之前的消息分批并入摘要
+     */
+    private void summarize(Long chatId, long beforeId) {
+        long t0 = System.currentTimeMillis();
+        ChatSummary current = summaryMapper.findByChat(chatId);
+        String text = current == null ? "" : current.getSummary();
+        long coveredUntil = current == null ? 0L : current.getCoveredUntilId();
+        int merged = 0;
+        while (true) {
+            List<Message> batch = messageMapper.listBetween(chatId, coveredUntil, beforeId, SUMMARY_BATCH);
+            if (batch.isEmpty()) {
+                break;
+            }
+            text = chatModel.generate(summaryPrompt(text, batch)).content().text();
+            coveredUntil = batch.get(batch.size() - 1).getId();
+            ChatSummary updated = new ChatSummary();
+            updated.setChatId(chatId);
+            updated.setSummary(text);
+            updated.setCoveredUntilId(coveredUntil);
+            summaryMapper.upsert(updated);
+            merged += batch.size();
+            if (batch.size() < SUMMARY_BATCH) {
+                break;
+            }
+        }
+        if (merged > 0) {
+            log.info("[ContextAssembler] summary updated, chatId={}, mergedMsgs={}, coveredUntil={}, summaryTokens={}, costMs={}",
+                    chatId, merged, coveredUntil, estimateTokens(text), System.currentTimeMillis() - t0);
+        }
+    }
+
+    private List<ChatMessage> summaryPrompt(String summary, List<Message> batch) {
+        StringBuilder conversation = new StringBuilder();
+        for (Message msg : batch) {
+            String content = msg.getContent() == null ? "" : msg.getContent();
+            if (content.length() > MAX_SUMMARY_INPUT_CHARS) {
+                content = content.substring(0, MAX_SUMMARY_INPUT_CHARS) + "...";
+            }
+            conversation.append("user".equals(msg.getRole()) ? "User: " : "Assistant: ").append(content).append("\n\n");
+        }
+        String instructions = "You maintain a running summary of a conversation between a user and an assistant. "
+                + "Merge the new messages into the existing summary. Keep facts, user goals and preferences, decisions "
+                + "and open questions; drop greetings and document reference lists. Reply with the updated summary only, "
+                + "in the language of the conversation, in at most " + Math.max(50, summaryTokens * 3 / 4) + " words.";
+        String input = "Existing summary:\n" + (summary == null || summary.isEmpty() ? "(none)" : summary)
+                + "\n\nNew messages:\n" + conversation;
+        return List.of(SystemMessage.from(instructions), UserMessage.from(input));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        summarizer.shutdownNow();
+    }
+}
@@ -2,21 +2,61 @@ package com.example.service;
 
 import com.example.domain.User;
 import com.example.mapper.UserMapper;
+import com.example.security.JwtPrincipal;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.core.Authentication;
 import org.springframework.stereotype.Service;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 @Service
 public class CurrentUserService {
     private final UserMapper userMapper;
+    private final int cacheSize;
+    // 用户名 → id，用于不带 uid claim 的旧令牌；用户名和 id 不会变化，无需过期
+    private final LinkedHashMap<String, Long> userIds;
 
-    public CurrentUserService(UserMapper userMapper) {
+    public CurrentUserService(UserMapper userMapper,
+                              @Value("${app.security.user-id-cache.max-size:10000}") int cacheSize) {
         this.userMapper = userMapper;
+        this.cacheSize = cacheSize;
+        this.userIds = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > CurrentUserService.this.cacheSize;
+            }
+        };
+    }
+
+    /**
+     * 当前登录用户的 id：优先使用令牌中的 uid，否则按用户名查找
+     */
+    public Long requireUserId(Authentication auth) {
+        if (auth.getPrincipal() instanceof JwtPrincipal principal && principal.userId() != null) {
+            return principal.userId();
+        }
+        return requireUserIdByUsername(auth.getName());
     }
 
     public Long requireUserIdByUsername(String username) {
+        if (cacheSize > 0) {
+            synchronized (userIds) {
+                Long id = userIds.get(username);
+                if (id != null) {
+                    return id;
+                }
+            }
+        }
         User u = userMapper.findByUsername(username);
         if (u == null || u.getId() == null) {
             throw new IllegalArgumentException("用户不存在: " + username);
         }
+        if (cacheSize > 0) {
+            synchronized (userIds) {
+                userIds.put(username, u.getId());
+            }
+        }
         return u.getId();
     }
 }
@@ -1,13 +1,23 @@
 package com.example.service;
 
 import com.example.domain.Document;
+import com.example.domain.IndexJob;
 import com.example.mapper.DocumentMapper;
+import com.example.store.DocumentTextStore;
+import com.example.store.IndexManifest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
 import org.springframework.util.FileSystemUtils;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -17,17 +27,34 @@ import java.util.UUID;
 @Service
 public class DocumentService {
     private final DocumentMapper documentMapper;
+    private final IndexJobService indexJobService;
     private final RagService ragService;
+    private final IndexManifest indexManifest;
+    private final DocumentTextStore textStore;
+    private static final Logger log = LoggerFactory.getLogger(DocumentService.class);
+    private static final MediaType TEXT_UTF8 = new MediaType("text", "plain", StandardCharsets.UTF_8);
 
     @Value("${app.rag.upload-dir}")
     private String uploadDir;
 
-    public DocumentService(DocumentMapper documentMapper, RagService ragService) {
+    /**
+     * 上传结果：文档记录以及排队中的索引任务（不支持索引的格式为 null）
+     */
+    public record UploadResult(Document document, IndexJob job) {}
+
+    public DocumentService(DocumentMapper documentMapper, IndexJobService indexJobService, RagService ragService,
+                           IndexManifest indexManifest, DocumentTextStore textStore) {
         this.documentMapper = documentMapper;
+        this.indexJobService = indexJobService;
         this.ragService = ragService;
+        this.indexManifest = indexManifest;
+        this.textStore = textStore;
     }
 
-    public Document upload(Long userId, String title, MultipartFile file) throws IOException {
+    /**
+     * 保存文件并登记索引任务，索引在后台执行，可通过 {@link #indexStatus} 查询进度
+     */
+    public UploadResult upload(Long userId, String title, MultipartFile file) throws IOException {
         Path root = Paths.get(uploadDir);
         Files.createDirectories(root);
         String storedName = UUID.randomUUID() + "_" + file.getOriginalFilename();
@@ -43,53 +70,72 @@ public class DocumentService {
         doc.setCreatedBy(userId);
         documentMapper.insert(doc);
         
-        // 根据文件类型自动选择解析器并索引
-        try {
-            indexDocumentByType(dest, file.getOriginalFilename(), file.getContentType());
-        } catch (Exception e) {
-            // 记录错误但不影响文件上传
-            org.slf4j.LoggerFactory.getLogger(DocumentService.class)
-                .warn("Failed to index document: " + file.getOriginalFilename(), e);
+        // 根据文件类型登记索引任务，由后台线程解析并向量化
+        IndexJob job = null;
+        String fileType = RagService.fileType(file.getOriginalFilename(), file.getContentType());
+        if (fileType != null) {
+            job = indexJobService.enqueue(doc, fileType, IndexJob.INDEX);
         }
         
-        return doc;
+        return new UploadResult(doc, job);
     }
 
-    private void indexDocumentByType(Path filePath, String filename, String contentType) throws IOException {
-        if (filename == null) {
-            return;
+    /**
+     * 索引队列是否还能接收新任务（上传和重新索引前检查）
+     */
+    public boolean canAcceptIndexJob() {
+        return indexJobService.hasCapacity();
+    }
+
+    /**
+     * 文档最近一次索引任务的状态，没有任务时返回 null
+     */
+    public IndexJob indexStatus(Long id) {
+        return indexJobService.latestForDocument(id);
+    }
+
+    /**
+     * 重新索引文档：新片段写入时原子替换旧片段
+     * @return 排队的任务；文档不存在或格式不支持索引时返回 null
+     */
+    public IndexJob reindex(Long id) {
+        Document doc = documentMapper.findById(id);
+        if (doc == null || doc.getStoragePath() == null) {
+            return null;
         }
-        
-        String lowerFilename = filename.toLowerCase();
-        
-        // 根据文件扩展名和 content type 判断文件类型
-        if (lowerFilename.endsWith(".pdf") || "application/pdf".equalsIgnoreCase(contentType)) {
-            ragService.indexPdf(filePath);
-        } else if (lowerFilename.endsWith(".txt") || "text/plain".equalsIgnoreCase(contentType)) {
-            ragService.indexText(filePath);
-        } else if (lowerFilename.endsWith(".md") || lowerFilename.endsWith(".markdown") || 
-                   "text/markdown".equalsIgnoreCase(contentType)) {
-            ragService.indexText(filePath);
-        } else if (lowerFilename.endsWith(".html") || lowerFilename.endsWith(".htm") || 
-                   "text/html".equalsIgnoreCase(contentType)) {
-            ragService.indexHtml(filePath);
-        } else if (lowerFilename.endsWith(".doc") || 
-                   "application/msword".equalsIgnoreCase(contentType)) {
-            ragService.indexWord(filePath);
-        } else if (lowerFilename.endsWith(".docx") || 
-                   "application/vnd.openxmlformats-officedocument.wordprocessingml.document".equalsIgnoreCase(contentType)) {
-            ragService.indexWord(filePath);
+        String fileType = RagService.fileType(doc.getFilename(), doc.getContentType());
+        if (fileType == null) {
+            return null;
         }
-        // 其他格式暂不支持索引，但文件可以上传
+        return indexJobService.enqueue(doc, fileType, IndexJob.REINDEX);
     }
 
+    /**
+     * 删除文档：先从向量库移除该文档的全部片段，再删除文件和数据库记录（片段记录级联删除）；
+     * 没有其他文档使用同一内容时一并删除提取文本
+     */
     public boolean delete(Long id) throws IOException {
         Document doc = documentMapper.findById(id);
         if (doc == null) return false;
         if (doc.getStoragePath() != null) {
-            FileSystemUtils.deleteRecursively(Path.of(doc.getStoragePath()));
+            Path path = Path.of(doc.getStoragePath());
+            List<String> segmentIds = indexJobService.segmentsOf(id, path);
+            if (!segmentIds.isEmpty()) {
+                ragService.removeSegments(segmentIds);
+            } else {
+                ragService.removeSegmentsBySource(path.getFileName().toString());
+            }
+            if (indexManifest.remove(path) != null) {
+                indexManifest.save();
+            }
+            FileSystemUtils.deleteRecursively(path);
         }
-        return documentMapper.deleteById(id) > 0;
+        boolean deleted = documentMapper.deleteById(id) > 0;
+        String sha = doc.getContentSha256();
+        if (sha != null && documentMapper.countByContentSha256(sha) == 0) {
+            textStore.delete(sha);
+        }
+        return deleted;
     }
 
     public List<Document> list() {
@@ -101,10 +147,18 @@ public class DocumentService {
     }
     
     /**
-     * 读取文档内容（简单实现，返回文本）
-     * 对于PDF和Word文档，需要额外处理
+     * 预览内容：文件资源（支持按 Range 读取）、媒体类型以及用作 ETag 的内容哈希
+     */
+    public record DocumentContent(Resource body, MediaType contentType, String etag) {}
+
+    /**
+     * 读取文档的文本内容用于预览
+     * <p>
+     * TEXT / HTML 直接返回原文件；PDF / Word 返回索引时保存的提取文本，
+     * 旁路文件不存在时（如旧文档）解析一次并保存，之后的预览不再解析。
+     * @return 文档或文件不存在时返回 null
      */
-    public String getDocumentContent(Long id) throws IOException {
+    public DocumentContent getDocumentContent(Long id) throws IOException {
         Document doc = documentMapper.findById(id);
         if (doc == null || doc.getStoragePath() == null) {
             return null;
@@ -115,58 +169,25 @@ public class DocumentService {
             return null;
         }
         
-        String filename = doc.getFilename().toLowerCase();
-        
-        // 根据文件类型读取内容
-        if (filename.endsWith(".txt") || filename.endsWith(".md") || filename.endsWith(".html") || filename.endsWith(".htm")) {
-            // 文本文件直接读取
-            return Files.readString(filePath);
-        } else if (filename.endsWith(".pdf")) {
-            // PDF 使用 Apache PDFBox 解析
-            return extractPdfText(filePath);
-        } else if (filename.endsWith(".doc") || filename.endsWith(".docx")) {
-            // Word 使用 Apache POI 解析
-            return extractWordText(filePath);
+        String fileType = RagService.fileType(doc.getFilename(), doc.getContentType());
+        if (fileType == null) {
+            return new DocumentContent(new ByteArrayResource("不支持预览此文件类型".getBytes(StandardCharsets.UTF_8)),
+                    TEXT_UTF8, null);
         }
-        
-        return "不支持预览此文件类型";
-    }
-    
-    private String extractPdfText(Path pdfPath) throws IOException {
-        try {
-            org.apache.pdfbox.pdmodel.PDDocument document = org.apache.pdfbox.pdmodel.PDDocument.load(pdfPath.toFile());
-            org.apache.pdfbox.text.PDFTextStripper stripper = new org.apache.pdfbox.text.PDFTextStripper();
-            String text = stripper.getText(document);
-            document.close();
-            return text;
-        } catch (Exception e) {
-            throw new IOException("PDF解析失败: " + e.getMessage(), e);
+        String sha = indexJobService.contentSha256(id, filePath);
+        if (!IndexJobService.needsTextSidecar(fileType)) {
+            // 文本文件直接返回
+            return new DocumentContent(new FileSystemResource(filePath), TEXT_UTF8, sha);
         }
-    }
-    
-    private String extractWordText(Path wordPath) throws IOException {
-        try {
-            String filename = wordPath.getFileName().toString().toLowerCase();
-            if (filename.endsWith(".docx")) {
-                org.apache.poi.xwpf.usermodel.XWPFDocument document = new org.apache.poi.xwpf.usermodel.XWPFDocument(
-                    new java.io.FileInputStream(wordPath.toFile())
-                );
-                org.apache.poi.xwpf.extractor.XWPFWordExtractor extractor = new org.apache.poi.xwpf.extractor.XWPFWordExtractor(document);
-                String text = extractor.getText();
-                extractor.close();
-                return text;
-            } else {
-                org.apache.poi.hwpf.HWPFDocument document = new org.apache.poi.hwpf.HWPFDocument(
-                    new java.io.FileInputStream(wordPath.toFile())
-                );
-                org.apache.poi.hwpf.extractor.WordExtractor extractor = new org.apache.poi.hwpf.extractor.WordExtractor(document);
-                String text = extractor.getText();
-                extractor.close();
-                return text;
+        Path text = textStore.path(sha);
+        if (!Files.exists(text)) {
+            try (DocumentTextStore.Pending pending = textStore.begin(sha)) {
+                ragService.extract(filePath, fileType, pending::append);
+                text = pending.commit();
             }
-        } catch (Exception e) {
-            throw new IOException("Word文档解析失败: " + e.getMessage(), e);
+            log.info("[DocumentService] extracted text cached for preview, documentId={}, sha256={}", id, sha);
         }
+        return new DocumentContent(new FileSystemResource(text), TEXT_UTF8, sha);
     }
 }
 
@@ -0,0 +1,260 @@
+package com.example.service;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 合并向量化请求的 EmbeddingModel 包装
+ * <p>
+ * 单条输入的 embed 调用（聊天时的查询）和 embedAll 调用（索引时的片段批次）分别进入查询队列和索引队列，
+ * 调度线程按 maxBatchSize / maxWaitMillis 凑批时先取查询队列，查询不会排在大批索引输入之后；
+ * 索引队列有界，排满时 embedAll 阻塞等待，给索引侧反压。同时在途的请求数受 maxInFlight 限制，
+ * 上游繁忙时队列自然积累成更大的批次。某一批失败时对半拆分重试，只有出错的输入对应的调用失败。
+ * 底层模型可以替换为任意本地实现，便于测试。
+ */
+public class EmbeddingBatcher implements EmbeddingModel, AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(EmbeddingBatcher.class);
+
+    private record Pending(TextSegment segment, CompletableFuture<Embedding> future) {}
+
+    private final EmbeddingModel delegate;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private final Semaphore inFlight;
+    private final LinkedBlockingQueue<Pending> queryQueue = new LinkedBlockingQueue<>();
+    private final LinkedBlockingQueue<Pending> ingestQueue;
+    // 两个队列中的输入总数，调度线程据此等待任一队列有输入
+    private final Semaphore queued = new Semaphore(0);
+    private final ExecutorService senders;
+    private final Thread dispatcher;
+    private volatile boolean closed;
+
+    private final AtomicLong inputs = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * @param delegate      实际发起请求的模型
+     * @param maxBatchSize  单次请求最多包含的输入数
+     * @param maxWaitMillis 第一条输入到达后最多等待多久凑批
+     * @param maxInFlight   同时在途的底层请求数
+     * @param maxQueued     索引队列最多排队的输入数，排满时 embedAll 阻塞
+     */
+    public EmbeddingBatcher(EmbeddingModel delegate, int maxBatchSize, long maxWaitMillis, int maxInFlight, int maxQueued) {
+        this.delegate = delegate;
+        this.ingestQueue = new LinkedBlockingQueue<>(Math.max(1, maxQueued));
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxWaitMillis));
+        this.inFlight = new Semaphore(Math.max(1, maxInFlight));
+        AtomicInteger seq = new AtomicInteger();
+        this.senders = Executors.newFixedThreadPool(Math.max(1, maxInFlight), r -> {
+            Thread t = new Thread(r, "embedding-sender-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.dispatcher = new Thread(this::dispatchLoop, "embedding-batcher");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    /**
+     * 单条输入走查询队列，优先于索引输入发送
+     */
+    @Override
+    public Response<Embedding> embed(TextSegment segment) {
+        ensureOpen();
+        CompletableFuture<Embedding> future = new CompletableFuture<>();
+        queryQueue.add(new Pending(segment, future));
+        queued.release();
+        failIfClosed();
+        return Response.from(await(future));
+    }
+
+    @Override
+    public Response<Embedding> embed(String text) {
+        return embed(TextSegment.from(text));
+    }
+
+    @Override
+    public Response<List<Embedding>> embedAll(List<TextSegment> segments) {
+        ensureOpen();
+        List<CompletableFuture<Embedding>> futures = new ArrayList<>(segments.size());
+        try {
+            for (TextSegment segment : segments) {
+                CompletableFuture<Embedding> future = new CompletableFuture<>();
+                futures.add(future);
+                ingestQueue.put(new Pending(segment, future));
+                queued.release();
+                failIfClosed();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while queueing embeddings", e);
+        }
+        List<Embedding> embeddings = new ArrayList<>(futures.size());
+        for (CompletableFuture<Embedding> future : futures) {
+            embeddings.add(await(future));
+        }
+        return Response.from(embeddings);
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("EmbeddingBatcher is closed");
+        }
+    }
+
+    // 入队与 close 并发时，close 可能已清空过队列，这里补一次，避免调用方永远等不到结果
+    private void failIfClosed() {
+        if (closed) {
+            failQueued();
+        }
+    }
+
+    private static Embedding await(CompletableFuture<Embedding> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for embeddings", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException re) {
+                throw re;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    @Override
+    public int dimension() {
+        return delegate.dimension();
+    }
+
+    private void dispatchLoop() {
+        while (!closed) {
+            try {
+                queued.acquire();
+                // 先拿到发送许可再凑批：上游全忙时等待期间到达的输入会并入同一批，
+                // 第一条输入也留在队列里，等待期间到达的查询仍能排到它前面
+                inFlight.acquire();
+                List<Pending> batch = new ArrayList<>(maxBatchSize);
+                batch.add(next());
+                long deadline = System.nanoTime() + maxWaitNanos;
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    boolean available = remaining > 0
+                            ? queued.tryAcquire(remaining, TimeUnit.NANOSECONDS) : queued.tryAcquire();
+                    if (!available) {
+                        break;
+                    }
+                    batch.add(next());
+                }
+                senders.execute(() -> send(batch));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("[EmbeddingBatcher] dispatcher error", e);
+            }
+        }
+    }
+
+    // 调用前已从 queued 取得一个许可，两个队列合计至少有一条输入
+    private Pending next() {
+        Pending p = queryQueue.poll();
+        return p != null ? p : ingestQueue.poll();
+    }
+
+    private void send(List<Pending> batch) {
+        try {
+            sendOrSplit(batch);
+        } finally {
+            inFlight.release();
+        }
+    }
+
+    /**
+     * 整批失败时对半拆分重试，直到单条输入：一条超长或非法的输入不会连累同批的其他调用方
+     */
+    private void sendOrSplit(List<Pending> batch) {
+        long t0 = System.currentTimeMillis();
+        try {
+            List<TextSegment> segments = new ArrayList<>(batch.size());
+            for (Pending p : batch) {
+                segments.add(p.segment());
+            }
+            List<Embedding> embeddings = delegate.embedAll(segments).content();
+            if (embeddings == null || embeddings.size() != batch.size()) {
+                throw new IllegalStateException("Embedding model returned " + (embeddings == null ? 0 : embeddings.size())
+                        + " embeddings for " + batch.size() + " inputs");
+            }
+            // 先计数再唤醒调用方，调用方返回后读到的统计已包含本批
+            long n = inputs.addAndGet(batch.size());
+            long r = requests.incrementAndGet();
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).future().complete(embeddings.get(i));
+            }
+            log.debug("[EmbeddingBatcher] batch sent, size={}, costMs={}, totalInputs={}, totalRequests={}",
+                    batch.size(), System.currentTimeMillis() - t0, n, r);
+        } catch (Exception e) {
+            if (batch.size() == 1 || closed) {
+                log.warn("[EmbeddingBatcher] batch failed, size={} - {}", batch.size(), e.getMessage());
+                for (Pending p : batch) {
+                    p.future().completeExceptionally(e);
+                }
+                return;
+            }
+            log.debug("[EmbeddingBatcher] batch failed, splitting, size={} - {}", batch.size(), e.getMessage());
+            int mid = batch.size() / 2;
+            sendOrSplit(batch.subList(0, mid));
+            sendOrSplit(batch.subList(mid, batch.size()));
+        }
+    }
+
+    /**
+     * 累计发送的输入数
+     */
+    public long totalInputs() {
+        return inputs.get();
+    }
+
+    /**
+     * 累计调用底层模型的次数
+     */
+    public long totalRequests() {
+        return requests.get();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        dispatcher.interrupt();
+        senders.shutdownNow();
+        failQueued();
+        log.info("[EmbeddingBatcher] closed, inputs={}, requests={}", inputs.get(), requests.get());
+    }
+
+    private void failQueued() {
+        IllegalStateException closedError = new IllegalStateException("EmbeddingBatcher is closed");
+        Pending p;
+        while ((p = queryQueue.poll()) != null || (p = ingestQueue.poll()) != null) {
+            p.future().completeExceptionally(closedError);
+        }
+    }
+}
@@ -0,0 +1,451 @@
+package com.example.service;
+
+import com.example.domain.Document;
+import com.example.domain.IndexJob;
+import com.example.mapper.DocumentMapper;
+import com.example.mapper.DocumentSegmentMapper;
+import com.example.mapper.IndexJobMapper;
+import com.example.store.DocumentTextStore;
+import com.example.store.IndexManifest;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 文档索引任务队列
+ * <p>
+ * 上传只负责保存文件并登记任务，索引在独立的有界线程池中执行，失败按退避重试；
+ * 任务状态持久化在 index_jobs 表，启动同步完成后继续处理上次未完成的任务。
+ */
+@Service
+public class IndexJobService {
+    private static final Logger log = LoggerFactory.getLogger(IndexJobService.class);
+    private static final int SEGMENT_INSERT_BATCH = 500;
+
+    private final IndexJobMapper jobMapper;
+    private final DocumentMapper documentMapper;
+    private final DocumentSegmentMapper segmentMapper;
+    private final IngestionPipeline pipeline;
+    private final IndexManifest manifest;
+    private final RagService ragService;
+    private final DocumentTextStore textStore;
+    private final ThreadPoolExecutor executor;
+    // 本进程已提交到线程池、尚未结束的任务，恢复未完成任务时跳过
+    private final Set<Long> activeJobs = ConcurrentHashMap.newKeySet();
+    private final int maxAttempts;
+    private final long retryBackoffMillis;
+    private volatile boolean shuttingDown;
+
+    public IndexJobService(IndexJobMapper jobMapper, DocumentMapper documentMapper, DocumentSegmentMapper segmentMapper,
+                           IngestionPipeline pipeline, IndexManifest manifest, RagService ragService,
+                           DocumentTextStore textStore,
+                           @Value("${app.rag.jobs.workers:2}") int workers,
+                           @Value("${app.rag.jobs.queue-capacity:100}") int queueCapacity,
+                           @Value("${app.rag.jobs.max-attempts:3}") int maxAttempts,
+                           @Value("${app.rag.jobs.retry-backoff-ms:5000}") long retryBackoffMillis) {
+        this.jobMapper = jobMapper;
+        this.documentMapper = documentMapper;
+        this.segmentMapper = segmentMapper;
+        this.pipeline = pipeline;
+        this.manifest = manifest;
+        this.ragService = ragService;
+        this.textStore = textStore;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryBackoffMillis = retryBackoffMillis;
+        AtomicInteger seq = new AtomicInteger();
+        // 队列满时直接拒绝，由调用方返回 503
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+                    Thread t = new Thread(r, "index-job-" + seq.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        log.info("[IndexJobService] started, workers={}, queueCapacity={}, maxAttempts={}", workers, queueCapacity, this.maxAttempts);
+    }
+
+    /**
+     * 队列是否还有空位；上传前检查，避免文件写入后才发现无法排队
+     */
+    public boolean hasCapacity() {
+        return executor.getQueue().remainingCapacity() > 0;
+    }
+
+    /**
+     * 登记并排队一个索引任务
+     * @param fileType {@link RagService#fileType} 的返回值
+     * @param kind {@link IndexJob#INDEX} 或 {@link IndexJob#REINDEX}
+     */
+    public IndexJob enqueue(Document doc, String fileType, String kind) {
+        IndexJob job = new IndexJob();
+        job.setDocumentId(doc.getId());
+        job.setKind(kind);
+        job.setStatus(IndexJob.QUEUED);
+        job.setAttempts(0);
+        job.setChunkCount(0);
+        jobMapper.insert(job);
+        submit(job, Path.of(doc.getStoragePath()), fileType);
+        log.info("[IndexJobService] job queued, jobId={}, kind={}, documentId={}, queueSize={}",
+                job.getId(), kind, doc.getId(), executor.getQueue().size());
+        return job;
+    }
+
+    /**
+     * 文档当前在向量库中的片段 id：document_segments 与清单记录的并集。
+     * 两者正常情况下一致；旧版本的启动同步重新索引文件时只更新清单，留下过期的 document_segments，
+     * 取并集保证删除和重新索引不会漏掉清单中的片段（不存在的 id 删除时直接忽略）
+     */
+    public List<String> segmentsOf(Long documentId, Path file) {
+        Set<String> ids = new LinkedHashSet<>(segmentMapper.listByDocument(documentId));
+        if (file != null) {
+            IndexManifest.Entry entry = manifest.get(file);
+            if (entry != null) {
+                ids.addAll(entry.chunkIds());
+            }
+        }
+        return List.copyOf(ids);
+    }
+
+    /**
+     * 文档原文件内容的 SHA-256；旧记录没有时计算并写回
+     */
+    public String contentSha256(Long documentId, Path file) throws IOException {
+        Document doc = documentMapper.findById(documentId);
+        if (doc != null && doc.getContentSha256() != null) {
+            return doc.getContentSha256();
+        }
+        String sha = IndexManifest.sha256(file);
+        documentMapper.updateContentSha256(documentId, sha);
+        return sha;
+    }
+
+    /**
+     * 重新计算文件内容的 SHA-256，与记录不一致时写回：重新索引的文件可能已被替换，不能沿用记录里的值；
+     * 旧哈希不再被任何文档使用时删除其提取文本
+     */
+    private String refreshContentSha256(Long documentId, Path file) throws IOException {
+        String sha = IndexManifest.sha256(file);
+        Document doc = documentMapper.findById(documentId);
+        String previous = doc == null ? null : doc.getContentSha256();
+        if (!sha.equals(previous)) {
+            documentMapper.updateContentSha256(documentId, sha);
+            if (previous != null && documentMapper.countByContentSha256(previous) == 0) {
+                textStore.delete(previous);
+            }
+        }
+        return sha;
+    }
+
+    /**
+     * 需要保存提取文本的类型：TEXT / HTML 原文件本身就是文本，预览时直接读取
+     */
+    public static boolean needsTextSidecar(String fileType) {
+        return "PDF".equals(fileType) || "WORD".equals(fileType);
+    }
+
+    /**
+     * 文档最近一次索引任务
+     */
+    public IndexJob latestForDocument(Long documentId) {
+        return jobMapper.findLatestByDocument(documentId);
+    }
+
+    /**
+     * 文档是否有排队或执行中的任务（包括上次运行中断、待恢复的任务）
+     */
+    public boolean hasUnfinishedJob(Long documentId) {
+        IndexJob latest = jobMapper.findLatestByDocument(documentId);
+        return latest != null && !IndexJob.DONE.equals(latest.getStatus()) && !IndexJob.FAILED.equals(latest.getStatus());
+    }
+
+    /**
+     * 启动同步（RagBootstrap）完成后恢复未完成的任务；已被启动同步索引过的文件会直接标记完成
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumeUnfinished() {
+        List<IndexJob> jobs = jobMapper.listUnfinished();
+        if (jobs.isEmpty()) {
+            return;
+        }
+        log.info("[IndexJobService] resuming unfinished jobs, count={}", jobs.size());
+        for (IndexJob job : jobs) {
+            if (activeJobs.contains(job.getId())) {
+                // 启动同步刚排队的任务
+                continue;
+            }
+            Document doc = documentMapper.findById(job.getDocumentId());
+            String fileType = doc == null ? null : RagService.fileType(doc.getFilename(), doc.getContentType());
+            if (doc == null || fileType == null || doc.getStoragePath() == null || !Files.exists(Path.of(doc.getStoragePath()))) {
+                finish(job, IndexJob.FAILED, "Document file not found");
+                continue;
+            }
+            job.setStatus(IndexJob.QUEUED);
+            save(job);
+            submit(job, Path.of(doc.getStoragePath()), fileType);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // 中断的任务保持当前状态，下次启动时恢复
+        shuttingDown = true;
+        executor.shutdownNow();
+    }
+
+    private void submit(IndexJob job, Path file, String fileType) {
+        activeJobs.add(job.getId());
+        try {
+            executor.execute(() -> {
+                try {
+                    run(job, file, fileType);
+                } finally {
+                    activeJobs.remove(job.getId());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            activeJobs.remove(job.getId());
+            finish(job, IndexJob.FAILED, "Index queue is full");
+            log.warn("[IndexJobService] job rejected, jobId={}, documentId={}", job.getId(), job.getDocumentId());
+        }
+    }
+
+    private void run(IndexJob job, Path file, String fileType) {
+        while (!shuttingDown) {
+            if (documentMapper.findById(job.getDocumentId()) == null) {
+                // 文档已删除，任务记录随之级联删除
+                log.info("[IndexJobService] document deleted, job dropped, jobId={}, documentId={}", job.getId(), job.getDocumentId());
+                return;
+            }
+            synchronized (job) {
+                job.setAttempts(job.getAttempts() + 1);
+                job.setStatus(IndexJob.PARSING);
+                job.setError(null);
+                if (job.getStartedAt() == null) {
+                    job.setStartedAt(LocalDateTime.now());
+                }
+                save(job);
+            }
+            StageTimer timer = new StageTimer(job);
+            try {
+                List<String> chunkIds = index(job, file, fileType, timer);
+                synchronized (job) {
+                    job.setChunkCount(chunkIds.size());
+                    job.setStoreMs(timer.elapsedMs(IngestionPipeline.Stage.STORE));
+                }
+                finish(job, IndexJob.DONE, null);
+                log.info("[IndexJobService] job done, jobId={}, documentId={}, chunks={}, attempts={}",
+                        job.getId(), job.getDocumentId(), chunkIds.size(), job.getAttempts());
+                return;
+            } catch (Exception e) {
+                timer.discardText();
+                if (shuttingDown) {
+                    return;
+                }
+                Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+                String error = String.valueOf(cause.getMessage());
+                if (job.getAttempts() >= maxAttempts) {
+                    finish(job, IndexJob.FAILED, error);
+                    log.warn("[IndexJobService] job failed, jobId={}, documentId={}, attempts={} - {}",
+                            job.getId(), job.getDocumentId(), job.getAttempts(), error);
+                    return;
+                }
+                synchronized (job) {
+                    job.setStatus(IndexJob.QUEUED);
+                    job.setError(error);
+                    save(job);
+                }
+                long backoff = retryBackoffMillis * job.getAttempts();
+                log.warn("[IndexJobService] job attempt failed, retrying in {}ms, jobId={}, attempt={} - {}",
+                        backoff, job.getId(), job.getAttempts(), error);
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private List<String> index(IndexJob job, Path file, String fileType, StageTimer timer) throws Exception {
+        Long documentId = job.getDocumentId();
+        IndexManifest.Entry previous = manifest.get(file);
+        if (!IndexJob.REINDEX.equals(job.getKind()) && previous != null && manifest.isUnchanged(file)) {
+            // 启动同步已经索引过该文件
+            recordSegments(documentId, previous.chunkIds());
+            return previous.chunkIds();
+        }
+        String sha = IndexJob.REINDEX.equals(job.getKind())
+                ? refreshContentSha256(documentId, file) : contentSha256(documentId, file);
+        if (needsTextSidecar(fileType)) {
+            // 解析完成后把提取的文本写入旁路文件，供预览使用
+            timer.textSha256 = sha;
+        }
+        List<String> oldIds = segmentsOf(documentId, file);
+        if (oldIds.isEmpty()) {
+            // 清理上一次中断的尝试可能留下的片段
+            ragService.removeSegmentsBySource(file.getFileName().toString());
+        }
+        // 写入阶段用新片段原子替换旧片段，重新索引期间检索结果不会缺失或重复
+        IngestionPipeline.Batch batch = pipeline.newBatch("job-" + job.getId());
+        List<String> chunkIds = batch.submit(file, fileType, timer, oldIds).get();
+        batch.awaitAndReport();
+        if (documentMapper.findById(documentId) == null) {
+            // 索引期间文档已被删除
+            ragService.removeSegments(chunkIds);
+            manifest.remove(file);
+            manifest.save();
+            throw new IllegalStateException("Document deleted during indexing");
+        }
+        // 记入清单，重启时不再重复向量化
+        manifest.put(file, sha, chunkIds);
+        manifest.save();
+        recordSegments(documentId, chunkIds);
+        return chunkIds;
+    }
+
+    private void recordSegments(Long documentId, List<String> chunkIds) {
+        segmentMapper.deleteByDocument(documentId);
+        for (int from = 0; from < chunkIds.size(); from += SEGMENT_INSERT_BATCH) {
+            segmentMapper.insertBatch(documentId, chunkIds.subList(from, Math.min(from + SEGMENT_INSERT_BATCH, chunkIds.size())));
+        }
+    }
+
+    private void finish(IndexJob job, String status, String error) {
+        synchronized (job) {
+            job.setStatus(status);
+            job.setError(error == null ? null : truncate(error));
+            job.setFinishedAt(LocalDateTime.now());
+            save(job);
+        }
+    }
+
+    private void save(IndexJob job) {
+        try {
+            jobMapper.update(job);
+        } catch (Exception e) {
+            log.warn("[IndexJobService] failed to persist job state, jobId={} - {}", job.getId(), e.getMessage());
+        }
+    }
+
+    private static String truncate(String s) {
+        return s.length() <= 1024 ? s : s.substring(0, 1024);
+    }
+
+    /**
+     * 根据流水线阶段回调更新任务状态并记录各阶段耗时
+     */
+    private final class StageTimer implements IngestionPipeline.StageListener {
+        private final IndexJob job;
+        private final long[] enteredNanos = new long[IngestionPipeline.Stage.values().length];
+        volatile String textSha256;
+        // 以下字段由 this 保护
+        private DocumentTextStore.Pending pendingText;
+        private boolean textFailed;
+
+        StageTimer(IndexJob job) {
+            this.job = job;
+        }
+
+        @Override
+        public void onStage(IngestionPipeline.Stage stage) {
+            long now = System.nanoTime();
+            enteredNanos[stage.ordinal()] = now;
+            synchronized (job) {
+                switch (stage) {
+                    case EMBED -> {
+                        job.setParseMs(between(IngestionPipeline.Stage.PARSE, now));
+                        job.setStatus(IndexJob.EMBEDDING);
+                        save(job);
+                    }
+                    case STORE -> {
+                        long embedStart = enteredNanos[IngestionPipeline.Stage.EMBED.ordinal()];
+                        if (embedStart > 0) {
+                            job.setEmbedMs((now - embedStart) / 1_000_000);
+                        } else {
+                            job.setParseMs(between(IngestionPipeline.Stage.PARSE, now));
+                        }
+                    }
+                    default -> {
+                    }
+                }
+            }
+        }
+
+        @Override
+        public synchronized void onText(String text) {
+            if (textSha256 == null || textFailed || text == null || text.isEmpty()) {
+                return;
+            }
+            try {
+                if (pendingText == null) {
+                    pendingText = textStore.begin(textSha256);
+                }
+                pendingText.append(text);
+            } catch (IOException e) {
+                log.warn("[IndexJobService] failed to save extracted text, jobId={} - {}", job.getId(), e.getMessage());
+                discardText();
+            }
+        }
+
+        @Override
+        public synchronized void onParsed() {
+            if (textSha256 == null || textFailed) {
+                return;
+            }
+            try {
+                if (pendingText == null) {
+                    pendingText = textStore.begin(textSha256);
+                }
+                pendingText.commit();
+                pendingText = null;
+            } catch (IOException e) {
+                log.warn("[IndexJobService] failed to save extracted text, jobId={} - {}", job.getId(), e.getMessage());
+                discardText();
+            }
+        }
+
+        /**
+         * 放弃写了一半的文本（解析失败或任务失败时调用）
+         */
+        synchronized void discardText() {
+            textFailed = true;
+            if (pendingText == null) {
+                return;
+            }
+            try {
+                pendingText.close();
+            } catch (IOException e) {
+                log.debug("[IndexJobService] failed to discard partial text", e);
+            }
+            pendingText = null;
+        }
+
+        private Long between(IngestionPipeline.Stage from, long now) {
+            long start = enteredNanos[from.ordinal()];
+            return start == 0 ? null : (now - start) / 1_000_000;
+        }
+
+        Long elapsedMs(IngestionPipeline.Stage from) {
+            return between(from, System.nanoTime());
+        }
+    }
+}
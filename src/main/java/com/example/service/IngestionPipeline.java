@@ -0,0 +1,440 @@
+package com.example.service;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 文档索引流水线：解析并分割 → 批量向量化 → 写入
+ * <p>
+ * 每个阶段有独立的线程池和有界队列，下游队列满时上游线程阻塞等待，形成背压；
+ * 解析线程从文件流式提取文本并逐窗口分割，每攒够 embed-batch-size 个片段就交给向量化阶段，
+ * 不在内存中保留整篇文本；向量化阶段按 embed-requests-per-second 限速。
+ * 通过 {@link #newBatch(String)} 提交一组文件，结束时输出各阶段吞吐量。
+ */
+@Service
+public class IngestionPipeline {
+    private static final Logger log = LoggerFactory.getLogger(IngestionPipeline.class);
+
+    private final RagService ragService;
+    private final ThreadPoolExecutor parsePool;
+    private final ThreadPoolExecutor embedPool;
+    private final ThreadPoolExecutor storePool;
+    private final int embedBatchSize;
+    private final RateLimiter embedRateLimiter;
+    private final MeterRegistry meterRegistry;
+
+    public IngestionPipeline(RagService ragService, MeterRegistry meterRegistry,
+                             @Value("${app.rag.ingest.parse-threads:0}") int parseThreads,
+                             @Value("${app.rag.ingest.embed-threads:4}") int embedThreads,
+                             @Value("${app.rag.ingest.queue-capacity:64}") int queueCapacity,
+                             @Value("${app.rag.ingest.embed-batch-size:64}") int embedBatchSize,
+                             @Value("${app.rag.ingest.embed-requests-per-second:0}") double embedRequestsPerSecond) {
+        this.ragService = ragService;
+        // parse-threads 为 0 时使用全部 CPU 核
+        int parse = parseThreads > 0 ? parseThreads : Runtime.getRuntime().availableProcessors();
+        this.parsePool = newStagePool("ingest-parse", parse, queueCapacity);
+        this.embedPool = newStagePool("ingest-embed", embedThreads, queueCapacity);
+        this.storePool = newStagePool("ingest-store", 1, queueCapacity);
+        this.embedBatchSize = Math.max(1, embedBatchSize);
+        this.embedRateLimiter = new RateLimiter(embedRequestsPerSecond);
+        this.meterRegistry = meterRegistry;
+        log.info("[IngestionPipeline] started, parseThreads={}, embedThreads={}, queueCapacity={}, embedBatchSize={}, embedRps={}",
+                parse, embedThreads, queueCapacity, this.embedBatchSize, embedRequestsPerSecond);
+    }
+
+    private static ThreadPoolExecutor newStagePool(String name, int threads, int queueCapacity) {
+        AtomicInteger seq = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread t = new Thread(r, name + "-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        // 队列满时让提交方阻塞等待，而不是丢弃或在提交线程上执行
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), factory, (r, executor) -> {
+                    if (executor.isShutdown()) {
+                        throw new RejectedExecutionException(name + " is shut down");
+                    }
+                    try {
+                        executor.getQueue().put(r);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException(e);
+                    }
+                });
+    }
+
+    /**
+     * 流水线阶段
+     */
+    public enum Stage { PARSE, EMBED, STORE }
+
+    /**
+     * 文件进入各阶段时的回调，用于记录索引任务进度；在流水线线程上调用，应尽快返回
+     */
+    public interface StageListener {
+        void onStage(Stage stage);
+
+        /**
+         * 解析阶段每提取出一段文本调用一次（按文件顺序），可用于保存提取出的文本
+         */
+        default void onText(String text) {
+        }
+
+        /**
+         * 文本全部提取完成后调用
+         */
+        default void onParsed() {
+        }
+    }
+
+    public Batch newBatch(String name) {
+        return new Batch(name);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (ExecutorService pool : List.of(parsePool, embedPool, storePool)) {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * 单个文件在流水线中的状态
+     */
+    private static final class Job {
+        final Path file;
+        final String fileType;
+        final Batch batch;
+        final StageListener listener;
+        final Collection<String> replaces;
+        final CompletableFuture<List<String>> future = new CompletableFuture<>();
+        final long startNanos = System.nanoTime();
+        long fileSize;
+        // 已提交向量化的批次及其结果，按片段顺序排列，由 job 自身加锁保护
+        final List<List<TextSegment>> segmentBatches = new ArrayList<>();
+        final List<List<Embedding>> embeddingBatches = new ArrayList<>();
+        // 未完成的向量化批次数，解析阶段本身也占一个，归零时进入写入阶段
+        final AtomicInteger pending = new AtomicInteger(1);
+
+        Job(Path file, String fileType, Batch batch, StageListener listener, Collection<String> replaces) {
+            this.file = file;
+            this.fileType = fileType;
+            this.batch = batch;
+            this.listener = listener;
+            this.replaces = replaces;
+        }
+    }
+
+    /**
+     * 一组一起提交的文件，负责汇总各阶段的统计信息
+     */
+    public final class Batch {
+        private final String name;
+        private final long startNanos = System.nanoTime();
+        private final List<CompletableFuture<List<String>>> futures = new ArrayList<>();
+        private final StageStats parse = new StageStats("parse");
+        private final StageStats embed = new StageStats("embed");
+        private final StageStats store = new StageStats("store");
+        private final AtomicInteger failed = new AtomicInteger();
+
+        private Batch(String name) {
+            this.name = name;
+        }
+
+        /**
+         * 提交一个文件
+         * @param fileType {@link RagService#fileType} 的返回值
+         * @return 完成时给出写入向量库的片段 id
+         */
+        public CompletableFuture<List<String>> submit(Path file, String fileType) {
+            return submit(file, fileType, null);
+        }
+
+        /**
+         * 提交一个文件，并在其进入各阶段时回调 listener
+         */
+        public CompletableFuture<List<String>> submit(Path file, String fileType, StageListener listener) {
+            return submit(file, fileType, listener, null);
+        }
+
+        /**
+         * 提交一个文件，写入阶段用新片段原子替换 replaces 中的旧片段（为空时直接写入）
+         */
+        public CompletableFuture<List<String>> submit(Path file, String fileType, StageListener listener,
+                                                      Collection<String> replaces) {
+            Job job = new Job(file, fileType, this, listener, replaces);
+            synchronized (futures) {
+                futures.add(job.future);
+            }
+            try {
+                parsePool.execute(() -> runParse(job));
+            } catch (RejectedExecutionException e) {
+                fail(job, e);
+            }
+            return job.future;
+        }
+
+        /**
+         * 等待本批所有文件处理完成（无论成功失败）并输出吞吐量报告
+         */
+        public void awaitAndReport() {
+            List<CompletableFuture<List<String>>> all;
+            synchronized (futures) {
+                all = new ArrayList<>(futures);
+            }
+            try {
+                CompletableFuture.allOf(all.toArray(new CompletableFuture[0])).exceptionally(e -> null).join();
+            } catch (Exception ignored) {
+                // 单个文件的失败由各自的 future 反映
+            }
+            double wallSec = Math.max(1e-3, (System.nanoTime() - startNanos) / 1e9);
+            log.info("[IngestionPipeline] batch {} done, docs={}, failed={}, chunks={}, wallMs={}, docs/s={}, chunks/s={}",
+                    name, all.size(), failed.get(), store.chunks.get(), Math.round(wallSec * 1000),
+                    String.format("%.2f", store.items.get() / wallSec), String.format("%.1f", store.chunks.get() / wallSec));
+            for (StageStats stats : List.of(parse, embed, store)) {
+                stats.report(name, wallSec);
+            }
+        }
+    }
+
+    /**
+     * 阶段统计：处理的文档数、片段数以及线程累计耗时
+     */
+    private static final class StageStats {
+        final String stage;
+        final AtomicLong items = new AtomicLong();
+        final AtomicLong chunks = new AtomicLong();
+        final AtomicLong busyNanos = new AtomicLong();
+
+        StageStats(String stage) {
+            this.stage = stage;
+        }
+
+        void record(int docs, int segments, long startNanos) {
+            items.addAndGet(docs);
+            chunks.addAndGet(segments);
+            busyNanos.addAndGet(System.nanoTime() - startNanos);
+        }
+
+        void report(String batch, double wallSec) {
+            double busySec = busyNanos.get() / 1e9;
+            log.info("[IngestionPipeline] batch {} stage {}, docs={}, chunks={}, busyMs={}, docs/s={}, chunks/s={}",
+                    batch, stage, items.get(), chunks.get(), Math.round(busySec * 1000),
+                    String.format("%.2f", items.get() / wallSec), String.format("%.1f", chunks.get() / wallSec));
+        }
+    }
+
+    // ---------------------------------------------------------------- 各阶段
+
+    private void runParse(Job job) {
+        long t0 = System.nanoTime();
+        try {
+            notifyStage(job, Stage.PARSE);
+            job.fileSize = Files.size(job.file);
+            List<TextSegment> batch = new ArrayList<>(embedBatchSize);
+            StreamingSplitter splitter = ragService.newSplitter(job.file, job.fileType, segment -> {
+                batch.add(segment);
+                if (batch.size() >= embedBatchSize) {
+                    dispatchEmbed(job, new ArrayList<>(batch));
+                    batch.clear();
+                }
+            });
+            ragService.extract(job.file, job.fileType, text -> {
+                if (job.future.isDone()) {
+                    // 已有向量化批次失败，不必继续解析
+                    throw new IOException("index aborted");
+                }
+                notifyText(job, text);
+                splitter.append(text);
+            });
+            int segments = splitter.finish();
+            if (!batch.isEmpty()) {
+                dispatchEmbed(job, new ArrayList<>(batch));
+            }
+            job.batch.parse.record(1, segments, t0);
+            recordStage(job, "parse", t0);
+            Counter.builder("ingest.segments").tag("file.type", job.fileType).register(meterRegistry).increment(segments);
+            notifyParsed(job);
+            if (segments > 0) {
+                notifyStage(job, Stage.EMBED);
+            }
+            if (job.pending.decrementAndGet() == 0) {
+                storePool.execute(() -> runStore(job));
+            }
+        } catch (Exception e) {
+            fail(job, e);
+        }
+    }
+
+    private void dispatchEmbed(Job job, List<TextSegment> segments) {
+        int slot;
+        synchronized (job) {
+            slot = job.segmentBatches.size();
+            job.segmentBatches.add(segments);
+            job.embeddingBatches.add(null);
+        }
+        job.pending.incrementAndGet();
+        // 向量化队列满时在这里阻塞，解析随之放慢
+        embedPool.execute(() -> runEmbed(job, slot, segments));
+    }
+
+    private void runEmbed(Job job, int slot, List<TextSegment> segments) {
+        if (job.future.isDone()) {
+            return;
+        }
+        try {
+            embedRateLimiter.acquire();
+            long t0 = System.nanoTime();
+            List<Embedding> embeddings = ragService.embed(segments);
+            synchronized (job) {
+                job.embeddingBatches.set(slot, embeddings);
+            }
+            boolean last = job.pending.decrementAndGet() == 0;
+            job.batch.embed.record(last ? 1 : 0, segments.size(), t0);
+            recordStage(job, "embed", t0);
+            if (last) {
+                storePool.execute(() -> runStore(job));
+            }
+        } catch (Exception e) {
+            fail(job, e);
+        }
+    }
+
+    private void runStore(Job job) {
+        long t0 = System.nanoTime();
+        try {
+            notifyStage(job, Stage.STORE);
+            List<TextSegment> segments = new ArrayList<>();
+            List<Embedding> embeddings = new ArrayList<>();
+            synchronized (job) {
+                job.segmentBatches.forEach(segments::addAll);
+                job.embeddingBatches.forEach(embeddings::addAll);
+                job.segmentBatches.clear();
+                job.embeddingBatches.clear();
+            }
+            List<String> ids = job.replaces == null || job.replaces.isEmpty()
+                    ? ragService.store(embeddings, segments)
+                    : ragService.replace(job.replaces, embeddings, segments);
+            job.batch.store.record(1, ids.size(), t0);
+            recordStage(job, "store", t0);
+            countDocument(job, "indexed");
+            log.info("[IngestionPipeline] indexed {}, path={}, bytes={}, segments={}, costMs={}",
+                    job.fileType, job.file, job.fileSize, ids.size(), (System.nanoTime() - job.startNanos) / 1_000_000);
+            job.future.complete(ids);
+        } catch (Exception e) {
+            fail(job, e);
+        }
+    }
+
+    private static void notifyStage(Job job, Stage stage) {
+        if (job.listener == null) {
+            return;
+        }
+        try {
+            job.listener.onStage(stage);
+        } catch (Exception e) {
+            log.warn("[IngestionPipeline] stage listener failed: {} - {}", job.file, e.getMessage());
+        }
+    }
+
+    private static void notifyText(Job job, String text) {
+        if (job.listener == null) {
+            return;
+        }
+        try {
+            job.listener.onText(text);
+        } catch (Exception e) {
+            log.warn("[IngestionPipeline] text listener failed: {} - {}", job.file, e.getMessage());
+        }
+    }
+
+    private static void notifyParsed(Job job) {
+        if (job.listener == null) {
+            return;
+        }
+        try {
+            job.listener.onParsed();
+        } catch (Exception e) {
+            log.warn("[IngestionPipeline] parse listener failed: {} - {}", job.file, e.getMessage());
+        }
+    }
+
+    /**
+     * 按阶段和文件类型记录耗时；embed 阶段每批记录一次，其余阶段每个文件一次
+     */
+    private void recordStage(Job job, String stage, long startNanos) {
+        Timer.builder("ingest.stage")
+                .tag("stage", stage)
+                .tag("file.type", job.fileType)
+                .description("Time spent in one ingestion stage")
+                .register(meterRegistry)
+                .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void countDocument(Job job, String outcome) {
+        Counter.builder("ingest.documents").tag("file.type", job.fileType).tag("outcome", outcome)
+                .register(meterRegistry).increment();
+    }
+
+    private void fail(Job job, Throwable e) {
+        if (job.future.completeExceptionally(e)) {
+            job.batch.failed.incrementAndGet();
+            countDocument(job, "failed");
+            log.warn("[IngestionPipeline] index failed: {} - {}", job.file, e.getMessage());
+            log.debug("[IngestionPipeline] index error details", e);
+        }
+    }
+
+    /**
+     * 简单的匀速限流器，permitsPerSecond 小于等于 0 时不限速
+     */
+    private static final class RateLimiter {
+        private final long intervalNanos;
+        private long nextFreeNanos = System.nanoTime();
+
+        RateLimiter(double permitsPerSecond) {
+            this.intervalNanos = permitsPerSecond > 0 ? (long) (1_000_000_000L / permitsPerSecond) : 0;
+        }
+
+        void acquire() throws InterruptedException {
+            if (intervalNanos == 0) {
+                return;
+            }
+            long waitNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                long slot = Math.max(now, nextFreeNanos);
+                nextFreeNanos = slot + intervalNanos;
+                waitNanos = slot - now;
+            }
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.example.service;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.text.Normalizer;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Pattern;
+
+/**
+ * 查询向量缓存：规范化后的问题 → embedding
+ * <p>
+ * 规范化只用于生成缓存键，向量化的仍是用户的原始问题（缩写、错误码等大小写敏感的词保持原样）。
+ * LRU 淘汰加 TTL 过期，命中时不再调用向量化接口；同一问题并发未命中时只发起一次请求。
+ * 命中/未命中次数通过 Micrometer 的 rag.query.embedding.cache 计数器暴露。
+ */
+@Service
+public class QueryEmbeddingCache {
+    private static final Logger log = LoggerFactory.getLogger(QueryEmbeddingCache.class);
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private record Entry(CompletableFuture<Embedding> future, long createdNanos) {}
+
+    private final EmbeddingModel embeddingModel;
+    private final int maxSize;
+    private final long ttlNanos;
+    private final LinkedHashMap<String, Entry> entries;
+    private final Counter hits;
+    private final Counter misses;
+    private final Timer embedTimer;
+
+    public QueryEmbeddingCache(EmbeddingModel embeddingModel, MeterRegistry meterRegistry,
+                               @Value("${app.rag.query-cache.max-size:10000}") int maxSize,
+                               @Value("${app.rag.query-cache.ttl-minutes:60}") long ttlMinutes) {
+        this.embeddingModel = embeddingModel;
+        this.maxSize = maxSize;
+        this.ttlNanos = ttlMinutes * 60_000_000_000L;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > QueryEmbeddingCache.this.maxSize;
+            }
+        };
+        this.hits = Counter.builder("rag.query.embedding.cache").tag("result", "hit").register(meterRegistry);
+        this.misses = Counter.builder("rag.query.embedding.cache").tag("result", "miss").register(meterRegistry);
+        Gauge.builder("rag.query.embedding.cache.size", this, QueryEmbeddingCache::size).register(meterRegistry);
+        this.embedTimer = Timer.builder("rag.embed").tag("kind", "query")
+                .description("Embedding call for a user query (cache misses only)")
+                .register(meterRegistry);
+        log.info("[QueryEmbeddingCache] maxSize={}, ttlMinutes={}", maxSize, ttlMinutes);
+    }
+
+    /**
+     * 规范化问题文本：Unicode NFKC、去除首尾空白、合并连续空白并转小写
+     */
+    static String normalize(String query) {
+        if (query == null) {
+            return "";
+        }
+        String s = Normalizer.normalize(query, Normalizer.Form.NFKC).strip();
+        return WHITESPACE.matcher(s).replaceAll(" ").toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * 返回问题的 embedding，优先使用缓存
+     */
+    public Embedding embed(String query) {
+        String key = normalize(query);
+        if (maxSize <= 0) {
+            misses.increment();
+            return embedTimer.record(() -> embeddingModel.embed(query).content());
+        }
+        CompletableFuture<Embedding> future;
+        boolean owner = false;
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && System.nanoTime() - entry.createdNanos() > ttlNanos) {
+                entries.remove(key);
+                entry = null;
+            }
+            if (entry == null) {
+                entry = new Entry(new CompletableFuture<>(), System.nanoTime());
+                entries.put(key, entry);
+                owner = true;
+            }
+            future = entry.future();
+        }
+        if (owner) {
+            misses.increment();
+            try {
+                future.complete(embedTimer.record(() -> embeddingModel.embed(query).content()));
+            } catch (RuntimeException e) {
+                // 失败的结果不缓存，等待同一问题的其他请求也一起失败
+                synchronized (entries) {
+                    entries.remove(key);
+                }
+                future.completeExceptionally(e);
+                throw e;
+            }
+        } else {
+            hits.increment();
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for query embedding", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException re) {
+                throw re;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+}
@@ -1,8 +1,6 @@
 package com.example.service;
 
-import dev.langchain4j.data.document.Document;
-import dev.langchain4j.data.document.DocumentSplitter;
-import dev.langchain4j.data.document.splitter.DocumentSplitters;
+import dev.langchain4j.data.document.Metadata;
 import dev.langchain4j.data.embedding.Embedding;
 import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.data.message.AiMessage;
@@ -13,142 +11,381 @@ import dev.langchain4j.model.chat.ChatLanguageModel;
 import dev.langchain4j.model.chat.StreamingChatLanguageModel;
 import dev.langchain4j.model.StreamingResponseHandler;
 import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import dev.langchain4j.model.output.TokenUsage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import java.util.ArrayList;
 import dev.langchain4j.store.embedding.EmbeddingStore;
-import dev.langchain4j.store.embedding.EmbeddingStoreIngestor;
-import dev.langchain4j.data.document.parser.apache.pdfbox.ApachePdfBoxDocumentParser;
 import dev.langchain4j.store.embedding.EmbeddingMatch;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.text.PDFTextStripper;
 import org.apache.poi.hwpf.HWPFDocument;
 import org.apache.poi.hwpf.extractor.WordExtractor;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
 import org.apache.poi.xwpf.usermodel.XWPFDocument;
 import org.apache.poi.xwpf.extractor.XWPFWordExtractor;
-import com.example.mapper.MessageMapper;
-import com.example.domain.Message;
+import com.example.store.Bm25Index;
+import com.example.store.ReplaceableEmbeddingStore;
+import com.example.tracing.Spans;
+import io.micrometer.tracing.Span;
+import io.micrometer.tracing.Tracer;
 
-import java.io.ByteArrayInputStream;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Collection;
 import java.util.List;
 import java.util.Set;
 import java.util.LinkedHashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import static dev.langchain4j.store.embedding.filter.MetadataFilterBuilder.metadataKey;
+
 @Service
 public class RagService {
     
-    /**
-     * RAG上下文信息，包含系统提示词和引用文档列表
-     */
-    private static class RagContextInfo {
-        String systemPrompt;
-        Set<String> references;
-        
-        RagContextInfo(String systemPrompt, Set<String> references) {
-            this.systemPrompt = systemPrompt;
-            this.references = references;
-        }
-    }
-    
     private final ChatLanguageModel chatModel;
     private final StreamingChatLanguageModel streamingChatModel;
     private final EmbeddingModel embeddingModel;
     private final EmbeddingStore<TextSegment> embeddingStore;
-    private final MessageMapper messageMapper;
+    private final QueryEmbeddingCache queryEmbeddings;
+    private final SemanticAnswerCache answerCache;
+    private final ContextAssembler contextAssembler;
+    private final Bm25Index lexicalIndex;
     private static final Logger log = LoggerFactory.getLogger(RagService.class);
     
-    // 历史消息数量限制，避免token过多
-    private static final int MAX_HISTORY_MESSAGES = 10;
+    // 回放缓存回答时每段的最大字符数
+    private static final int REPLAY_CHUNK_CHARS = 4;
+    // 流式读取文本文件时每次读取的字符数
+    private static final int READ_CHUNK_CHARS = 16 * 1024;
+
+    private final long pdfMaxMainMemoryBytes;
+    private final MeterRegistry meterRegistry;
+    private final Timer indexEmbedTimer;
+    private final Timer searchTimer;
+    private final Timer lexicalSearchTimer;
+    private final Spans spans;
+
+    // 混合检索：BM25 与向量检索结果按倒数排名融合；查询向量化超时或失败时只用 BM25 结果
+    private final boolean hybridEnabled;
+    private final int rrfK;
+    private final long embedTimeoutMs;
+    private final long embedCooldownMs;
+    private final ExecutorService queryEmbedExecutor;
+    // 在此时间（毫秒）之前不调用查询向量化，直接走词法检索
+    private volatile long embedSkipUntil;
+
+    // 指标中的 endpoint 标签：非流式发送 / 流式发送
+    static final String ENDPOINT_SEND = "send";
+    static final String ENDPOINT_STREAM = "stream";
 
     public RagService(ChatLanguageModel chatModel, StreamingChatLanguageModel streamingChatModel, 
                       EmbeddingModel embeddingModel, EmbeddingStore<TextSegment> embeddingStore,
-                      MessageMapper messageMapper) {
+                      QueryEmbeddingCache queryEmbeddings, SemanticAnswerCache answerCache,
+                      ContextAssembler contextAssembler, Bm25Index lexicalIndex, MeterRegistry meterRegistry, Spans spans,
+                      @Value("${app.rag.ingest.pdf-max-main-memory-mb:16}") long pdfMaxMainMemoryMb,
+                      @Value("${app.rag.hybrid.enabled:true}") boolean hybridEnabled,
+                      @Value("${app.rag.hybrid.rrf-k:60}") int rrfK,
+                      @Value("${app.rag.hybrid.embed-timeout-ms:2000}") long embedTimeoutMs,
+                      @Value("${app.rag.hybrid.embed-cooldown-ms:30000}") long embedCooldownMs,
+                      @Value("${app.rag.hybrid.embed-threads:4}") int embedThreads,
+                      @Value("${app.rag.hybrid.embed-queue-capacity:64}") int embedQueueCapacity) {
         this.chatModel = chatModel;
         this.streamingChatModel = streamingChatModel;
         this.embeddingModel = embeddingModel;
         this.embeddingStore = embeddingStore;
-        this.messageMapper = messageMapper;
+        this.queryEmbeddings = queryEmbeddings;
+        this.answerCache = answerCache;
+        this.contextAssembler = contextAssembler;
+        this.lexicalIndex = lexicalIndex;
+        this.pdfMaxMainMemoryBytes = Math.max(1, pdfMaxMainMemoryMb) * 1024 * 1024;
+        this.meterRegistry = meterRegistry;
+        this.spans = spans;
+        this.indexEmbedTimer = Timer.builder("rag.embed").tag("kind", "index")
+                .description("Embedding call for one batch of document segments")
+                .register(meterRegistry);
+        this.searchTimer = Timer.builder("rag.search")
+                .description("Top-k search in the embedding store")
+                .register(meterRegistry);
+        this.lexicalSearchTimer = Timer.builder("rag.search.lexical")
+                .description("Top-k BM25 search in the inverted index")
+                .register(meterRegistry);
+        this.hybridEnabled = hybridEnabled;
+        this.rrfK = Math.max(1, rrfK);
+        this.embedTimeoutMs = Math.max(1, embedTimeoutMs);
+        this.embedCooldownMs = Math.max(0, embedCooldownMs);
+        AtomicInteger seq = new AtomicInteger();
+        // 有界线程池：向量化服务变慢时排队满即拒绝，拒绝的查询只走 BM25，不会无限堆积线程
+        int threads = Math.max(1, embedThreads);
+        this.queryEmbedExecutor = hybridEnabled ? new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, embedQueueCapacity)), r -> {
+                    Thread t = new Thread(r, "query-embed-" + seq.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy()) : null;
+        log.info("[RagService] hybridEnabled={}, rrfK={}, embedTimeoutMs={}, embedCooldownMs={}, embedThreads={}, embedQueueCapacity={}",
+                hybridEnabled, this.rrfK, this.embedTimeoutMs, this.embedCooldownMs, threads, embedQueueCapacity);
     }
 
-    public void indexPdf(Path pdfPath) throws IOException {
-        long t0 = System.currentTimeMillis();
-        byte[] bytes = Files.readAllBytes(pdfPath);
-        ApachePdfBoxDocumentParser parser = new ApachePdfBoxDocumentParser();
-        Document doc = parser.parse(new ByteArrayInputStream(bytes));
-        indexDocument(doc, pdfPath, bytes.length, t0, "PDF");
+    @PreDestroy
+    public void shutdown() {
+        if (queryEmbedExecutor != null) {
+            queryEmbedExecutor.shutdownNow();
+        }
     }
 
-    public void indexText(Path textPath) throws IOException {
-        long t0 = System.currentTimeMillis();
-        String content = Files.readString(textPath, StandardCharsets.UTF_8);
-        Document doc = Document.from(content);
-        byte[] bytes = Files.readAllBytes(textPath);
-        indexDocument(doc, textPath, bytes.length, t0, "TEXT");
+    /**
+     * 根据文件名和 content type 判断文件类型
+     * @return PDF / TEXT / HTML / WORD，不支持索引的格式返回 null
+     */
+    public static String fileType(String filename, String contentType) {
+        String lowerFilename = filename == null ? "" : filename.toLowerCase();
+        if (lowerFilename.endsWith(".pdf") || "application/pdf".equalsIgnoreCase(contentType)) {
+            return "PDF";
+        } else if (lowerFilename.endsWith(".txt") || lowerFilename.endsWith(".md") || lowerFilename.endsWith(".markdown")
+                || "text/plain".equalsIgnoreCase(contentType) || "text/markdown".equalsIgnoreCase(contentType)) {
+            return "TEXT";
+        } else if (lowerFilename.endsWith(".html") || lowerFilename.endsWith(".htm") || "text/html".equalsIgnoreCase(contentType)) {
+            return "HTML";
+        } else if (lowerFilename.endsWith(".doc") || lowerFilename.endsWith(".docx")
+                || "application/msword".equalsIgnoreCase(contentType)
+                || "application/vnd.openxmlformats-officedocument.wordprocessingml.document".equalsIgnoreCase(contentType)) {
+            return "WORD";
+        }
+        return null;
     }
 
-    public void indexWord(Path wordPath) throws IOException {
-        long t0 = System.currentTimeMillis();
-        String content;
-        byte[] bytes = Files.readAllBytes(wordPath);
-        
+    /**
+     * 提取出的文本的接收方
+     */
+    @FunctionalInterface
+    public interface TextSink {
+        void accept(String text) throws IOException;
+    }
+
+    /**
+     * 解析阶段：从文件流式提取文本，按文件顺序分多次交给 sink
+     * <p>
+     * PDF 逐页提取，解析过程中的流数据超过 pdf-max-main-memory-mb 后写入临时文件；
+     * 纯文本和 HTML 按块读取；Word 由 POI 直接从文件打开，整篇提取一次。
+     */
+    public void extract(Path filePath, String fileType, TextSink sink) throws IOException {
+        switch (fileType) {
+            case "PDF" -> extractPdf(filePath, sink);
+            case "TEXT" -> extractText(filePath, sink);
+            case "HTML" -> extractHtml(filePath, sink);
+            case "WORD" -> extractWord(filePath, sink);
+            default -> throw new IllegalArgumentException("Unsupported file type: " + fileType);
+        }
+    }
+
+    private void extractPdf(Path pdfPath, TextSink sink) throws IOException {
+        try (PDDocument document = PDDocument.load(pdfPath.toFile(), MemoryUsageSetting.setupMixed(pdfMaxMainMemoryBytes))) {
+            StringWriter page = new StringWriter();
+            PDFTextStripper stripper = new PDFTextStripper() {
+                @Override
+                protected void endPage(PDPage pdPage) throws IOException {
+                    super.endPage(pdPage);
+                    // 每页结束时把这一页的文本交出去，不在内存中累积整篇文本
+                    output.flush();
+                    StringBuffer text = page.getBuffer();
+                    if (text.length() > 0) {
+                        sink.accept(text.toString());
+                        text.setLength(0);
+                    }
+                }
+            };
+            stripper.writeText(document, page);
+            if (page.getBuffer().length() > 0) {
+                sink.accept(page.toString());
+            }
+        }
+    }
+
+    private void extractText(Path textPath, TextSink sink) throws IOException {
+        try (Reader reader = Files.newBufferedReader(textPath, StandardCharsets.UTF_8)) {
+            char[] buf = new char[READ_CHUNK_CHARS];
+            int n;
+            while ((n = reader.read(buf)) > 0) {
+                sink.accept(new String(buf, 0, n));
+            }
+        }
+    }
+
+    private void extractWord(Path wordPath, TextSink sink) throws IOException {
         String fileName = wordPath.getFileName().toString().toLowerCase();
         if (fileName.endsWith(".docx")) {
-            // 处理 .docx 文件
-            try (FileInputStream fis = new FileInputStream(wordPath.toFile());
-                 XWPFDocument document = new XWPFDocument(fis);
+            // 处理 .docx 文件：直接从文件打开 zip，不先把整个文件读进内存
+            try (OPCPackage pkg = openPackage(wordPath);
+                 XWPFDocument document = new XWPFDocument(pkg);
                  XWPFWordExtractor extractor = new XWPFWordExtractor(document)) {
-                content = extractor.getText();
+                sink.accept(extractor.getText());
             }
         } else if (fileName.endsWith(".doc")) {
             // 处理 .doc 文件
-            try (FileInputStream fis = new FileInputStream(wordPath.toFile());
-                 HWPFDocument document = new HWPFDocument(fis);
-                 WordExtractor extractor = new WordExtractor(document)) {
-                content = extractor.getText();
+            try (POIFSFileSystem fs = new POIFSFileSystem(wordPath.toFile(), true);
+                 WordExtractor extractor = new WordExtractor(new HWPFDocument(fs.getRoot()))) {
+                sink.accept(extractor.getText());
             }
         } else {
             throw new IllegalArgumentException("Unsupported Word format: " + fileName);
         }
-        
-        Document doc = Document.from(content);
-        indexDocument(doc, wordPath, bytes.length, t0, "WORD");
     }
 
-    public void indexHtml(Path htmlPath) throws IOException {
-        long t0 = System.currentTimeMillis();
-        // 读取 HTML 文件内容
-        String htmlContent = Files.readString(htmlPath, StandardCharsets.UTF_8);
-        // 简单的 HTML 标签移除（可以后续优化为使用专门的 HTML 解析器）
-        String textContent = htmlContent.replaceAll("<[^>]+>", " ")
-                .replaceAll("\\s+", " ")
-                .trim();
-        Document doc = Document.from(textContent);
-        byte[] bytes = Files.readAllBytes(htmlPath);
-        indexDocument(doc, htmlPath, bytes.length, t0, "HTML");
-    }
-
-    private void indexDocument(Document doc, Path filePath, long fileSize, long startTime, String fileType) {
-        // 提取文件名并添加到文档 metadata
-        String fileName = filePath.getFileName().toString();
-        doc.metadata().put("source", fileName);
-        doc.metadata().put("fileType", fileType);
-        
-        // 分割和索引文档
-        DocumentSplitter splitter = DocumentSplitters.recursive(1000, 100);
-        EmbeddingStoreIngestor ingestor = EmbeddingStoreIngestor.builder()
-                .documentSplitter(splitter)
-                .embeddingModel(embeddingModel)
-                .embeddingStore(embeddingStore)
-                .build();
-        ingestor.ingest(doc);
-        
-        long dt = System.currentTimeMillis() - startTime;
-        log.info("[RagService] indexed {}, path={}, fileName={}, bytes={}, costMs={}", 
-                 fileType, filePath, fileName, fileSize, dt);
+    private static OPCPackage openPackage(Path path) throws IOException {
+        try {
+            return OPCPackage.open(path.toFile(), PackageAccess.READ);
+        } catch (InvalidFormatException e) {
+            throw new IOException("Invalid Word document: " + path.getFileName(), e);
+        }
+    }
+
+    private void extractHtml(Path htmlPath, TextSink sink) throws IOException {
+        // 简单的 HTML 标签移除（可以后续优化为使用专门的 HTML 解析器）：
+        // 标签替换为空白，连续空白合并为一个空格，去掉首尾空白
+        try (Reader reader = Files.newBufferedReader(htmlPath, StandardCharsets.UTF_8)) {
+            char[] buf = new char[READ_CHUNK_CHARS];
+            StringBuilder out = new StringBuilder(READ_CHUNK_CHARS);
+            boolean inTag = false;
+            boolean pendingSpace = false;
+            boolean started = false;
+            int n;
+            while ((n = reader.read(buf)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    char c = buf[i];
+                    if (inTag) {
+                        inTag = c != '>';
+                    } else if (c == '<') {
+                        inTag = true;
+                        pendingSpace = true;
+                    } else if (c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == '\u000B') {
+                        pendingSpace = true;
+                    } else {
+                        if (pendingSpace && started) {
+                            out.append(' ');
+                        }
+                        pendingSpace = false;
+                        started = true;
+                        out.append(c);
+                    }
+                }
+                if (out.length() > 0) {
+                    sink.accept(out.toString());
+                    out.setLength(0);
+                }
+            }
+        }
+    }
+
+    /**
+     * 分割阶段：返回一个逐段接收文本的分割器，片段 metadata 中记录 source 和 fileType
+     */
+    public StreamingSplitter newSplitter(Path filePath, String fileType, Consumer<TextSegment> sink) {
+        Metadata metadata = new Metadata()
+                .put("source", filePath.getFileName().toString())
+                .put("fileType", fileType);
+        return new StreamingSplitter(metadata, sink);
+    }
+
+    /**
+     * 向量化阶段
+     */
+    public List<Embedding> embed(List<TextSegment> segments) {
+        return indexEmbedTimer.record(() -> embeddingModel.embedAll(segments).content());
+    }
+
+    /**
+     * 写入阶段
+     * @return 写入向量库的片段 id，用于之后按文件删除或替换
+     */
+    public List<String> store(List<Embedding> embeddings, List<TextSegment> segments) {
+        if (segments.isEmpty()) {
+            return List.of();
+        }
+        List<String> ids = embeddingStore.addAll(embeddings, segments);
+        if (hybridEnabled) {
+            lexicalIndex.addAll(ids, segments);
+        }
+        return ids;
+    }
+
+    /**
+     * 写入阶段（重新索引）：写入新片段并删除旧片段。向量库支持时两步在同一把写锁内完成，
+     * 检索不会同时看到新旧片段；否则退化为先写后删
+     * @return 新片段的 id
+     */
+    public List<String> replace(Collection<String> oldIds, List<Embedding> embeddings, List<TextSegment> segments) {
+        List<String> ids;
+        if (embeddingStore instanceof ReplaceableEmbeddingStore replaceable) {
+            ids = replaceable.replaceAll(oldIds, segments.isEmpty() ? List.of() : embeddings, segments);
+            if (hybridEnabled) {
+                lexicalIndex.replaceAll(oldIds, ids, segments);
+            }
+        } else {
+            ids = store(embeddings, segments);
+            embeddingStore.removeAll(oldIds);
+            if (hybridEnabled) {
+                lexicalIndex.removeAll(oldIds);
+            }
+        }
+        answerCache.invalidateSegments(oldIds);
+        log.info("[RagService] replaced segments, old={}, new={}", oldIds.size(), ids.size());
+        return ids;
+    }
+
+    /**
+     * 从向量库删除指定片段
+     */
+    public void removeSegments(Collection<String> segmentIds) {
+        if (segmentIds == null || segmentIds.isEmpty()) {
+            return;
+        }
+        embeddingStore.removeAll(segmentIds);
+        if (hybridEnabled) {
+            lexicalIndex.removeAll(segmentIds);
+        }
+        answerCache.invalidateSegments(segmentIds);
+        log.info("[RagService] removed segments, count={}", segmentIds.size());
+    }
+
+    /**
+     * 按 source（文件名）删除向量，用于清理没有清单记录的旧数据
+     */
+    public void removeSegmentsBySource(String fileName) {
+        answerCache.invalidateSource(fileName);
+        if (hybridEnabled) {
+            lexicalIndex.removeBySource(fileName);
+        }
+        try {
+            embeddingStore.removeAll(metadataKey("source").isEqualTo(fileName));
+        } catch (UnsupportedOperationException e) {
+            log.debug("[RagService] embedding store does not support filtered removal");
+        }
     }
 
     /**
@@ -158,37 +395,47 @@ public class RagService {
      * @return AI回复
      */
     public String chatWithRag(Long chatId, String userMessage) {
+        return chatWithRag(chatId, retrieve(userMessage));
+    }
+
+    /**
+     * 使用已有检索结果的聊天（带历史消息）
+     * @param chatId 会话ID
+     * @param retrieval {@link #retrieve} 的结果
+     * @return AI回复
+     */
+    public String chatWithRag(Long chatId, RetrievalResult retrieval) {
         long t0 = System.currentTimeMillis();
+        String userMessage = retrieval.query();
         
-        // 1. 构建RAG上下文
-        String ragContext = buildRagContext(userMessage);
-        
-        // 2. 构建 ChatMessage 列表
-        List<ChatMessage> messages = new ArrayList<>();
-        messages.add(SystemMessage.from(ragContext));
-        
-        // 3. 添加历史消息
-        List<Message> history = messageMapper.listByChat(chatId);
-        int historyCount = 0;
-        if (history != null && !history.isEmpty()) {
-            int startIndex = Math.max(0, history.size() - MAX_HISTORY_MESSAGES);
-            for (int i = startIndex; i < history.size(); i++) {
-                Message msg = history.get(i);
-                if ("user".equals(msg.getRole())) {
-                    messages.add(UserMessage.from(msg.getContent()));
-                    historyCount++;
-                } else if ("assistant".equals(msg.getRole())) {
-                    messages.add(AiMessage.from(msg.getContent()));
-                    historyCount++;
-                }
-            }
+        // 0. 语义回答缓存命中时直接返回
+        String cached = answerCache.lookup(retrieval);
+        if (cached != null) {
+            countRequest(ENDPOINT_SEND, "cache_hit");
+            log.info("[RagService] chatWithRag answer cache hit, chatId={}, queryLen={}", chatId,
+                    userMessage == null ? 0 : userMessage.length());
+            return cached;
         }
         
-        // 4. 添加当前用户消息
-        messages.add(UserMessage.from(userMessage));
+        // 1. 按 token 预算组装上下文：检索片段、会话摘要、最近历史和当前问题
+        List<ChatMessage> messages = spans.in("rag.prompt.assemble", () -> contextAssembler.assemble(chatId, retrieval));
+        int historyCount = messages.size() - 2;
         
-        // 5. 调用模型生成回复
-        String resp = chatModel.generate(messages).content().text();
+        // 2. 调用模型生成回复
+        long llmStart = System.nanoTime();
+        Response<AiMessage> response;
+        try {
+            response = spans.in("llm.generate", () -> chatModel.generate(messages));
+        } catch (RuntimeException e) {
+            llmTimer(ENDPOINT_SEND, "error").record(System.nanoTime() - llmStart, TimeUnit.NANOSECONDS);
+            countRequest(ENDPOINT_SEND, "failed");
+            throw e;
+        }
+        llmTimer(ENDPOINT_SEND, "success").record(System.nanoTime() - llmStart, TimeUnit.NANOSECONDS);
+        countTokens(ENDPOINT_SEND, response.tokenUsage());
+        countRequest(ENDPOINT_SEND, "generated");
+        String resp = response.content().text();
+        answerCache.put(retrieval, resp);
         
         long dt = System.currentTimeMillis() - t0;
         log.info("[RagService] chatWithRag done, chatId={}, queryLen={}, historyMsgs={}, costMs={}", 
@@ -201,8 +448,8 @@ public class RagService {
      */
     public String chatWithRag(String userMessage) {
         long t0 = System.currentTimeMillis();
-        Embedding userEmbedding = embeddingModel.embed(userMessage).content();
-        List<EmbeddingMatch<TextSegment>> matches = embeddingStore.findRelevant(userEmbedding, 4);
+        Embedding userEmbedding = queryEmbeddings.embed(userMessage);
+        List<EmbeddingMatch<TextSegment>> matches = search(userEmbedding, 4);
         StringBuilder context = new StringBuilder();
         int hit = 0;
         if (matches != null) {
@@ -223,8 +470,8 @@ public class RagService {
     }
 
     public String buildPrompt(String userMessage) {
-        Embedding userEmbedding = embeddingModel.embed(userMessage).content();
-        List<EmbeddingMatch<TextSegment>> matches = embeddingStore.findRelevant(userEmbedding, 4);
+        Embedding userEmbedding = queryEmbeddings.embed(userMessage);
+        List<EmbeddingMatch<TextSegment>> matches = search(userEmbedding, 4);
         StringBuilder context = new StringBuilder();
         int hit = 0;
         if (matches != null) {
@@ -248,8 +495,7 @@ public class RagService {
      * @return 引用的文档名称列表
      */
     public Set<String> getRagReferences(String userMessage) {
-        RagContextInfo contextInfo = buildRagContextWithReferences(userMessage);
-        return contextInfo.references;
+        return retrieve(userMessage).references();
     }
     
     /**
@@ -259,53 +505,293 @@ public class RagService {
      * @param handler 流式响应处理器
      */
     public void chatWithRagStreaming(Long chatId, String userMessage, StreamingResponseHandler<AiMessage> handler) {
+        chatWithRagStreaming(chatId, retrieve(userMessage), handler);
+    }
+
+    /**
+     * 使用已有检索结果的流式聊天（带历史消息）
+     * @param chatId 会话ID
+     * @param retrieval {@link #retrieve} 的结果
+     * @param handler 流式响应处理器
+     */
+    public void chatWithRagStreaming(Long chatId, RetrievalResult retrieval, StreamingResponseHandler<AiMessage> handler) {
         long t0 = System.currentTimeMillis();
+        String userMessage = retrieval.query();
         
-        // 1. 构建基于RAG的系统提示词（包含知识库上下文）并获取引用
-        RagContextInfo contextInfo = buildRagContextWithReferences(userMessage);
-        String ragContext = contextInfo.systemPrompt;
-        
-        // 2. 构建 ChatMessage 列表
-        List<ChatMessage> messages = new ArrayList<>();
-        
-        // 3. 添加系统消息（包含RAG上下文）
-        messages.add(SystemMessage.from(ragContext));
-        
-        // 4. 添加历史消息（提供上下文记忆）
-        List<Message> history = messageMapper.listByChat(chatId);
-        int historyCount = 0;
-        if (history != null && !history.isEmpty()) {
-            // 只取最近的N条消息，避免token过多
-            int startIndex = Math.max(0, history.size() - MAX_HISTORY_MESSAGES);
-            for (int i = startIndex; i < history.size(); i++) {
-                Message msg = history.get(i);
-                if ("user".equals(msg.getRole())) {
-                    messages.add(UserMessage.from(msg.getContent()));
-                    historyCount++;
-                } else if ("assistant".equals(msg.getRole())) {
-                    messages.add(AiMessage.from(msg.getContent()));
-                    historyCount++;
-                }
-            }
+        // 0. 语义回答缓存命中时按 token 回放缓存的回答
+        String cached = answerCache.lookup(retrieval);
+        if (cached != null) {
+            countRequest(ENDPOINT_STREAM, "cache_hit");
+            replay(cached, handler);
+            log.info("[RagService] chatWithRagStreaming answer cache hit, chatId={}, queryLen={}, costMs={}", chatId,
+                    userMessage == null ? 0 : userMessage.length(), System.currentTimeMillis() - t0);
+            return;
         }
         
-        // 5. 添加当前用户消息
-        messages.add(UserMessage.from(userMessage));
+        // 1. 按 token 预算组装上下文：检索片段、会话摘要、最近历史和当前问题
+        List<ChatMessage> messages = spans.in("rag.prompt.assemble", () -> contextAssembler.assemble(chatId, retrieval));
+        int historyCount = messages.size() - 2;
         
-        // 6. 调用流式模型生成回复
-        streamingChatModel.generate(messages, handler);
+        // 2. 调用流式模型生成回复，完成后写入语义回答缓存
+        StreamingResponseHandler<AiMessage> target = answerCache.isEnabled() ? cachingHandler(retrieval, handler) : handler;
+        StreamingResponseHandler<AiMessage> timed = timedHandler(ENDPOINT_STREAM, target);
+        try {
+            streamingChatModel.generate(messages, timed);
+        } catch (RuntimeException e) {
+            timed.onError(e);
+        }
         
         long dt = System.currentTimeMillis() - t0;
         log.info("[RagService] chatWithRagStreaming done, chatId={}, queryLen={}, historyMsgs={}, references={}, costMs={}", 
-                chatId, userMessage == null ? 0 : userMessage.length(), historyCount, contextInfo.references.size(), dt);
+                chatId, userMessage == null ? 0 : userMessage.length(), historyCount, retrieval.references().size(), dt);
     }
     
     /**
-     * 构建RAG上下文（从知识库检索相关内容）并收集引用信息
+     * 包装流式处理器，记录首 token 延迟、生成总耗时和 token 用量；
+     * 客户端断开导致的取消（onNext 抛出 {@link StreamCancelledException}）单独计为 cancelled。
+     * 回调在 HTTP 客户端线程上执行，llm.stream span 由 finish 结束，完成/出错回调放回调用方的 span 下执行
+     */
+    private StreamingResponseHandler<AiMessage> timedHandler(String endpoint, StreamingResponseHandler<AiMessage> handler) {
+        long start = System.nanoTime();
+        Span parent = spans.current();
+        Span span = spans.start("llm.stream").tag("llm.endpoint", endpoint);
+        AtomicBoolean first = new AtomicBoolean(true);
+        AtomicBoolean done = new AtomicBoolean();
+        return new StreamingResponseHandler<AiMessage>() {
+            @Override
+            public void onNext(String token) {
+                if (first.compareAndSet(true, false)) {
+                    Timer.builder("llm.first_token").tag("endpoint", endpoint)
+                            .description("Time from the model call to its first token")
+                            .register(meterRegistry)
+                            .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    span.event("first_token");
+                }
+                try {
+                    handler.onNext(token);
+                } catch (StreamCancelledException e) {
+                    finish("cancelled");
+                    throw e;
+                }
+            }
+
+            @Override
+            public void onComplete(Response<AiMessage> response) {
+                if (finish("success")) {
+                    countTokens(endpoint, response == null ? null : response.tokenUsage());
+                }
+                inParent(() -> handler.onComplete(response));
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                span.error(error);
+                finish("error");
+                inParent(() -> handler.onError(error));
+            }
+
+            private void inParent(Runnable callback) {
+                if (parent == null) {
+                    callback.run();
+                    return;
+                }
+                try (Tracer.SpanInScope ignored = spans.scope(parent)) {
+                    callback.run();
+                }
+            }
+
+            private boolean finish(String outcome) {
+                if (!done.compareAndSet(false, true)) {
+                    return false;
+                }
+                llmTimer(endpoint, outcome).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                span.tag("llm.outcome", outcome).end();
+                countRequest(endpoint, switch (outcome) {
+                    case "success" -> "generated";
+                    case "error" -> "failed";
+                    default -> outcome;
+                });
+                return true;
+            }
+        };
+    }
+
+    /**
+     * 在后台线程向量化问题；处于冷却期时返回 null
+     */
+    private CompletableFuture<Embedding> embedQueryAsync(String userMessage) {
+        if (System.currentTimeMillis() < embedSkipUntil) {
+            return null;
+        }
+        CompletableFuture<Embedding> pending = new CompletableFuture<>();
+        try {
+            queryEmbedExecutor.execute(spans.wrap(() -> {
+                try {
+                    pending.complete(spans.in("rag.embed.query", () -> queryEmbeddings.embed(userMessage)));
+                } catch (Throwable e) {
+                    pending.completeExceptionally(e);
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+        return pending;
+    }
+
+    /**
+     * 等待问题向量；超时或失败时进入冷却期并返回 null。超时的请求不取消，完成后仍会写入查询向量缓存
+     */
+    private Embedding awaitQueryEmbedding(CompletableFuture<Embedding> pending) {
+        if (pending == null) {
+            return null;
+        }
+        try {
+            return pending.get(embedTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            skipEmbedding("timeout after " + embedTimeoutMs + "ms");
+        } catch (ExecutionException e) {
+            skipEmbedding(String.valueOf(e.getCause()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    private void skipEmbedding(String reason) {
+        embedSkipUntil = System.currentTimeMillis() + embedCooldownMs;
+        log.warn("[RagService] query embedding unavailable ({}), lexical-only retrieval for {}ms", reason, embedCooldownMs);
+    }
+
+    /**
+     * 按检索方式统计：hybrid / lexical_only
+     */
+    private void countRetrieval(String mode) {
+        Counter.builder("rag.retrieval").tag("mode", mode).register(meterRegistry).increment();
+    }
+
+    private List<EmbeddingMatch<TextSegment>> search(Embedding query, int maxResults) {
+        return spans.in("rag.search", () -> searchTimer.record(() -> embeddingStore.findRelevant(query, maxResults)));
+    }
+
+    private Timer llmTimer(String endpoint, String outcome) {
+        return Timer.builder("llm.request")
+                .tag("endpoint", endpoint)
+                .tag("outcome", outcome)
+                .description("Total model generation time")
+                .register(meterRegistry);
+    }
+
+    /**
+     * 按 endpoint 统计对话请求结果：generated / cache_hit / failed / cancelled
+     */
+    private void countRequest(String endpoint, String result) {
+        Counter.builder("chat.requests").tag("endpoint", endpoint).tag("result", result).register(meterRegistry).increment();
+    }
+
+    private void countTokens(String endpoint, TokenUsage usage) {
+        if (usage == null) {
+            return;
+        }
+        if (usage.inputTokenCount() != null) {
+            Counter.builder("llm.tokens").tag("endpoint", endpoint).tag("type", "input")
+                    .register(meterRegistry).increment(usage.inputTokenCount());
+        }
+        if (usage.outputTokenCount() != null) {
+            Counter.builder("llm.tokens").tag("endpoint", endpoint).tag("type", "output")
+                    .register(meterRegistry).increment(usage.outputTokenCount());
+        }
+    }
+
+    /**
+     * 包装流式处理器，生成完成后把完整回答写入语义回答缓存
      */
-    private RagContextInfo buildRagContextWithReferences(String userMessage) {
-        Embedding userEmbedding = embeddingModel.embed(userMessage).content();
-        List<EmbeddingMatch<TextSegment>> matches = embeddingStore.findRelevant(userEmbedding, 4);
+    private StreamingResponseHandler<AiMessage> cachingHandler(RetrievalResult retrieval, StreamingResponseHandler<AiMessage> handler) {
+        StringBuilder full = new StringBuilder();
+        return new StreamingResponseHandler<AiMessage>() {
+            @Override
+            public void onNext(String token) {
+                if (token != null) {
+                    full.append(token);
+                }
+                handler.onNext(token);
+            }
+
+            @Override
+            public void onComplete(Response<AiMessage> response) {
+                String answer = full.length() > 0 || response == null || response.content() == null
+                        ? full.toString() : response.content().text();
+                answerCache.put(retrieval, answer);
+                handler.onComplete(response);
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                handler.onError(error);
+            }
+        };
+    }
+
+    /**
+     * 把缓存的回答拆成小段依次推送，前端收到的事件与实时生成时一致：
+     * 在空白处断开，没有空白的文本（如中文）每 REPLAY_CHUNK_CHARS 个字符一段
+     */
+    private static void replay(String answer, StreamingResponseHandler<AiMessage> handler) {
+        int start = 0;
+        int n = answer.length();
+        while (start < n) {
+            int end = start;
+            while (end < n && end - start < REPLAY_CHUNK_CHARS && !Character.isWhitespace(answer.charAt(end))) {
+                end++;
+            }
+            while (end < n && Character.isWhitespace(answer.charAt(end))) {
+                end++;
+            }
+            if (end == start) {
+                end = Math.min(n, start + REPLAY_CHUNK_CHARS);
+            }
+            try {
+                handler.onNext(answer.substring(start, end));
+            } catch (StreamCancelledException e) {
+                // 客户端已离开，停止回放
+                return;
+            }
+            start = end;
+        }
+        handler.onComplete(Response.from(AiMessage.from(answer)));
+    }
+
+    /**
+     * 检索知识库：向量化问题、查找相关片段，构建系统提示词并收集引用信息。
+     * 每轮对话只需调用一次，结果同时用于生成回复和引用列表。
+     * 开启混合检索时，BM25 检索与查询向量化并行进行，两路结果按倒数排名融合；
+     * 向量化在 embed-timeout-ms 内没有返回或失败时只用 BM25 结果，并在 embed-cooldown-ms 内跳过向量化
+     */
+    public RetrievalResult retrieve(String userMessage) {
+        return spans.in("rag.retrieve", () -> doRetrieve(userMessage));
+    }
+
+    private RetrievalResult doRetrieve(String userMessage) {
+        // 多取一些候选片段，再按检索 token 预算选取
+        int candidates = contextAssembler.retrievalCandidates();
+        Embedding userEmbedding;
+        List<EmbeddingMatch<TextSegment>> candidateMatches;
+        if (!hybridEnabled) {
+            userEmbedding = spans.in("rag.embed.query", () -> queryEmbeddings.embed(userMessage));
+            candidateMatches = search(userEmbedding, candidates);
+        } else {
+            CompletableFuture<Embedding> pending = embedQueryAsync(userMessage);
+            List<EmbeddingMatch<TextSegment>> lexical = spans.in("rag.search.lexical",
+                    () -> lexicalSearchTimer.record(() -> lexicalIndex.search(userMessage, candidates)));
+            userEmbedding = awaitQueryEmbedding(pending);
+            if (userEmbedding == null) {
+                countRetrieval("lexical_only");
+                candidateMatches = lexical;
+            } else {
+                countRetrieval("hybrid");
+                candidateMatches = RankFusion.fuse(rrfK, candidates, search(userEmbedding, candidates), lexical);
+            }
+        }
+        List<EmbeddingMatch<TextSegment>> matches = contextAssembler.selectChunks(candidateMatches);
         StringBuilder context = new StringBuilder();
         context.append("Answer the question based on the following knowledge context:\n\n");
         
@@ -329,14 +815,7 @@ public class RagService {
         }
         
         log.debug("[RagService] RAG context built, hits={}, references={}", hit, references.size());
-        return new RagContextInfo(context.toString(), references);
-    }
-    
-    /**
-     * 构建RAG上下文（从知识库检索相关内容）- 兼容方法
-     */
-    private String buildRagContext(String userMessage) {
-        return buildRagContextWithReferences(userMessage).systemPrompt;
+        return new RetrievalResult(userMessage, userEmbedding, matches, references, context.toString());
     }
     
     /**
@@ -0,0 +1,65 @@
+package com.example.service;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 倒数排名融合（Reciprocal Rank Fusion）：片段的融合分数为它在各路结果中 1 / (k + 名次) 之和，
+ * 只看名次不看原始分数，BM25 分数和余弦相似度不需要归一化到同一尺度
+ */
+final class RankFusion {
+
+    private RankFusion() {
+    }
+
+    /**
+     * @param k          平滑常数，越大排名靠后的结果权重越接近靠前的结果
+     * @param maxResults 返回的片段数
+     * @param rankings   各路检索结果，每路按相关度降序
+     * @return 按融合分数降序的片段，score 为融合分数
+     */
+    @SafeVarargs
+    static List<EmbeddingMatch<TextSegment>> fuse(int k, int maxResults, List<EmbeddingMatch<TextSegment>>... rankings) {
+        Map<String, Fused> byId = new LinkedHashMap<>();
+        for (List<EmbeddingMatch<TextSegment>> ranking : rankings) {
+            if (ranking == null) {
+                continue;
+            }
+            for (int rank = 0; rank < ranking.size(); rank++) {
+                EmbeddingMatch<TextSegment> match = ranking.get(rank);
+                Fused fused = byId.computeIfAbsent(match.embeddingId(), id -> new Fused(match));
+                fused.score += 1.0 / (k + rank + 1);
+                if (fused.embedding == null) {
+                    fused.embedding = match.embedding();
+                }
+            }
+        }
+        List<Fused> sorted = new ArrayList<>(byId.values());
+        sorted.sort((a, b) -> Double.compare(b.score, a.score));
+        List<EmbeddingMatch<TextSegment>> result = new ArrayList<>(Math.min(maxResults, sorted.size()));
+        for (int i = 0; i < sorted.size() && i < maxResults; i++) {
+            Fused f = sorted.get(i);
+            result.add(new EmbeddingMatch<>(f.score, f.id, f.embedding, f.segment));
+        }
+        return result;
+    }
+
+    private static final class Fused {
+        final String id;
+        final TextSegment segment;
+        Embedding embedding;
+        double score;
+
+        Fused(EmbeddingMatch<TextSegment> match) {
+            this.id = match.embeddingId();
+            this.segment = match.embedded();
+            this.embedding = match.embedding();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.example.service;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 一轮对话的检索结果：每个请求只检索一次，生成回复和引用列表都使用这一份结果
+ *
+ * @param query          用户问题
+ * @param queryEmbedding 问题的向量；向量化不可用、只做了词法检索时为 null
+ * @param matches        命中的片段（按相关度降序；混合检索时为融合后的顺序）
+ * @param references     引用的文档名称（去重，保持顺序）
+ * @param systemPrompt   包含知识库上下文的系统提示词
+ */
+public record RetrievalResult(String query,
+                              Embedding queryEmbedding,
+                              List<EmbeddingMatch<TextSegment>> matches,
+                              Set<String> references,
+                              String systemPrompt) {
+
+    /**
+     * 命中片段的 id
+     */
+    public List<String> segmentIds() {
+        List<String> ids = new ArrayList<>(matches.size());
+        for (EmbeddingMatch<TextSegment> match : matches) {
+            ids.add(match.embeddingId());
+        }
+        return ids;
+    }
+
+    /**
+     * 命中片段的分数：向量检索为相似度，混合检索为融合分数，仅词法检索为 BM25 分数
+     */
+    public List<Double> scores() {
+        List<Double> scores = new ArrayList<>(matches.size());
+        for (EmbeddingMatch<TextSegment> match : matches) {
+            scores.add(match.score());
+        }
+        return scores;
+    }
+}
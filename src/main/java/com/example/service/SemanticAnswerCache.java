@@ -0,0 +1,217 @@
+package com.example.service;
+
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 语义回答缓存（默认关闭）
+ * <p>
+ * 以问题向量的相似度（不低于 similarity-threshold）加上检索到的片段 id 集合作为键缓存模型回答，
+ * 近似重复的问题在检索结果完全相同时直接返回缓存，不再调用大模型。
+ * 新上传的文档若影响检索结果，片段集合随之变化而自然失效；删除或替换文档时按片段 id / 文件名显式失效。
+ * 注意缓存不考虑会话历史，适合以独立问答为主的场景。
+ */
+@Service
+public class SemanticAnswerCache {
+    private static final Logger log = LoggerFactory.getLogger(SemanticAnswerCache.class);
+
+    private record Entry(float[] vector, Set<String> segmentIds, Set<String> sources, String answer, long createdNanos) {}
+
+    private final boolean enabled;
+    private final double threshold;
+    private final int maxSize;
+    private final long ttlNanos;
+    private final AtomicLong seq = new AtomicLong();
+    private final LinkedHashMap<Long, Entry> entries;
+    private final Counter hits;
+    private final Counter misses;
+
+    public SemanticAnswerCache(MeterRegistry meterRegistry,
+                               @Value("${app.rag.answer-cache.enabled:false}") boolean enabled,
+                               @Value("${app.rag.answer-cache.similarity-threshold:0.95}") double threshold,
+                               @Value("${app.rag.answer-cache.max-size:1000}") int maxSize,
+                               @Value("${app.rag.answer-cache.ttl-minutes:1440}") long ttlMinutes) {
+        this.enabled = enabled && maxSize > 0;
+        this.threshold = threshold;
+        this.maxSize = maxSize;
+        this.ttlNanos = ttlMinutes * 60_000_000_000L;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                return size() > SemanticAnswerCache.this.maxSize;
+            }
+        };
+        this.hits = Counter.builder("rag.answer.cache").tag("result", "hit").register(meterRegistry);
+        this.misses = Counter.builder("rag.answer.cache").tag("result", "miss").register(meterRegistry);
+        Gauge.builder("rag.answer.cache.size", this, SemanticAnswerCache::size).register(meterRegistry);
+        if (this.enabled) {
+            log.info("[SemanticAnswerCache] enabled, threshold={}, maxSize={}, ttlMinutes={}", threshold, maxSize, ttlMinutes);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 查找与本次检索结果匹配的缓存回答
+     * @return 未命中时返回 null
+     */
+    public String lookup(RetrievalResult retrieval) {
+        // 仅词法检索时没有问题向量，无法比较语义相似度
+        if (!enabled || retrieval.matches().isEmpty() || retrieval.queryEmbedding() == null) {
+            return null;
+        }
+        float[] query = normalized(retrieval.queryEmbedding().vector());
+        Set<String> segmentIds = new HashSet<>(retrieval.segmentIds());
+        long now = System.nanoTime();
+        String best = null;
+        double bestScore = threshold;
+        synchronized (entries) {
+            Long bestKey = null;
+            Iterator<Map.Entry<Long, Entry>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, Entry> item = it.next();
+                Entry e = item.getValue();
+                if (now - e.createdNanos() > ttlNanos) {
+                    it.remove();
+                    continue;
+                }
+                if (e.vector().length != query.length || !e.segmentIds().equals(segmentIds)) {
+                    continue;
+                }
+                double score = dot(e.vector(), query);
+                if (score >= bestScore) {
+                    bestScore = score;
+                    bestKey = item.getKey();
+                    best = e.answer();
+                }
+            }
+            if (bestKey != null) {
+                // 访问一次以更新 LRU 顺序
+                entries.get(bestKey);
+            }
+        }
+        if (best != null) {
+            hits.increment();
+            log.debug("[SemanticAnswerCache] hit, similarity={}", bestScore);
+        } else {
+            misses.increment();
+        }
+        return best;
+    }
+
+    /**
+     * 缓存一次回答（不含引用列表等附加内容）
+     */
+    public void put(RetrievalResult retrieval, String answer) {
+        if (!enabled || answer == null || answer.isEmpty() || retrieval.matches().isEmpty()
+                || retrieval.queryEmbedding() == null) {
+            return;
+        }
+        Set<String> sources = new HashSet<>();
+        for (EmbeddingMatch<TextSegment> match : retrieval.matches()) {
+            if (match.embedded() != null && match.embedded().metadata("source") != null) {
+                sources.add(match.embedded().metadata("source"));
+            }
+        }
+        Entry entry = new Entry(normalized(retrieval.queryEmbedding().vector()), Set.copyOf(retrieval.segmentIds()),
+                Set.copyOf(sources), answer, System.nanoTime());
+        synchronized (entries) {
+            entries.put(seq.incrementAndGet(), entry);
+        }
+    }
+
+    /**
+     * 使引用了任一指定片段的缓存失效
+     */
+    public void invalidateSegments(Collection<String> segmentIds) {
+        if (!enabled || segmentIds == null || segmentIds.isEmpty()) {
+            return;
+        }
+        Set<String> ids = segmentIds instanceof Set<String> set ? set : new HashSet<>(segmentIds);
+        int removed = 0;
+        synchronized (entries) {
+            Iterator<Entry> it = entries.values().iterator();
+            while (it.hasNext()) {
+                for (String id : it.next().segmentIds()) {
+                    if (ids.contains(id)) {
+                        it.remove();
+                        removed++;
+                        break;
+                    }
+                }
+            }
+        }
+        if (removed > 0) {
+            log.info("[SemanticAnswerCache] invalidated by segments, removed={}", removed);
+        }
+    }
+
+    /**
+     * 使引用了指定文件（metadata source）的缓存失效
+     */
+    public void invalidateSource(String source) {
+        if (!enabled || source == null) {
+            return;
+        }
+        int removed = 0;
+        synchronized (entries) {
+            Iterator<Entry> it = entries.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().sources().contains(source)) {
+                    it.remove();
+                    removed++;
+                }
+            }
+        }
+        if (removed > 0) {
+            log.info("[SemanticAnswerCache] invalidated by source {}, removed={}", source, removed);
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private static float[] normalized(float[] v) {
+        double norm = 0;
+        for (float x : v) {
+            norm += x * x;
+        }
+        norm = Math.sqrt(norm);
+        float[] out = new float[v.length];
+        if (norm == 0) {
+            return out;
+        }
+        for (int i = 0; i < v.length; i++) {
+            out[i] = (float) (v[i] / norm);
+        }
+        return out;
+    }
+
+    private static double dot(float[] a, float[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,11 @@
+package com.example.service;
+
+/**
+ * 流式处理器在 onNext 中抛出，表示下游（客户端）已不再读取，生产方应停止生成。
+ * {@link CancellableStreamingChatModel} 收到后会中断上游的 OpenAI 流，且不再回调 onComplete / onError
+ */
+public class StreamCancelledException extends RuntimeException {
+    public StreamCancelledException(String message) {
+        super(message, null, false, false);
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.service;
+
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.DocumentSplitter;
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.document.splitter.DocumentSplitters;
+import dev.langchain4j.data.segment.TextSegment;
+
+import java.util.function.Consumer;
+
+/**
+ * 逐段接收文本并分割的分割器
+ * <p>
+ * 文本先进入一个最多 window-chars 的窗口，窗口满时在其后半段最后一个段落（或换行、空白）处切开，
+ * 前半部分交给递归分割器，剩余部分留在窗口里与后续文本拼接。内存占用只取决于窗口大小，
+ * 与文件大小无关。窗口切在段落边界上，结果与整篇分割基本一致，只是切口两侧的片段之间没有重叠。
+ */
+public class StreamingSplitter {
+    static final int MAX_SEGMENT_CHARS = 1000;
+    static final int OVERLAP_CHARS = 100;
+    private static final int DEFAULT_WINDOW_CHARS = 64 * 1024;
+
+    // 构造递归分割器会加载 OpenNLP 句子模型，开销远大于分割本身；split 每次新建 SentenceDetectorME，可以共用
+    private static final DocumentSplitter SPLITTER = DocumentSplitters.recursive(MAX_SEGMENT_CHARS, OVERLAP_CHARS);
+
+    private final Metadata metadata;
+    private final Consumer<TextSegment> sink;
+    private final int windowChars;
+    private final StringBuilder window = new StringBuilder();
+    private int index;
+
+    /**
+     * @param metadata 每个片段都会带上的 metadata（另加从 0 递增的 index）
+     * @param sink     按顺序接收分割出的片段
+     */
+    public StreamingSplitter(Metadata metadata, Consumer<TextSegment> sink) {
+        this(metadata, sink, DEFAULT_WINDOW_CHARS);
+    }
+
+    StreamingSplitter(Metadata metadata, Consumer<TextSegment> sink, int windowChars) {
+        this.metadata = metadata;
+        this.sink = sink;
+        this.windowChars = Math.max(MAX_SEGMENT_CHARS * 4, windowChars);
+    }
+
+    public void append(String text) {
+        if (text == null || text.isEmpty()) {
+            return;
+        }
+        window.append(text);
+        while (window.length() >= windowChars) {
+            int cut = cutPoint();
+            splitWindow(window.substring(0, cut));
+            window.delete(0, cut);
+        }
+    }
+
+    /**
+     * 分割窗口中剩余的文本
+     * @return 分割出的片段总数
+     */
+    public int finish() {
+        if (!window.toString().isBlank()) {
+            splitWindow(window.toString());
+        }
+        window.setLength(0);
+        return index;
+    }
+
+    private int cutPoint() {
+        int from = windowChars / 2;
+        int end = windowChars;
+        int at = window.lastIndexOf("\n\n", end - 2);
+        if (at >= from) {
+            return at + 2;
+        }
+        at = window.lastIndexOf("\n", end - 1);
+        if (at >= from) {
+            return at + 1;
+        }
+        for (int i = end - 1; i >= from; i--) {
+            if (Character.isWhitespace(window.charAt(i))) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+
+    private void splitWindow(String text) {
+        if (text.isBlank()) {
+            return;
+        }
+        for (TextSegment segment : SPLITTER.split(Document.from(text, metadata.copy()))) {
+            Metadata segmentMetadata = segment.metadata().copy().put("index", String.valueOf(index++));
+            sink.accept(TextSegment.from(segment.text(), segmentMetadata));
+        }
+    }
+}
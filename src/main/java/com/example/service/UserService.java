@@ -38,7 +38,7 @@ public class UserService {
         if (user == null || !passwordEncoder.matches(password, user.getPasswordHash())) {
             throw new IllegalArgumentException("用户名或密码错误");
         }
-        return jwtService.generateToken(user.getUsername(), Boolean.TRUE.equals(user.getIsAdmin()));
+        return jwtService.generateToken(user.getId(), user.getUsername(), Boolean.TRUE.equals(user.getIsAdmin()));
     }
 }
 
@@ -0,0 +1,435 @@
+package com.example.store;
+
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 内存中的 BM25 倒排索引，与向量库使用相同的片段 id
+ * <p>
+ * 每个词项的倒排表是一个 int 数组，按槽位递增交替存放 [槽位, 词频]；片段按追加顺序分配槽位。
+ * 删除只打墓碑并扣减文档频率和总长度，墓碑超过存活片段的四分之一时按片段保存的词项重建倒排表。
+ * 分词：拉丁字母和数字按连续串切分并转小写，带连接符的串（如 ERR-1042、v1.2.3）额外保留整体；
+ * 中日韩文字按相邻两字切分（单字时保留单字）。
+ */
+public class Bm25Index {
+    private static final Logger log = LoggerFactory.getLogger(Bm25Index.class);
+
+    private final double k1;
+    private final double b;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // 词项
+    private final Map<String, Integer> termIds = new HashMap<>();
+    private int[][] postings = new int[1024][];
+    private int[] postingLengths = new int[1024];
+    private int[] docFreq = new int[1024];
+
+    // 片段
+    private String[] ids = new String[1024];
+    private TextSegment[] segments = new TextSegment[1024];
+    private int[] lengths = new int[1024];
+    // 每个片段的 [词项 id, 词频] 对，用于删除时扣减文档频率和重建倒排表
+    private int[][] docTerms = new int[1024][];
+    private final BitSet live = new BitSet();
+    private final Map<String, Integer> slotById = new HashMap<>();
+    private int slots;
+    private long totalLength;
+    private int removedCount;
+
+    private final ThreadLocal<float[]> scratchScores = new ThreadLocal<>();
+
+    public Bm25Index(double k1, double b) {
+        this.k1 = k1;
+        this.b = b;
+    }
+
+    /**
+     * 写入片段；id 已存在时先删除旧片段
+     */
+    public void addAll(List<String> newIds, List<TextSegment> newSegments) {
+        if (newIds.size() != newSegments.size()) {
+            throw new IllegalArgumentException("ids and segments size mismatch");
+        }
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < newIds.size(); i++) {
+                add(newIds.get(i), newSegments.get(i));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 写入新片段并删除 oldIds，检索不会看到中间状态
+     */
+    public void replaceAll(Collection<String> oldIds, List<String> newIds, List<TextSegment> newSegments) {
+        lock.writeLock().lock();
+        try {
+            addAll(newIds, newSegments);
+            removeAll(oldIds);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeAll(Collection<String> toRemove) {
+        if (toRemove == null || toRemove.isEmpty()) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            for (String id : toRemove) {
+                remove(id);
+            }
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 删除 metadata 中 source 等于 fileName 的片段
+     */
+    public void removeBySource(String fileName) {
+        lock.writeLock().lock();
+        try {
+            List<String> matched = new ArrayList<>();
+            for (int slot = live.nextSetBit(0); slot >= 0; slot = live.nextSetBit(slot + 1)) {
+                if (fileName.equals(segments[slot].metadata().getString("source"))) {
+                    matched.add(ids[slot]);
+                }
+            }
+            removeAll(matched);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * BM25 检索
+     * @return 按分数降序的片段，score 为 BM25 分数，embedding 为 null
+     */
+    public List<EmbeddingMatch<TextSegment>> search(String query, int maxResults) {
+        Set<String> queryTerms = new LinkedHashSet<>(tokenize(query));
+        if (queryTerms.isEmpty() || maxResults <= 0) {
+            return List.of();
+        }
+        lock.readLock().lock();
+        try {
+            int n = slotById.size();
+            if (n == 0) {
+                return List.of();
+            }
+            double avgLength = Math.max(1.0, (double) totalLength / n);
+            float[] scores = scratch(slots);
+            int[] touched = new int[64];
+            int touchedCount = 0;
+            for (String term : queryTerms) {
+                Integer termId = termIds.get(term);
+                if (termId == null || docFreq[termId] == 0) {
+                    continue;
+                }
+                int df = docFreq[termId];
+                double idf = Math.log(1 + (n - df + 0.5) / (df + 0.5));
+                int[] list = postings[termId];
+                int len = postingLengths[termId];
+                for (int p = 0; p < len; p += 2) {
+                    int slot = list[p];
+                    if (!live.get(slot)) {
+                        continue;
+                    }
+                    int tf = list[p + 1];
+                    double norm = k1 * (1 - b + b * lengths[slot] / avgLength);
+                    if (scores[slot] == 0) {
+                        if (touchedCount == touched.length) {
+                            touched = Arrays.copyOf(touched, touchedCount * 2);
+                        }
+                        touched[touchedCount++] = slot;
+                    }
+                    scores[slot] += (float) (idf * tf * (k1 + 1) / (tf + norm));
+                }
+            }
+
+            PriorityQueue<ScoredSlot> top = new PriorityQueue<>(maxResults + 1, (x, y) -> Float.compare(x.score, y.score));
+            for (int i = 0; i < touchedCount; i++) {
+                int slot = touched[i];
+                float score = scores[slot];
+                scores[slot] = 0;
+                if (top.size() < maxResults) {
+                    top.add(new ScoredSlot(slot, score));
+                } else if (score > top.peek().score) {
+                    top.poll();
+                    top.add(new ScoredSlot(slot, score));
+                }
+            }
+            List<EmbeddingMatch<TextSegment>> matches = new ArrayList<>(top.size());
+            while (!top.isEmpty()) {
+                ScoredSlot s = top.poll();
+                matches.add(new EmbeddingMatch<>((double) s.score, ids[s.slot], null, segments[s.slot]));
+            }
+            Collections.reverse(matches);
+            return matches;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 当前有效的片段数量
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return slotById.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int termCount() {
+        lock.readLock().lock();
+        try {
+            return termIds.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private record ScoredSlot(int slot, float score) {}
+
+    private float[] scratch(int size) {
+        float[] scores = scratchScores.get();
+        if (scores == null || scores.length < size) {
+            scores = new float[Math.max(size, 1024)];
+            scratchScores.set(scores);
+        }
+        return scores;
+    }
+
+    // ---------------------------------------------------------------- 写入
+
+    private void add(String id, TextSegment segment) {
+        Integer previous = slotById.get(id);
+        if (previous != null) {
+            remove(id);
+        }
+        List<String> tokens = tokenize(segment.text());
+        Map<Integer, int[]> tf = new HashMap<>();
+        for (String token : tokens) {
+            Integer termId = termIds.get(token);
+            if (termId == null) {
+                termId = termIds.size();
+                termIds.put(token, termId);
+                ensureTermCapacity(termId + 1);
+            }
+            tf.computeIfAbsent(termId, k -> new int[1])[0]++;
+        }
+        int[] pairs = new int[tf.size() * 2];
+        int p = 0;
+        for (Map.Entry<Integer, int[]> e : tf.entrySet()) {
+            pairs[p++] = e.getKey();
+            pairs[p++] = e.getValue()[0];
+        }
+
+        int slot = slots++;
+        ensureDocCapacity(slots);
+        ids[slot] = id;
+        segments[slot] = segment;
+        lengths[slot] = tokens.size();
+        docTerms[slot] = pairs;
+        live.set(slot);
+        slotById.put(id, slot);
+        totalLength += tokens.size();
+        post(slot, pairs);
+    }
+
+    private void post(int slot, int[] pairs) {
+        for (int i = 0; i < pairs.length; i += 2) {
+            int termId = pairs[i];
+            int[] list = postings[termId];
+            int len = postingLengths[termId];
+            if (list == null) {
+                list = new int[4];
+            } else if (len + 2 > list.length) {
+                list = Arrays.copyOf(list, list.length * 2);
+            }
+            list[len] = slot;
+            list[len + 1] = pairs[i + 1];
+            postings[termId] = list;
+            postingLengths[termId] = len + 2;
+            docFreq[termId]++;
+        }
+    }
+
+    private void remove(String id) {
+        Integer slot = slotById.remove(id);
+        if (slot == null) {
+            return;
+        }
+        live.clear(slot);
+        int[] pairs = docTerms[slot];
+        for (int i = 0; i < pairs.length; i += 2) {
+            docFreq[pairs[i]]--;
+        }
+        totalLength -= lengths[slot];
+        segments[slot] = null;
+        removedCount++;
+    }
+
+    private void ensureTermCapacity(int capacity) {
+        if (postings.length >= capacity) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, postings.length * 2);
+        postings = Arrays.copyOf(postings, newCapacity);
+        postingLengths = Arrays.copyOf(postingLengths, newCapacity);
+        docFreq = Arrays.copyOf(docFreq, newCapacity);
+    }
+
+    private void ensureDocCapacity(int capacity) {
+        if (ids.length >= capacity) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, ids.length * 2);
+        ids = Arrays.copyOf(ids, newCapacity);
+        segments = Arrays.copyOf(segments, newCapacity);
+        lengths = Arrays.copyOf(lengths, newCapacity);
+        docTerms = Arrays.copyOf(docTerms, newCapacity);
+    }
+
+    /**
+     * 墓碑过多时把存活片段重新编号并重建倒排表，分词结果直接复用
+     */
+    private void compactIfNeeded() {
+        if (removedCount <= 1024 || removedCount <= slotById.size() / 4) {
+            return;
+        }
+        long t0 = System.currentTimeMillis();
+        int liveCount = slotById.size();
+        String[] newIds = new String[Math.max(1024, liveCount)];
+        TextSegment[] newSegments = new TextSegment[newIds.length];
+        int[] newLengths = new int[newIds.length];
+        int[][] newDocTerms = new int[newIds.length][];
+        Arrays.fill(postingLengths, 0);
+        Arrays.fill(docFreq, 0);
+        slotById.clear();
+        int next = 0;
+        for (int slot = live.nextSetBit(0); slot >= 0; slot = live.nextSetBit(slot + 1)) {
+            newIds[next] = ids[slot];
+            newSegments[next] = segments[slot];
+            newLengths[next] = lengths[slot];
+            newDocTerms[next] = docTerms[slot];
+            slotById.put(ids[slot], next);
+            next++;
+        }
+        ids = newIds;
+        segments = newSegments;
+        lengths = newLengths;
+        docTerms = newDocTerms;
+        live.clear();
+        live.set(0, next);
+        slots = next;
+        removedCount = 0;
+        for (int i = 0; i < termIds.size(); i++) {
+            // 重建时按实际长度重新分配，释放删除后多余的空间
+            postings[i] = null;
+        }
+        for (int slot = 0; slot < next; slot++) {
+            post(slot, docTerms[slot]);
+        }
+        log.info("[Bm25Index] compacted, segments={}, terms={}, costMs={}", next, termIds.size(), System.currentTimeMillis() - t0);
+    }
+
+    // ---------------------------------------------------------------- 分词
+
+    /**
+     * 把文本切分为检索词项，索引和查询使用同一规则
+     */
+    public static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null || text.isEmpty()) {
+            return tokens;
+        }
+        StringBuilder word = new StringBuilder();
+        StringBuilder compound = new StringBuilder();
+        boolean joined = false;
+        StringBuilder cjk = new StringBuilder();
+        int n = text.length();
+        for (int i = 0; i < n; i++) {
+            char c = text.charAt(i);
+            if (isCjk(c)) {
+                joined = flushWord(tokens, word, compound, joined);
+                cjk.append(c);
+                continue;
+            }
+            flushCjk(tokens, cjk);
+            if (Character.isLetterOrDigit(c)) {
+                char lower = Character.toLowerCase(c);
+                word.append(lower);
+                compound.append(lower);
+            } else if (isConnector(c) && word.length() > 0 && i + 1 < n
+                    && Character.isLetterOrDigit(text.charAt(i + 1)) && !isCjk(text.charAt(i + 1))) {
+                tokens.add(word.toString());
+                word.setLength(0);
+                compound.append(c);
+                joined = true;
+            } else {
+                joined = flushWord(tokens, word, compound, joined);
+            }
+        }
+        flushWord(tokens, word, compound, joined);
+        flushCjk(tokens, cjk);
+        return tokens;
+    }
+
+    private static boolean flushWord(List<String> tokens, StringBuilder word, StringBuilder compound, boolean joined) {
+        if (word.length() > 0) {
+            tokens.add(word.toString());
+        }
+        if (joined) {
+            tokens.add(compound.toString());
+        }
+        word.setLength(0);
+        compound.setLength(0);
+        return false;
+    }
+
+    private static void flushCjk(List<String> tokens, StringBuilder cjk) {
+        int len = cjk.length();
+        if (len == 1) {
+            tokens.add(cjk.toString());
+        }
+        for (int i = 0; i + 1 < len; i++) {
+            tokens.add(cjk.substring(i, i + 2));
+        }
+        cjk.setLength(0);
+    }
+
+    private static boolean isConnector(char c) {
+        return c == '-' || c == '_' || c == '.' || c == '/' || c == ':' || c == '#';
+    }
+
+    private static boolean isCjk(char c) {
+        return (c >= 0x4E00 && c <= 0x9FFF)      // 中日韩统一表意文字
+                || (c >= 0x3400 && c <= 0x4DBF)  // 扩展 A
+                || (c >= 0x3040 && c <= 0x30FF)  // 平假名、片假名
+                || (c >= 0xAC00 && c <= 0xD7AF)  // 谚文音节
+                || (c >= 0xF900 && c <= 0xFAFF); // 兼容表意文字
+    }
+}
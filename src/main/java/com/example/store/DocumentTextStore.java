@@ -0,0 +1,112 @@
+package com.example.store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.regex.Pattern;
+
+/**
+ * 文档提取文本的旁路文件，保存在 index-dir/text/&lt;sha256&gt;.txt（UTF-8 纯文本）
+ * <p>
+ * 以原文件内容的 SHA-256 为键，内容相同的文档共用一份。索引时写入，预览时直接以文件形式返回，
+ * 不再重复解析 PDF / Word；未压缩存储，便于按 Range 分段读取。
+ */
+public class DocumentTextStore {
+    private static final Logger log = LoggerFactory.getLogger(DocumentTextStore.class);
+    private static final Pattern SHA256 = Pattern.compile("[0-9a-f]{64}");
+
+    private final Path dir;
+
+    private DocumentTextStore(Path dir) {
+        this.dir = dir;
+    }
+
+    public static DocumentTextStore open(Path indexDir) throws IOException {
+        Path dir = indexDir.resolve("text");
+        Files.createDirectories(dir);
+        return new DocumentTextStore(dir);
+    }
+
+    public Path path(String sha256) {
+        if (sha256 == null || !SHA256.matcher(sha256).matches()) {
+            throw new IllegalArgumentException("Invalid content hash: " + sha256);
+        }
+        return dir.resolve(sha256 + ".txt");
+    }
+
+    public boolean exists(String sha256) {
+        return Files.isRegularFile(path(sha256));
+    }
+
+    /**
+     * 开始写入一份文本：内容先追加到临时文件，{@link Pending#commit()} 时原子替换，
+     * 并发写入同一内容时结果一致；未提交就关闭会删除临时文件
+     */
+    public Pending begin(String sha256) throws IOException {
+        Path target = path(sha256);
+        Path tmp = Files.createTempFile(dir, sha256, ".tmp");
+        try {
+            return new Pending(sha256, target, tmp, Files.newBufferedWriter(tmp, StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+
+    public void delete(String sha256) throws IOException {
+        if (Files.deleteIfExists(path(sha256))) {
+            log.info("[DocumentTextStore] text removed, sha256={}", sha256);
+        }
+    }
+
+    public static final class Pending implements Closeable {
+        private final String sha256;
+        private final Path target;
+        private final Path tmp;
+        private final Writer writer;
+        private boolean closed;
+
+        private Pending(String sha256, Path target, Path tmp, Writer writer) {
+            this.sha256 = sha256;
+            this.target = target;
+            this.tmp = tmp;
+            this.writer = writer;
+        }
+
+        public void append(String text) throws IOException {
+            writer.write(text);
+        }
+
+        public Path commit() throws IOException {
+            closed = true;
+            try {
+                writer.close();
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+            log.debug("[DocumentTextStore] text saved, sha256={}, bytes={}", sha256, Files.size(target));
+            return target;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                writer.close();
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+}
@@ -0,0 +1,846 @@
+package com.example.store;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.RelevanceScore;
+import dev.langchain4j.store.embedding.filter.Filter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+/**
+ * 基于 HNSW 图的近似最近邻向量库
+ * <p>
+ * 向量和元数据仍由 {@link MappedEmbeddingStore} 持久化，本类只在其上维护一张以槽位号为节点的 HNSW 图，
+ * 新增向量时增量插入图中。删除沿用墓碑：节点保留在图里参与遍历，但不会出现在结果中；
+ * 检索时按墓碑比例放大候选集，墓碑过多时只用存活节点重建图。
+ * 图在关闭时写入 {@code hnsw.graph}，下次打开时如果与向量库一致则直接加载，否则从向量重建。
+ * 带 metadata 过滤条件的检索退回精确扫描。
+ */
+public class HnswEmbeddingStore implements EmbeddingStore<TextSegment>, ReplaceableEmbeddingStore, ScannableEmbeddingStore,
+        Closeable {
+    private static final Logger log = LoggerFactory.getLogger(HnswEmbeddingStore.class);
+
+    static final String GRAPH_FILE = "hnsw.graph";
+    private static final int GRAPH_MAGIC = 0x484e5357; // "HNSW"
+
+    private final MappedEmbeddingStore delegate;
+    private final int m;
+    private final int maxM0;
+    private final int efConstruction;
+    private final int efSearch;
+    private final double levelMultiplier;
+    private final double recallSampleRate;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Random random = new Random(42);
+
+    // 按节点（槽位）索引；level 为 -1 表示节点不在图中
+    private int[] levels = new int[0];
+    // 每层邻接表第 0 位存放邻居数量
+    private int[][] links0 = new int[0][];
+    private int[][][] upperLinks = new int[0][][];
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+    // 图中的节点数，以及其中已在底层库删除的墓碑节点数
+    private int nodeCount;
+    private int deadNodes;
+
+    private final ThreadLocal<Visited> visited = ThreadLocal.withInitial(Visited::new);
+    private final AtomicLong recallSamples = new AtomicLong();
+    private final AtomicLong recallHits = new AtomicLong();
+    private final AtomicLong recallExpected = new AtomicLong();
+
+    private HnswEmbeddingStore(MappedEmbeddingStore delegate, int m, int efConstruction, int efSearch, double recallSampleRate) {
+        this.delegate = delegate;
+        this.m = m;
+        this.maxM0 = m * 2;
+        this.efConstruction = efConstruction;
+        this.efSearch = efSearch;
+        this.levelMultiplier = 1.0 / Math.log(m);
+        this.recallSampleRate = recallSampleRate;
+    }
+
+    /**
+     * 在已打开的向量库之上加载或重建 HNSW 图
+     *
+     * @param m                每个节点的邻居数（第 0 层为 2M）
+     * @param efConstruction   建图时的候选集大小
+     * @param efSearch         检索时的候选集大小，越大召回越高、越慢
+     * @param recallSampleRate 按此比例抽样与精确检索对比召回率，0 表示关闭
+     */
+    public static HnswEmbeddingStore open(MappedEmbeddingStore delegate, int m, int efConstruction, int efSearch,
+                                          double recallSampleRate) throws IOException {
+        long t0 = System.currentTimeMillis();
+        HnswEmbeddingStore store = new HnswEmbeddingStore(delegate, m, efConstruction, efSearch, recallSampleRate);
+        Path graphFile = delegate.dir().resolve(GRAPH_FILE);
+        boolean loaded = store.loadGraph(graphFile);
+        if (loaded) {
+            store.recount();
+            store.repairIfNeeded();
+        } else {
+            store.rebuild();
+        }
+        // 图只在正常关闭时写回，删除旧文件避免异常退出后加载到过期的图
+        Files.deleteIfExists(graphFile);
+        log.info("[HnswEmbeddingStore] opened, nodes={}, deadNodes={}, loaded={}, m={}, efConstruction={}, efSearch={}, costMs={}",
+                delegate.size(), store.deadNodes, loaded, m, efConstruction, efSearch, System.currentTimeMillis() - t0);
+        return store;
+    }
+
+    private void rebuild() {
+        int count = delegate.slotCount();
+        ensureCapacity(count);
+        for (int slot = 0; slot < count; slot++) {
+            if (delegate.isLive(slot)) {
+                insert(slot, delegate.vector(slot));
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------- 写入
+
+    @Override
+    public String add(Embedding embedding) {
+        lock.writeLock().lock();
+        try {
+            String id = delegate.add(embedding);
+            index(List.of(id));
+            return id;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void add(String id, Embedding embedding) {
+        lock.writeLock().lock();
+        try {
+            // 同一 id 重复写入时旧槽位变成墓碑
+            int[] previous = graphSlots(List.of(id));
+            delegate.add(id, embedding);
+            index(List.of(id));
+            retire(previous);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String add(Embedding embedding, TextSegment segment) {
+        lock.writeLock().lock();
+        try {
+            String id = delegate.add(embedding, segment);
+            index(List.of(id));
+            return id;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings) {
+        lock.writeLock().lock();
+        try {
+            List<String> ids = delegate.addAll(embeddings);
+            index(ids);
+            return ids;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings, List<TextSegment> embedded) {
+        lock.writeLock().lock();
+        try {
+            List<String> ids = delegate.addAll(embeddings, embedded);
+            index(ids);
+            return ids;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void index(List<String> ids) {
+        ensureCapacity(delegate.slotCount());
+        for (String id : ids) {
+            int slot = delegate.slotOf(id);
+            if (slot >= 0 && levels[slot] < 0) {
+                insert(slot, delegate.vector(slot));
+            }
+        }
+    }
+
+    @Override
+    public void removeAll(Collection<String> ids) {
+        lock.writeLock().lock();
+        try {
+            int[] slots = graphSlots(ids);
+            delegate.removeAll(ids);
+            retire(slots);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeAll(Filter filter) {
+        lock.writeLock().lock();
+        try {
+            delegate.removeAll(filter);
+            recount();
+            repairIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeAll() {
+        lock.writeLock().lock();
+        try {
+            delegate.removeAll();
+            recount();
+            repairIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> replaceAll(Collection<String> oldIds, List<Embedding> embeddings, List<TextSegment> embedded) {
+        lock.writeLock().lock();
+        try {
+            // 底层库内部同样原子替换，走精确检索的过滤查询也看不到中间状态
+            int[] oldSlots = graphSlots(oldIds);
+            List<String> newIds = delegate.replaceAll(oldIds, embeddings, embedded);
+            index(newIds);
+            retire(oldSlots);
+            return newIds;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 这些 id 当前在图中的节点
+     */
+    private int[] graphSlots(Collection<String> ids) {
+        int[] slots = new int[ids.size()];
+        int n = 0;
+        for (String id : ids) {
+            int slot = delegate.slotOf(id);
+            if (slot >= 0 && slot < levels.length && levels[slot] >= 0) {
+                slots[n++] = slot;
+            }
+        }
+        return Arrays.copyOf(slots, n);
+    }
+
+    /**
+     * 删除后统计新增的墓碑节点，必要时重建图
+     */
+    private void retire(int[] slots) {
+        for (int slot : slots) {
+            if (!delegate.isLive(slot)) {
+                deadNodes++;
+            }
+        }
+        repairIfNeeded();
+    }
+
+    private void recount() {
+        int nodes = 0;
+        int dead = 0;
+        for (int slot = 0; slot < levels.length; slot++) {
+            if (levels[slot] >= 0) {
+                nodes++;
+                if (!delegate.isLive(slot)) {
+                    dead++;
+                }
+            }
+        }
+        nodeCount = nodes;
+        deadNodes = dead;
+    }
+
+    /**
+     * 墓碑仍然占据束搜索的候选位置，比例过高时召回和速度都会下降；
+     * 与 Bm25Index 的压缩阈值一致，墓碑超过 1024 个且超过存活节点的四分之一时只用存活节点重建图
+     */
+    private void repairIfNeeded() {
+        if (deadNodes <= 1024 || deadNodes <= (nodeCount - deadNodes) / 4) {
+            return;
+        }
+        long t0 = System.currentTimeMillis();
+        int dropped = deadNodes;
+        Arrays.fill(levels, -1);
+        Arrays.fill(links0, null);
+        Arrays.fill(upperLinks, null);
+        entryPoint = -1;
+        maxLevel = -1;
+        nodeCount = 0;
+        deadNodes = 0;
+        rebuild();
+        log.info("[HnswEmbeddingStore] graph rebuilt, droppedDeadNodes={}, nodes={}, costMs={}",
+                dropped, nodeCount, System.currentTimeMillis() - t0);
+    }
+
+    int deadNodes() {
+        return deadNodes;
+    }
+
+    // ---------------------------------------------------------------- 建图
+
+    private void ensureCapacity(int capacity) {
+        if (levels.length >= capacity) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, levels.length * 2);
+        int oldCapacity = levels.length;
+        levels = Arrays.copyOf(levels, newCapacity);
+        Arrays.fill(levels, oldCapacity, newCapacity, -1);
+        links0 = Arrays.copyOf(links0, newCapacity);
+        upperLinks = Arrays.copyOf(upperLinks, newCapacity);
+    }
+
+    private int randomLevel() {
+        return (int) Math.floor(-Math.log(1.0 - random.nextDouble()) * levelMultiplier);
+    }
+
+    private void insert(int node, float[] vector) {
+        nodeCount++;
+        int level = randomLevel();
+        levels[node] = level;
+        links0[node] = new int[maxM0 + 1];
+        if (level > 0) {
+            upperLinks[node] = new int[level][];
+            for (int l = 0; l < level; l++) {
+                upperLinks[node][l] = new int[m + 1];
+            }
+        }
+        if (entryPoint < 0) {
+            entryPoint = node;
+            maxLevel = level;
+            return;
+        }
+
+        int ep = entryPoint;
+        float epScore = delegate.dot(ep, vector);
+        for (int l = maxLevel; l > level; l--) {
+            int[] best = greedy(vector, ep, epScore, l);
+            ep = best[0];
+            epScore = Float.intBitsToFloat(best[1]);
+        }
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            ScoreHeap candidates = searchLayer(vector, ep, epScore, efConstruction, l);
+            int[] selected = selectNeighbors(candidates, l == 0 ? maxM0 : m);
+            for (int neighbor : selected) {
+                connect(node, neighbor, l);
+                connect(neighbor, node, l);
+            }
+            // 下一层从本层最近的节点出发
+            ep = selected.length > 0 ? selected[0] : ep;
+            epScore = delegate.dot(ep, vector);
+        }
+        if (level > maxLevel) {
+            maxLevel = level;
+            entryPoint = node;
+        }
+    }
+
+    private int[] links(int node, int level) {
+        return level == 0 ? links0[node] : upperLinks[node][level - 1];
+    }
+
+    /**
+     * 在单层内贪心移动到离查询最近的节点，返回 [节点, 分数的 float bits]
+     */
+    private int[] greedy(float[] query, int ep, float epScore, int level) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int[] nb = links(ep, level);
+            for (int i = 1; i <= nb[0]; i++) {
+                float s = delegate.dot(nb[i], query);
+                if (s > epScore) {
+                    epScore = s;
+                    ep = nb[i];
+                    changed = true;
+                }
+            }
+        }
+        return new int[]{ep, Float.floatToIntBits(epScore)};
+    }
+
+    /**
+     * 单层束搜索，返回分数最高的 ef 个节点（小顶堆）
+     */
+    private ScoreHeap searchLayer(float[] query, int ep, float epScore, int ef, int level) {
+        Visited v = visited.get();
+        v.reset(levels.length);
+        ScoreHeap candidates = new ScoreHeap(ef * 2, true);
+        ScoreHeap results = new ScoreHeap(ef + 1, false);
+        v.mark(ep);
+        candidates.push(ep, epScore);
+        results.push(ep, epScore);
+        while (candidates.size() > 0) {
+            float cScore = candidates.peekScore();
+            if (results.size() >= ef && cScore < results.peekScore()) {
+                break;
+            }
+            int c = candidates.pop();
+            int[] nb = links(c, level);
+            for (int i = 1; i <= nb[0]; i++) {
+                int n = nb[i];
+                if (v.isMarked(n)) {
+                    continue;
+                }
+                v.mark(n);
+                float s = delegate.dot(n, query);
+                if (results.size() < ef || s > results.peekScore()) {
+                    candidates.push(n, s);
+                    results.push(n, s);
+                    if (results.size() > ef) {
+                        results.pop();
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * 启发式邻居选择：候选只有在比已选邻居更接近查询点时才入选，保持图的多样性
+     */
+    private int[] selectNeighbors(ScoreHeap candidates, int max) {
+        int n = candidates.size();
+        int[] nodes = new int[n];
+        float[] scores = new float[n];
+        for (int i = n - 1; i >= 0; i--) {
+            scores[i] = candidates.peekScore();
+            nodes[i] = candidates.pop();
+        }
+        return selectFromSorted(nodes, scores, max);
+    }
+
+    private int[] selectFromSorted(int[] nodes, float[] scores, int max) {
+        int dim = delegate.dimension();
+        int[] selected = new int[Math.min(max, nodes.length)];
+        // 已入选邻居的向量缓存在堆上，避免两两比较时反复读取映射内存
+        float[][] selectedVectors = new float[selected.length][];
+        boolean[] taken = new boolean[nodes.length];
+        float[] candidate = new float[dim];
+        int count = 0;
+        for (int i = 0; i < nodes.length && count < selected.length; i++) {
+            delegate.read(nodes[i], candidate);
+            boolean keep = true;
+            for (int j = 0; j < count; j++) {
+                if (MappedEmbeddingStore.dot(candidate, selectedVectors[j], dim) > scores[i]) {
+                    keep = false;
+                    break;
+                }
+            }
+            if (keep) {
+                selectedVectors[count] = candidate;
+                selected[count++] = nodes[i];
+                taken[i] = true;
+                candidate = new float[dim];
+            }
+        }
+        // 启发式选出的数量不足时用剩余最近的候选补齐
+        for (int i = 0; i < nodes.length && count < selected.length; i++) {
+            if (!taken[i]) {
+                selected[count++] = nodes[i];
+            }
+        }
+        return selected;
+    }
+
+    private void connect(int from, int to, int level) {
+        int[] nb = links(from, level);
+        int cap = nb.length - 1;
+        int size = nb[0];
+        for (int i = 1; i <= size; i++) {
+            if (nb[i] == to) {
+                return;
+            }
+        }
+        if (size < cap) {
+            nb[size + 1] = to;
+            nb[0] = size + 1;
+            return;
+        }
+        // 邻居已满：反向连接只替换掉离 from 最远的邻居，不再重跑启发式（O(M) 而不是 O(M^2) 次点积）
+        float[] fromVector = delegate.vector(from);
+        int worst = -1;
+        float worstScore = delegate.dot(to, fromVector);
+        for (int i = 1; i <= size; i++) {
+            float s = delegate.dot(nb[i], fromVector);
+            if (s < worstScore) {
+                worstScore = s;
+                worst = i;
+            }
+        }
+        if (worst > 0) {
+            nb[worst] = to;
+        }
+    }
+
+    // ---------------------------------------------------------------- 检索
+
+    @Override
+    public EmbeddingSearchResult<TextSegment> search(EmbeddingSearchRequest request) {
+        if (request.filter() != null) {
+            return delegate.search(request);
+        }
+        EmbeddingSearchResult<TextSegment> result = approximate(request);
+        if (recallSampleRate > 0 && ThreadLocalRandom.current().nextDouble() < recallSampleRate) {
+            sampleRecall(request, result);
+        }
+        return result;
+    }
+
+    private EmbeddingSearchResult<TextSegment> approximate(EmbeddingSearchRequest request) {
+        float[] query = MappedEmbeddingStore.normalized(request.queryEmbedding().vector());
+        int k = request.maxResults();
+        lock.readLock().lock();
+        try {
+            if (entryPoint < 0) {
+                return new EmbeddingSearchResult<>(List.of());
+            }
+            int ep = entryPoint;
+            float epScore = delegate.dot(ep, query);
+            for (int l = maxLevel; l > 0; l--) {
+                int[] best = greedy(query, ep, epScore, l);
+                ep = best[0];
+                epScore = Float.intBitsToFloat(best[1]);
+            }
+            int ef = Math.max(efSearch, k);
+            // 墓碑节点同样占据候选位置，按墓碑占比放大 ef，使候选中存活节点的期望数量不变
+            ef += (int) Math.min(nodeCount, (long) ef * deadNodes / Math.max(1, nodeCount - deadNodes));
+            while (true) {
+                ScoreHeap results = searchLayer(query, ep, epScore, ef, 0);
+                int n = results.size();
+                int[] nodes = new int[n];
+                float[] scores = new float[n];
+                for (int i = n - 1; i >= 0; i--) {
+                    scores[i] = results.peekScore();
+                    nodes[i] = results.pop();
+                }
+                List<EmbeddingMatch<TextSegment>> matches = new ArrayList<>(k);
+                boolean belowMinScore = false;
+                for (int i = 0; i < n && matches.size() < k; i++) {
+                    if (!delegate.isLive(nodes[i])) {
+                        continue;
+                    }
+                    double score = RelevanceScore.fromCosineSimilarity(scores[i]);
+                    if (score < request.minScore()) {
+                        belowMinScore = true;
+                        break;
+                    }
+                    matches.add(delegate.match(nodes[i], score));
+                }
+                // 存活结果不足 k 个且候选集已满（还有没遍历到的节点）时加倍 ef 重搜
+                if (matches.size() >= k || belowMinScore || n < ef || ef >= nodeCount) {
+                    return new EmbeddingSearchResult<>(matches);
+                }
+                ef = (int) Math.min(nodeCount, 2L * ef);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void sampleRecall(EmbeddingSearchRequest request, EmbeddingSearchResult<TextSegment> approximate) {
+        List<EmbeddingMatch<TextSegment>> exact = exactSearch(request).matches();
+        Set<String> found = new HashSet<>();
+        for (EmbeddingMatch<TextSegment> match : approximate.matches()) {
+            found.add(match.embeddingId());
+        }
+        int hits = 0;
+        for (EmbeddingMatch<TextSegment> match : exact) {
+            if (found.contains(match.embeddingId())) {
+                hits++;
+            }
+        }
+        long samples = recallSamples.incrementAndGet();
+        recallHits.addAndGet(hits);
+        recallExpected.addAndGet(exact.size());
+        log.debug("[HnswEmbeddingStore] recall sample, k={}, hits={}, expected={}", request.maxResults(), hits, exact.size());
+        if (samples % 100 == 0) {
+            log.info("[HnswEmbeddingStore] recall vs exact, samples={}, avgRecall={}", samples, String.format("%.4f", averageRecall()));
+        }
+    }
+
+    /**
+     * 精确（暴力扫描）检索，用于对比近似检索的召回率
+     */
+    public EmbeddingSearchResult<TextSegment> exactSearch(EmbeddingSearchRequest request) {
+        lock.readLock().lock();
+        try {
+            return delegate.search(request);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 计算一次查询的 recall@k：近似结果中命中精确 top-k 的比例
+     */
+    public double recallAgainstExact(Embedding query, int k) {
+        EmbeddingSearchRequest request = EmbeddingSearchRequest.builder()
+                .queryEmbedding(query)
+                .maxResults(k)
+                .build();
+        List<EmbeddingMatch<TextSegment>> exact = exactSearch(request).matches();
+        if (exact.isEmpty()) {
+            return 1.0;
+        }
+        Set<String> found = new HashSet<>();
+        for (EmbeddingMatch<TextSegment> match : approximate(request).matches()) {
+            found.add(match.embeddingId());
+        }
+        long hits = exact.stream().filter(match -> found.contains(match.embeddingId())).count();
+        return (double) hits / exact.size();
+    }
+
+    /**
+     * 抽样统计得到的平均召回率，没有样本时返回 NaN
+     */
+    public double averageRecall() {
+        long expected = recallExpected.get();
+        return expected == 0 ? Double.NaN : (double) recallHits.get() / expected;
+    }
+
+    public int size() {
+        return delegate.size();
+    }
+
+    @Override
+    public void forEachSegment(BiConsumer<String, TextSegment> action) {
+        delegate.forEachSegment(action);
+    }
+
+    // ---------------------------------------------------------------- 持久化
+
+    private boolean loadGraph(Path graphFile) throws IOException {
+        if (!Files.exists(graphFile)) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(graphFile)))) {
+            if (in.readInt() != GRAPH_MAGIC || in.readInt() != m) {
+                return false;
+            }
+            int count = in.readInt();
+            if (count != delegate.slotCount()) {
+                log.info("[HnswEmbeddingStore] graph file out of date, graphNodes={}, slots={}", count, delegate.slotCount());
+                return false;
+            }
+            int ep = in.readInt();
+            int top = in.readInt();
+            ensureCapacity(count);
+            for (int node = 0; node < count; node++) {
+                int level = in.readInt();
+                levels[node] = level;
+                if (level < 0) {
+                    continue;
+                }
+                links0[node] = readLinks(in, maxM0);
+                if (level > 0) {
+                    upperLinks[node] = new int[level][];
+                    for (int l = 0; l < level; l++) {
+                        upperLinks[node][l] = readLinks(in, m);
+                    }
+                }
+            }
+            entryPoint = ep;
+            maxLevel = top;
+            return true;
+        } catch (IOException e) {
+            log.warn("[HnswEmbeddingStore] failed to load graph, rebuilding: {}", e.getMessage());
+            Arrays.fill(levels, -1);
+            entryPoint = -1;
+            maxLevel = -1;
+            return false;
+        }
+    }
+
+    private static int[] readLinks(DataInputStream in, int cap) throws IOException {
+        int[] nb = new int[cap + 1];
+        int size = in.readInt();
+        if (size > cap) {
+            throw new IOException("Corrupted graph file, neighbors=" + size);
+        }
+        nb[0] = size;
+        for (int i = 1; i <= size; i++) {
+            nb[i] = in.readInt();
+        }
+        return nb;
+    }
+
+    private void saveGraph(Path graphFile) throws IOException {
+        Path tmp = graphFile.resolveSibling(GRAPH_FILE + ".tmp");
+        int count = delegate.slotCount();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(GRAPH_MAGIC);
+            out.writeInt(m);
+            out.writeInt(count);
+            out.writeInt(entryPoint);
+            out.writeInt(maxLevel);
+            for (int node = 0; node < count; node++) {
+                int level = node < levels.length ? levels[node] : -1;
+                out.writeInt(level);
+                if (level < 0) {
+                    continue;
+                }
+                for (int l = 0; l <= level; l++) {
+                    int[] nb = links(node, l);
+                    out.writeInt(nb[0]);
+                    for (int i = 1; i <= nb[0]; i++) {
+                        out.writeInt(nb[i]);
+                    }
+                }
+            }
+        }
+        Files.move(tmp, graphFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            saveGraph(delegate.dir().resolve(GRAPH_FILE));
+            delegate.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // ---------------------------------------------------------------- 辅助结构
+
+    /**
+     * 基于数组的二叉堆，max 为 true 时堆顶是最高分，否则是最低分
+     */
+    private static final class ScoreHeap {
+        private int[] nodes;
+        private float[] scores;
+        private int size;
+        private final boolean max;
+
+        ScoreHeap(int capacity, boolean max) {
+            this.nodes = new int[Math.max(capacity, 4)];
+            this.scores = new float[nodes.length];
+            this.max = max;
+        }
+
+        int size() {
+            return size;
+        }
+
+        float peekScore() {
+            return scores[0];
+        }
+
+        private boolean above(float a, float b) {
+            return max ? a > b : a < b;
+        }
+
+        void push(int node, float score) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                scores = Arrays.copyOf(scores, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!above(score, scores[parent])) {
+                    break;
+                }
+                nodes[i] = nodes[parent];
+                scores[i] = scores[parent];
+                i = parent;
+            }
+            nodes[i] = node;
+            scores[i] = score;
+        }
+
+        int pop() {
+            int top = nodes[0];
+            size--;
+            int lastNode = nodes[size];
+            float lastScore = scores[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && above(scores[child + 1], scores[child])) {
+                    child++;
+                }
+                if (!above(scores[child], lastScore)) {
+                    break;
+                }
+                nodes[i] = nodes[child];
+                scores[i] = scores[child];
+                i = child;
+            }
+            nodes[i] = lastNode;
+            scores[i] = lastScore;
+            return top;
+        }
+    }
+
+    /**
+     * 按线程复用的访问标记，用递增的 epoch 代替每次清空数组
+     */
+    private static final class Visited {
+        private int[] marks = new int[0];
+        private int epoch;
+
+        void reset(int capacity) {
+            if (marks.length < capacity) {
+                marks = new int[Math.max(capacity, marks.length * 2)];
+                epoch = 0;
+            }
+            epoch++;
+            if (epoch == Integer.MAX_VALUE) {
+                Arrays.fill(marks, 0);
+                epoch = 1;
+            }
+        }
+
+        boolean isMarked(int node) {
+            return marks[node] == epoch;
+        }
+
+        void mark(int node) {
+            marks[node] = epoch;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.example.store;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 已索引文件清单，与向量库一起保存在 index-dir 下的 manifest.json
+ * <p>
+ * 记录每个文件的大小、修改时间、SHA-256 以及写入向量库的片段 id，
+ * 启动时据此只处理新增或变化的文件，并清理已消失文件的向量。
+ */
+public class IndexManifest {
+    private static final Logger log = LoggerFactory.getLogger(IndexManifest.class);
+
+    static final String MANIFEST_FILE = "manifest.json";
+
+    public record Entry(String path, long size, long mtime, String sha256, List<String> chunkIds) {}
+
+    private final Path file;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    private IndexManifest(Path file) {
+        this.file = file;
+    }
+
+    public static IndexManifest load(Path indexDir) throws IOException {
+        Files.createDirectories(indexDir);
+        IndexManifest manifest = new IndexManifest(indexDir.resolve(MANIFEST_FILE));
+        if (Files.exists(manifest.file)) {
+            List<Entry> list = manifest.objectMapper.readValue(manifest.file.toFile(), new TypeReference<List<Entry>>() {});
+            for (Entry e : list) {
+                manifest.entries.put(e.path(), e);
+            }
+        }
+        log.info("[IndexManifest] loaded, file={}, entries={}", manifest.file, manifest.entries.size());
+        return manifest;
+    }
+
+    private static String key(Path path) {
+        return path.toAbsolutePath().normalize().toString();
+    }
+
+    public synchronized Entry get(Path path) {
+        return entries.get(key(path));
+    }
+
+    /**
+     * 大小和修改时间都与清单一致时认为文件未变化，无需计算哈希
+     */
+    public synchronized boolean isUnchanged(Path path) throws IOException {
+        Entry e = entries.get(key(path));
+        return e != null && e.size() == Files.size(path)
+                && e.mtime() == Files.getLastModifiedTime(path).toMillis();
+    }
+
+    public synchronized void put(Path path, String sha256, List<String> chunkIds) throws IOException {
+        String k = key(path);
+        entries.put(k, new Entry(k, Files.size(path), Files.getLastModifiedTime(path).toMillis(), sha256, List.copyOf(chunkIds)));
+    }
+
+    public synchronized Entry remove(Path path) {
+        return entries.remove(key(path));
+    }
+
+    public synchronized List<Entry> entries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * 先写临时文件再原子替换，避免写到一半时进程退出导致清单损坏
+     */
+    public synchronized void save() throws IOException {
+        Path tmp = file.resolveSibling(MANIFEST_FILE + ".tmp");
+        objectMapper.writeValue(tmp.toFile(), new ArrayList<>(entries.values()));
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static String sha256(Path path) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (InputStream in = new DigestInputStream(Files.newInputStream(path), digest)) {
+            byte[] buffer = new byte[64 * 1024];
+            while (in.read(buffer) != -1) {
+                // 读取过程中更新摘要
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+}
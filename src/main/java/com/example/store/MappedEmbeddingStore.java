@@ -0,0 +1,799 @@
+package com.example.store;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.RelevanceScore;
+import dev.langchain4j.store.embedding.filter.Filter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 基于内存映射文件的持久化向量库
+ * <p>
+ * 目录结构：
+ * <ul>
+ *   <li>{@code vectors.f32}：16 字节文件头 + 按槽位顺序排列的归一化 float 向量（小端），通过 mmap 读写，不占用 JVM 堆；
+ *   版本 1 的文件是大端，打开时转换为版本 2</li>
+ *   <li>{@code segments.log}：追加写的元数据日志（ADD/REMOVE 记录），启动时回放得到 id、文本和 metadata</li>
+ *   <li>{@code CURRENT}：当前代号。压缩把数据写成新一代的 {@code vectors.<代号>.f32} / {@code segments.<代号>.log}，
+ *   最后原子替换 CURRENT 完成切换；没有 CURRENT 时为第 0 代，即上面两个文件名</li>
+ * </ul>
+ * 槽位只追加不复用，删除只写墓碑；重新打开时如果墓碑过多会先做一次压缩，并清理中断的压缩留下的文件。
+ * 向量在写入时归一化，因此检索时点积即为余弦相似度。
+ */
+public class MappedEmbeddingStore implements EmbeddingStore<TextSegment>, ReplaceableEmbeddingStore, ScannableEmbeddingStore,
+        Closeable {
+    private static final Logger log = LoggerFactory.getLogger(MappedEmbeddingStore.class);
+
+    static final String VECTORS_FILE = "vectors.f32";
+    static final String SEGMENTS_FILE = "segments.log";
+    static final String CURRENT_FILE = "CURRENT";
+    private static final Pattern GENERATION_FILE = Pattern.compile("(vectors|segments)\\.(\\d+)\\.(f32|log)");
+
+    private static final int MAGIC = 0x52564543; // "RVEC"
+    private static final int VERSION = 2;
+    // 版本 1 按大端存放向量
+    private static final int VERSION_BIG_ENDIAN = 1;
+    private static final int HEADER_BYTES = 16;
+    // 单个映射区域的上限，MappedByteBuffer 不能超过 2GB
+    private static final long MAX_REGION_BYTES = 256L * 1024 * 1024;
+
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+
+    private final Path dir;
+    private final long generation;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private FileChannel channel;
+    private DataOutputStream logOut;
+    private int dimension;
+    private int slotsPerRegion;
+    private final List<MappedByteBuffer> regions = new ArrayList<>();
+    private final List<FloatBuffer> views = new ArrayList<>();
+
+    // 以下结构按槽位下标索引
+    private final List<String> ids = new ArrayList<>();
+    private final List<TextSegment> segments = new ArrayList<>();
+    private final BitSet live = new BitSet();
+    private final Map<String, Integer> slotById = new HashMap<>();
+    private int removedCount;
+
+    private final ThreadLocal<float[]> scratchA = new ThreadLocal<>();
+    private final ThreadLocal<float[]> scratchB = new ThreadLocal<>();
+
+    private MappedEmbeddingStore(Path dir, long generation) {
+        this.dir = dir;
+        this.generation = generation;
+    }
+
+    /**
+     * 打开（或新建）指定目录下的向量库
+     */
+    public static MappedEmbeddingStore open(Path dir) throws IOException {
+        long t0 = System.currentTimeMillis();
+        Files.createDirectories(dir);
+        long generation = readGeneration(dir);
+        discardStaleFiles(dir, generation);
+        MappedEmbeddingStore store = new MappedEmbeddingStore(dir, generation);
+        store.load();
+        if (store.removedCount > 1024 && store.removedCount > store.size() / 4) {
+            store = store.compact();
+        }
+        log.info("[MappedEmbeddingStore] opened, dir={}, segments={}, dimension={}, costMs={}",
+                dir, store.size(), store.dimension, System.currentTimeMillis() - t0);
+        return store;
+    }
+
+    static String vectorsFile(long generation) {
+        return generation == 0 ? VECTORS_FILE : "vectors." + generation + ".f32";
+    }
+
+    static String segmentsFile(long generation) {
+        return generation == 0 ? SEGMENTS_FILE : "segments." + generation + ".log";
+    }
+
+    private static long readGeneration(Path dir) throws IOException {
+        Path current = dir.resolve(CURRENT_FILE);
+        if (!Files.exists(current)) {
+            return 0;
+        }
+        String text = Files.readString(current, StandardCharsets.UTF_8).trim();
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            throw new IOException("Corrupted " + current + ": " + text, e);
+        }
+    }
+
+    /**
+     * 先写临时文件并落盘，再原子替换 CURRENT：切换要么完成要么没有发生
+     */
+    private static void writeGeneration(Path dir, long generation) throws IOException {
+        Path tmp = dir.resolve(CURRENT_FILE + ".tmp");
+        Files.writeString(tmp, Long.toString(generation), StandardCharsets.UTF_8);
+        fsync(tmp);
+        Files.move(tmp, dir.resolve(CURRENT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void fsync(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ch.force(true);
+        }
+    }
+
+    /**
+     * 删除不属于当前代的数据文件和临时文件：中断的压缩写了一半的新一代、切换后没来得及删的旧一代，
+     * 以及旧版本压缩留下的 compact* 临时目录
+     */
+    private static void discardStaleFiles(Path dir, long generation) throws IOException {
+        List<Path> stale = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                Matcher matcher = GENERATION_FILE.matcher(name);
+                boolean staleGeneration = matcher.matches() && Long.parseLong(matcher.group(2)) != generation;
+                boolean staleLegacy = generation != 0 && (name.equals(VECTORS_FILE) || name.equals(SEGMENTS_FILE));
+                boolean leftover = name.equals(CURRENT_FILE + ".tmp") || name.endsWith(".migrate")
+                        || (name.startsWith("compact") && Files.isDirectory(entry));
+                if (staleGeneration || staleLegacy || leftover) {
+                    stale.add(entry);
+                }
+            }
+        }
+        for (Path path : stale) {
+            log.warn("[MappedEmbeddingStore] discarding stale file from an interrupted compaction, path={}", path);
+            deleteRecursively(path);
+        }
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(path)) {
+                for (Path child : children) {
+                    deleteRecursively(child);
+                }
+            }
+        }
+        Files.deleteIfExists(path);
+    }
+
+    private void load() throws IOException {
+        Path vectors = dir.resolve(vectorsFile(generation));
+        Path segmentsLog = dir.resolve(segmentsFile(generation));
+        channel = FileChannel.open(vectors, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() >= HEADER_BYTES) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            channel.read(header, 0);
+            header.flip();
+            int magic = header.getInt();
+            int version = header.getInt();
+            if (magic == MAGIC && version == VERSION_BIG_ENDIAN) {
+                channel.close();
+                migrateBigEndian(vectors);
+                channel = FileChannel.open(vectors, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            } else if (magic != MAGIC || version != VERSION) {
+                throw new IOException("Unrecognized vector file: " + vectors + ", version=" + version);
+            }
+            initDimension(header.getInt(), false);
+        }
+
+        long validBytes = 0;
+        if (Files.exists(segmentsLog)) {
+            try (CountingInputStream counting = new CountingInputStream(new BufferedInputStream(Files.newInputStream(segmentsLog)));
+                 DataInputStream in = new DataInputStream(counting)) {
+                while (true) {
+                    try {
+                        replay(in);
+                        validBytes = counting.count;
+                    } catch (EOFException e) {
+                        break;
+                    }
+                }
+            }
+            if (validBytes < Files.size(segmentsLog)) {
+                // 上次异常退出时留下的半条记录，截掉
+                log.warn("[MappedEmbeddingStore] truncating partial record in {}, validBytes={}", segmentsLog, validBytes);
+                try (FileChannel ch = FileChannel.open(segmentsLog, StandardOpenOption.WRITE)) {
+                    ch.truncate(validBytes);
+                }
+            }
+        }
+        if (dimension > 0 && !ids.isEmpty()) {
+            // 预先映射已有槽位所在的区域，检索时只读不再扩展
+            view(ids.size() - 1);
+        }
+        logOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(segmentsLog.toFile(), true)));
+    }
+
+    /**
+     * 把版本 1（大端）的向量文件转换为小端写入临时文件，再原子替换原文件；中途退出时原文件不受影响
+     */
+    private static void migrateBigEndian(Path vectors) throws IOException {
+        long t0 = System.currentTimeMillis();
+        Path tmp = vectors.resolveSibling(vectors.getFileName() + ".migrate");
+        try (FileChannel in = FileChannel.open(vectors, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                     StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            in.read(header, 0);
+            header.putInt(4, VERSION);
+            header.rewind();
+            out.write(header);
+            ByteBuffer src = ByteBuffer.allocate(1 << 20).order(ByteOrder.BIG_ENDIAN);
+            ByteBuffer dst = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            long position = HEADER_BYTES;
+            while (in.read(src, position) > 0 && src.position() >= Float.BYTES) {
+                position += src.position();
+                src.flip();
+                while (src.remaining() >= Float.BYTES) {
+                    dst.putFloat(src.getFloat());
+                }
+                // 读到的字节数不一定是 4 的倍数，余下的留到下一轮
+                position -= src.remaining();
+                src.clear();
+                dst.flip();
+                out.write(dst);
+                dst.clear();
+            }
+            out.force(true);
+        }
+        Files.move(tmp, vectors, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.info("[MappedEmbeddingStore] migrated big-endian vector file, file={}, costMs={}",
+                vectors, System.currentTimeMillis() - t0);
+    }
+
+    /**
+     * 回放一条日志记录
+     */
+    private void replay(DataInputStream in) throws IOException {
+        byte op = in.readByte();
+        if (op == OP_ADD) {
+            int slot = in.readInt();
+            String id = in.readUTF();
+            int textLen = in.readInt();
+            TextSegment segment = null;
+            if (textLen >= 0) {
+                byte[] textBytes = new byte[textLen];
+                in.readFully(textBytes);
+                int metaCount = in.readUnsignedShort();
+                Map<String, String> meta = new HashMap<>();
+                for (int i = 0; i < metaCount; i++) {
+                    meta.put(in.readUTF(), in.readUTF());
+                }
+                segment = TextSegment.from(new String(textBytes, StandardCharsets.UTF_8), new Metadata(meta));
+            }
+            putSlot(slot, id, segment);
+        } else if (op == OP_REMOVE) {
+            markRemoved(in.readUTF());
+        } else {
+            throw new IOException("Corrupted segment log, op=" + op);
+        }
+    }
+
+    /**
+     * 统计已读取字节数，用于定位最后一条完整记录
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+
+    private void putSlot(int slot, String id, TextSegment segment) {
+        while (ids.size() <= slot) {
+            ids.add(null);
+            segments.add(null);
+        }
+        ids.set(slot, id);
+        segments.set(slot, segment);
+        live.set(slot);
+        Integer previous = slotById.put(id, slot);
+        if (previous != null && previous != slot) {
+            live.clear(previous);
+            segments.set(previous, null);
+            removedCount++;
+        }
+    }
+
+    private boolean markRemoved(String id) {
+        Integer slot = slotById.remove(id);
+        if (slot == null) {
+            return false;
+        }
+        live.clear(slot);
+        segments.set(slot, null);
+        removedCount++;
+        return true;
+    }
+
+    private void initDimension(int dim, boolean writeHeader) throws IOException {
+        this.dimension = dim;
+        long stride = (long) dim * Float.BYTES;
+        this.slotsPerRegion = (int) Math.max(1, MAX_REGION_BYTES / stride);
+        if (writeHeader) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putInt(dim).putInt(0);
+            header.flip();
+            channel.write(header, 0);
+        }
+    }
+
+    private FloatBuffer view(int slot) throws IOException {
+        int region = slot / slotsPerRegion;
+        while (views.size() <= region) {
+            long stride = (long) dimension * Float.BYTES;
+            long offset = HEADER_BYTES + (long) views.size() * slotsPerRegion * stride;
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, offset, slotsPerRegion * stride);
+            regions.add(mapped);
+            views.add(mapped.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer());
+        }
+        return views.get(region);
+    }
+
+    private int base(int slot) {
+        return (slot % slotsPerRegion) * dimension;
+    }
+
+    // ---------------------------------------------------------------- 写入
+
+    @Override
+    public String add(Embedding embedding) {
+        String id = UUID.randomUUID().toString();
+        add(id, embedding);
+        return id;
+    }
+
+    @Override
+    public void add(String id, Embedding embedding) {
+        write(List.of(id), List.of(embedding), null);
+    }
+
+    @Override
+    public String add(Embedding embedding, TextSegment segment) {
+        String id = UUID.randomUUID().toString();
+        write(List.of(id), List.of(embedding), Collections.singletonList(segment));
+        return id;
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings) {
+        List<String> newIds = randomIds(embeddings.size());
+        write(newIds, embeddings, null);
+        return newIds;
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings, List<TextSegment> embedded) {
+        if (embedded != null && embedded.size() != embeddings.size()) {
+            throw new IllegalArgumentException("embeddings and segments size mismatch");
+        }
+        List<String> newIds = randomIds(embeddings.size());
+        write(newIds, embeddings, embedded);
+        return newIds;
+    }
+
+    private static List<String> randomIds(int n) {
+        List<String> result = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            result.add(UUID.randomUUID().toString());
+        }
+        return result;
+    }
+
+    private void write(List<String> newIds, List<Embedding> embeddings, List<TextSegment> embedded) {
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < embeddings.size(); i++) {
+                float[] vector = embeddings.get(i).vector();
+                if (dimension == 0) {
+                    initDimension(vector.length, true);
+                } else if (vector.length != dimension) {
+                    throw new IllegalArgumentException("Embedding dimension " + vector.length + " != store dimension " + dimension);
+                }
+                int slot = ids.size();
+                writeVector(slot, vector);
+                TextSegment segment = embedded == null ? null : embedded.get(i);
+                appendAdd(slot, newIds.get(i), segment);
+                putSlot(slot, newIds.get(i), segment);
+            }
+            logOut.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void writeVector(int slot, float[] vector) throws IOException {
+        double norm = 0;
+        for (float v : vector) {
+            norm += v * v;
+        }
+        float scale = norm > 0 ? (float) (1.0 / Math.sqrt(norm)) : 0f;
+        FloatBuffer fb = view(slot);
+        int base = base(slot);
+        for (int j = 0; j < dimension; j++) {
+            fb.put(base + j, vector[j] * scale);
+        }
+    }
+
+    private void appendAdd(int slot, String id, TextSegment segment) throws IOException {
+        logOut.writeByte(OP_ADD);
+        logOut.writeInt(slot);
+        logOut.writeUTF(id);
+        if (segment == null) {
+            logOut.writeInt(-1);
+            return;
+        }
+        byte[] textBytes = segment.text().getBytes(StandardCharsets.UTF_8);
+        logOut.writeInt(textBytes.length);
+        logOut.write(textBytes);
+        Map<String, String> meta = segment.metadata().asMap();
+        logOut.writeShort(meta.size());
+        for (Map.Entry<String, String> e : meta.entrySet()) {
+            logOut.writeUTF(e.getKey());
+            logOut.writeUTF(e.getValue() == null ? "" : e.getValue());
+        }
+    }
+
+    // ---------------------------------------------------------------- 删除
+
+    @Override
+    public void removeAll(Collection<String> toRemove) {
+        if (toRemove == null || toRemove.isEmpty()) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            for (String id : toRemove) {
+                if (markRemoved(id)) {
+                    logOut.writeByte(OP_REMOVE);
+                    logOut.writeUTF(id);
+                }
+            }
+            logOut.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeAll(Filter filter) {
+        List<String> matched = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (int slot = live.nextSetBit(0); slot >= 0; slot = live.nextSetBit(slot + 1)) {
+                TextSegment segment = segments.get(slot);
+                if (segment != null && filter.test(segment.metadata())) {
+                    matched.add(ids.get(slot));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        removeAll(matched);
+    }
+
+    @Override
+    public void removeAll() {
+        lock.readLock().lock();
+        List<String> all;
+        try {
+            all = new ArrayList<>(slotById.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+        removeAll(all);
+    }
+
+    @Override
+    public List<String> replaceAll(Collection<String> oldIds, List<Embedding> embeddings, List<TextSegment> embedded) {
+        lock.writeLock().lock();
+        try {
+            List<String> newIds = addAll(embeddings, embedded);
+            removeAll(oldIds);
+            return newIds;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // ---------------------------------------------------------------- 检索
+
+    @Override
+    public EmbeddingSearchResult<TextSegment> search(EmbeddingSearchRequest request) {
+        float[] query = normalized(request.queryEmbedding().vector());
+        int maxResults = request.maxResults();
+        double minScore = request.minScore();
+        Filter filter = request.filter();
+
+        PriorityQueue<ScoredSlot> top = new PriorityQueue<>(Comparator.comparingDouble(ScoredSlot::score));
+        lock.readLock().lock();
+        try {
+            if (dimension == 0) {
+                return new EmbeddingSearchResult<>(List.of());
+            }
+            for (int slot = live.nextSetBit(0); slot >= 0; slot = live.nextSetBit(slot + 1)) {
+                if (filter != null) {
+                    TextSegment segment = segments.get(slot);
+                    if (segment == null || !filter.test(segment.metadata())) {
+                        continue;
+                    }
+                }
+                double score = RelevanceScore.fromCosineSimilarity(dot(slot, query));
+                if (score < minScore) {
+                    continue;
+                }
+                if (top.size() < maxResults) {
+                    top.add(new ScoredSlot(slot, score));
+                } else if (score > top.peek().score()) {
+                    top.poll();
+                    top.add(new ScoredSlot(slot, score));
+                }
+            }
+            List<EmbeddingMatch<TextSegment>> matches = new ArrayList<>(top.size());
+            while (!top.isEmpty()) {
+                ScoredSlot s = top.poll();
+                matches.add(match(s.slot(), s.score()));
+            }
+            Collections.reverse(matches);
+            return new EmbeddingSearchResult<>(matches);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private record ScoredSlot(int slot, double score) {}
+
+    /**
+     * 查询向量与指定槽位向量的点积（即余弦相似度），调用方需持有读锁且 query 已归一化
+     * <p>
+     * 逐个 get 映射内存较慢，先批量拷贝到线程私有的缓冲区再计算
+     */
+    float dot(int slot, float[] query) {
+        float[] v = scratch(scratchA);
+        read(slot, v);
+        return dot(query, v, dimension);
+    }
+
+    /**
+     * 两个槽位向量的点积，调用方需持有读锁
+     */
+    float dot(int a, int b) {
+        float[] va = scratch(scratchA);
+        float[] vb = scratch(scratchB);
+        read(a, va);
+        read(b, vb);
+        return dot(va, vb, dimension);
+    }
+
+    private float[] scratch(ThreadLocal<float[]> holder) {
+        float[] v = holder.get();
+        if (v == null || v.length != dimension) {
+            v = new float[dimension];
+            holder.set(v);
+        }
+        return v;
+    }
+
+    /**
+     * 四路累加展开，浮点归约不会被 JIT 自动向量化，分开累加可以提高指令级并行
+     */
+    static float dot(float[] a, float[] b, int n) {
+        float s0 = 0f, s1 = 0f, s2 = 0f, s3 = 0f;
+        int j = 0;
+        for (int bound = n & ~3; j < bound; j += 4) {
+            s0 += a[j] * b[j];
+            s1 += a[j + 1] * b[j + 1];
+            s2 += a[j + 2] * b[j + 2];
+            s3 += a[j + 3] * b[j + 3];
+        }
+        for (; j < n; j++) {
+            s0 += a[j] * b[j];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * 把槽位向量批量拷贝到 dst，调用方需持有读锁
+     */
+    void read(int slot, float[] dst) {
+        views.get(slot / slotsPerRegion).get(base(slot), dst, 0, dimension);
+    }
+
+    /**
+     * 读取槽位向量的副本
+     */
+    float[] vector(int slot) {
+        float[] v = new float[dimension];
+        read(slot, v);
+        return v;
+    }
+
+    EmbeddingMatch<TextSegment> match(int slot, double score) {
+        return new EmbeddingMatch<>(score, ids.get(slot), Embedding.from(vector(slot)), segments.get(slot));
+    }
+
+    static float[] normalized(float[] vector) {
+        double norm = 0;
+        for (float v : vector) {
+            norm += v * v;
+        }
+        float scale = norm > 0 ? (float) (1.0 / Math.sqrt(norm)) : 0f;
+        float[] result = new float[vector.length];
+        for (int i = 0; i < vector.length; i++) {
+            result[i] = vector[i] * scale;
+        }
+        return result;
+    }
+
+    int dimension() {
+        return dimension;
+    }
+
+    int slotCount() {
+        return ids.size();
+    }
+
+    boolean isLive(int slot) {
+        return live.get(slot);
+    }
+
+    int slotOf(String id) {
+        Integer slot = slotById.get(id);
+        return slot == null ? -1 : slot;
+    }
+
+    Path dir() {
+        return dir;
+    }
+
+    // ---------------------------------------------------------------- 维护
+
+    @Override
+    public void forEachSegment(BiConsumer<String, TextSegment> action) {
+        lock.readLock().lock();
+        try {
+            for (int slot = live.nextSetBit(0); slot >= 0; slot = live.nextSetBit(slot + 1)) {
+                TextSegment segment = segments.get(slot);
+                if (segment != null) {
+                    action.accept(ids.get(slot), segment);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 当前有效的向量数量
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return slotById.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 丢弃墓碑，把存活的向量和元数据写成下一代文件，落盘后原子替换 CURRENT 切换过去，再删除旧一代；
+     * 切换前退出时旧一代仍然有效，新一代的残留文件在下次打开时清理。返回打开的新一代，本实例随之关闭
+     */
+    private MappedEmbeddingStore compact() throws IOException {
+        long t0 = System.currentTimeMillis();
+        long next = generation + 1;
+        MappedEmbeddingStore target = new MappedEmbeddingStore(dir, next);
+        target.load();
+        for (int slot = live.nextSetBit(0); slot >= 0; slot = live.nextSetBit(slot + 1)) {
+            target.write(List.of(ids.get(slot)), List.of(Embedding.from(vector(slot))),
+                    Collections.singletonList(segments.get(slot)));
+        }
+        target.close();
+        fsync(dir.resolve(vectorsFile(next)));
+        fsync(dir.resolve(segmentsFile(next)));
+        closeFiles();
+
+        writeGeneration(dir, next);
+        Files.deleteIfExists(dir.resolve(vectorsFile(generation)));
+        Files.deleteIfExists(dir.resolve(segmentsFile(generation)));
+
+        MappedEmbeddingStore compacted = new MappedEmbeddingStore(dir, next);
+        compacted.load();
+        log.info("[MappedEmbeddingStore] compacted, dir={}, generation={}, dropped={}, segments={}, costMs={}",
+                dir, next, removedCount, compacted.size(), System.currentTimeMillis() - t0);
+        return compacted;
+    }
+
+    private void closeFiles() throws IOException {
+        for (MappedByteBuffer region : regions) {
+            region.force();
+        }
+        regions.clear();
+        views.clear();
+        if (logOut != null) {
+            logOut.close();
+            logOut = null;
+        }
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            closeFiles();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
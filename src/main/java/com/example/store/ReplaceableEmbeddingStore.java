@@ -0,0 +1,20 @@
+package com.example.store;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 支持原子替换的向量库：新片段的写入和旧片段的删除在同一把写锁内完成，
+ * 并发检索不会看到新旧片段同时存在或都不存在的中间状态
+ */
+public interface ReplaceableEmbeddingStore {
+
+    /**
+     * 写入新片段并删除 oldIds
+     * @return 新片段的 id
+     */
+    List<String> replaceAll(Collection<String> oldIds, List<Embedding> embeddings, List<TextSegment> embedded);
+}
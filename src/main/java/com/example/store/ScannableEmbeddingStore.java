@@ -0,0 +1,16 @@
+package com.example.store;
+
+import dev.langchain4j.data.segment.TextSegment;
+
+import java.util.function.BiConsumer;
+
+/**
+ * 可遍历全部有效片段的向量库，用于启动时从已持久化的片段重建其他索引
+ */
+public interface ScannableEmbeddingStore {
+
+    /**
+     * 在读锁内按写入顺序遍历有效片段的 id 和内容
+     */
+    void forEachSegment(BiConsumer<String, TextSegment> action);
+}
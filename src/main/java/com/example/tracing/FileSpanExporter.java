@@ -0,0 +1,157 @@
+package com.example.tracing;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.data.EventData;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 把结束的 span 按 JSON Lines 追加写入本地文件，一行一个 span，用于没有采集端时离线分析
+ * <p>
+ * 文件超过 max-bytes 时改名为 &lt;file&gt;.1（覆盖上一个）后重新开始；改名失败时跳过本次轮转，继续追加到原文件。
+ */
+public class FileSpanExporter implements SpanExporter {
+    private static final Logger log = LoggerFactory.getLogger(FileSpanExporter.class);
+
+    private final Path file;
+    private final long maxBytes;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private OutputStream out;
+    private long written;
+    private boolean shutdown;
+
+    public FileSpanExporter(Path file, long maxBytes) throws IOException {
+        this.file = file;
+        this.maxBytes = maxBytes;
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        open();
+        log.info("[FileSpanExporter] writing spans to {}, maxBytes={}", file.toAbsolutePath(), maxBytes);
+    }
+
+    private void open() throws IOException {
+        out = new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+        written = Files.size(file);
+    }
+
+    @Override
+    public synchronized CompletableResultCode export(Collection<SpanData> spans) {
+        if (shutdown) {
+            return CompletableResultCode.ofFailure();
+        }
+        try {
+            if (out == null) {
+                // 上次轮转中途失败，重新打开（追加到原文件）
+                open();
+            }
+            for (SpanData span : spans) {
+                // 按编码后的字节计数，属性中的中文不会让文件超出 maxBytes
+                byte[] line = mapper.writeValueAsBytes(toJson(span));
+                out.write(line);
+                out.write('\n');
+                written += line.length + 1;
+            }
+            out.flush();
+        } catch (IOException e) {
+            log.warn("[FileSpanExporter] export failed - {}", e.getMessage());
+            return CompletableResultCode.ofFailure();
+        }
+        if (maxBytes > 0 && written > maxBytes) {
+            try {
+                rotate();
+            } catch (IOException e) {
+                // 本批 span 已经写入，轮转失败只是跳过这一次
+                log.warn("[FileSpanExporter] rotation failed, still appending to {} - {}", file, e.getMessage());
+            }
+        }
+        return CompletableResultCode.ofSuccess();
+    }
+
+    private void rotate() throws IOException {
+        OutputStream current = out;
+        // 先置空：关闭或改名失败时下一次 export 重新打开，而不是一直写已关闭的流
+        out = null;
+        current.close();
+        Files.move(file, file.resolveSibling(file.getFileName() + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        open();
+    }
+
+    private static Map<String, Object> toJson(SpanData span) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("traceId", span.getTraceId());
+        json.put("spanId", span.getSpanId());
+        if (span.getParentSpanContext().isValid()) {
+            json.put("parentSpanId", span.getParentSpanId());
+        }
+        json.put("name", span.getName());
+        json.put("kind", span.getKind().name());
+        json.put("startEpochMicros", span.getStartEpochNanos() / 1000);
+        json.put("durationMicros", (span.getEndEpochNanos() - span.getStartEpochNanos()) / 1000);
+        json.put("status", span.getStatus().getStatusCode().name());
+        json.put("attributes", attributes(span.getAttributes()));
+        if (!span.getEvents().isEmpty()) {
+            List<Map<String, Object>> events = new ArrayList<>(span.getEvents().size());
+            for (EventData event : span.getEvents()) {
+                Map<String, Object> e = new LinkedHashMap<>();
+                e.put("name", event.getName());
+                e.put("offsetMicros", (event.getEpochNanos() - span.getStartEpochNanos()) / 1000);
+                if (!event.getAttributes().isEmpty()) {
+                    e.put("attributes", attributes(event.getAttributes()));
+                }
+                events.add(e);
+            }
+            json.put("events", events);
+        }
+        return json;
+    }
+
+    private static Map<String, Object> attributes(Attributes attributes) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        attributes.forEach((key, value) -> map.put(key.getKey(), value));
+        return map;
+    }
+
+    @Override
+    public synchronized CompletableResultCode flush() {
+        try {
+            if (out != null) {
+                out.flush();
+            }
+            return CompletableResultCode.ofSuccess();
+        } catch (IOException e) {
+            return CompletableResultCode.ofFailure();
+        }
+    }
+
+    @Override
+    public synchronized CompletableResultCode shutdown() {
+        shutdown = true;
+        try {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+            return CompletableResultCode.ofSuccess();
+        } catch (IOException e) {
+            return CompletableResultCode.ofFailure();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.example.tracing;
+
+import io.micrometer.tracing.Span;
+import io.micrometer.tracing.Tracer;
+
+import java.util.function.Supplier;
+
+/**
+ * 业务阶段的 span 工具：在当前 span 下创建子 span，异常时记录错误后原样抛出
+ * <p>
+ * 关闭追踪时使用 {@link Tracer#NOOP}，所有方法退化为直接执行。
+ */
+public class Spans {
+    private final Tracer tracer;
+
+    public Spans(Tracer tracer) {
+        this.tracer = tracer;
+    }
+
+    public static Spans noop() {
+        return new Spans(Tracer.NOOP);
+    }
+
+    public <T> T in(String name, Supplier<T> work) {
+        Span span = tracer.nextSpan().name(name).start();
+        try (Tracer.SpanInScope ignored = tracer.withSpan(span)) {
+            return work.get();
+        } catch (RuntimeException | Error e) {
+            span.error(e);
+            throw e;
+        } finally {
+            span.end();
+        }
+    }
+
+    public void run(String name, Runnable work) {
+        in(name, () -> {
+            work.run();
+            return null;
+        });
+    }
+
+    /**
+     * 创建并开始一个子 span，但不放入当前作用域；用于在其他线程上结束的异步阶段，调用方负责 end
+     */
+    public Span start(String name) {
+        return tracer.nextSpan().name(name).start();
+    }
+
+    /**
+     * 在当前线程上把 span 设为当前 span（日志中随之带上它的 traceId）
+     */
+    public Tracer.SpanInScope scope(Span span) {
+        return tracer.withSpan(span);
+    }
+
+    public Span current() {
+        return tracer.currentSpan();
+    }
+
+    /**
+     * 给当前 span 加标签；没有当前 span 时忽略
+     */
+    public void tag(String key, String value) {
+        Span current = tracer.currentSpan();
+        if (current != null && value != null) {
+            current.tag(key, value);
+        }
+    }
+
+    /**
+     * 包装任务，使其在执行线程上延续提交时的当前 span
+     */
+    public Runnable wrap(Runnable task) {
+        Span parent = tracer.currentSpan();
+        if (parent == null) {
+            return task;
+        }
+        return () -> {
+            try (Tracer.SpanInScope ignored = tracer.withSpan(parent)) {
+                task.run();
+            }
+        };
+    }
+}
@@ -0,0 +1,18 @@
+CREATE TABLE IF NOT EXISTS index_jobs (
+  id BIGINT PRIMARY KEY AUTO_INCREMENT,
+  document_id BIGINT NOT NULL,
+  status VARCHAR(16) NOT NULL,
+  attempts INT NOT NULL DEFAULT 0,
+  chunk_count INT NOT NULL DEFAULT 0,
+  error VARCHAR(1024) NULL,
+  parse_ms BIGINT NULL,
+  embed_ms BIGINT NULL,
+  store_ms BIGINT NULL,
+  created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+  started_at TIMESTAMP NULL,
+  finished_at TIMESTAMP NULL,
+  FOREIGN KEY (document_id) REFERENCES documents(id) ON DELETE CASCADE
+);
+
+CREATE INDEX idx_index_jobs_document ON index_jobs(document_id);
+CREATE INDEX idx_index_jobs_status ON index_jobs(status);
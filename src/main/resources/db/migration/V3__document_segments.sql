@@ -0,0 +1,8 @@
+CREATE TABLE IF NOT EXISTS document_segments (
+  document_id BIGINT NOT NULL,
+  segment_id VARCHAR(64) NOT NULL,
+  PRIMARY KEY (document_id, segment_id),
+  FOREIGN KEY (document_id) REFERENCES documents(id) ON DELETE CASCADE
+);
+
+ALTER TABLE index_jobs ADD COLUMN kind VARCHAR(16) NOT NULL DEFAULT 'INDEX' AFTER document_id;
@@ -0,0 +1,5 @@
+-- 按会话取最近 N 条消息（WHERE chat_id = ? ORDER BY id DESC LIMIT N）直接走索引，无需排序
+CREATE INDEX idx_messages_chat_id_id ON messages(chat_id, id);
+
+-- 组合索引的前缀已覆盖 chat_id 上的查询和外键
+DROP INDEX idx_messages_chat ON messages;
@@ -0,0 +1,8 @@
+-- 每个会话一条滚动摘要，covered_until_id 为已并入摘要的最后一条消息 id
+CREATE TABLE IF NOT EXISTS chat_summaries (
+  chat_id BIGINT PRIMARY KEY,
+  summary TEXT NOT NULL,
+  covered_until_id BIGINT NOT NULL,
+  updated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP,
+  FOREIGN KEY (chat_id) REFERENCES chats(id) ON DELETE CASCADE
+);
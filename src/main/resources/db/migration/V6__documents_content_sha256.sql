@@ -0,0 +1,4 @@
+-- 原文件内容的 SHA-256，用作提取文本旁路文件的键；旧记录在下次索引或预览时补齐
+ALTER TABLE documents ADD COLUMN content_sha256 CHAR(64) NULL AFTER storage_path;
+
+CREATE INDEX idx_documents_content_sha256 ON documents(content_sha256);
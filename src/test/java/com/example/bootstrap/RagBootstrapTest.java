@@ -0,0 +1,283 @@
+package com.example.bootstrap;
+
+import com.example.domain.Document;
+import com.example.domain.IndexJob;
+import com.example.mapper.DocumentMapper;
+import com.example.mapper.DocumentSegmentMapper;
+import com.example.mapper.IndexJobMapper;
+import com.example.service.DocumentService;
+import com.example.service.IndexJobService;
+import com.example.service.IngestionPipeline;
+import com.example.service.QueryEmbeddingCache;
+import com.example.service.RagService;
+import com.example.service.SemanticAnswerCache;
+import com.example.store.Bm25Index;
+import com.example.store.DocumentTextStore;
+import com.example.store.IndexManifest;
+import com.example.store.MappedEmbeddingStore;
+import com.example.tracing.Spans;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RagBootstrapTest {
+
+    @TempDir
+    Path root;
+
+    private final FakeDocumentMapper documents = new FakeDocumentMapper();
+    private final FakeSegmentMapper documentSegments = new FakeSegmentMapper();
+    private final FakeJobMapper jobs = new FakeJobMapper();
+    private MappedEmbeddingStore store;
+    private Bm25Index lexicalIndex;
+    private IndexManifest manifest;
+    private RagService ragService;
+    private IngestionPipeline pipeline;
+    private IndexJobService indexJobService;
+    private DocumentService documentService;
+    private RagBootstrap bootstrap;
+    private Path uploads;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Path indexDir = root.resolve("index");
+        uploads = Files.createDirectories(root.resolve("uploads"));
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        EmbeddingModel model = new HashEmbeddingModel();
+        store = MappedEmbeddingStore.open(indexDir);
+        lexicalIndex = new Bm25Index(1.2, 0.75);
+        manifest = IndexManifest.load(indexDir);
+        DocumentTextStore textStore = DocumentTextStore.open(indexDir);
+        ragService = new RagService(null, null, model, store,
+                new QueryEmbeddingCache(model, registry, 0, 60), new SemanticAnswerCache(registry, false, 0.95, 0, 0),
+                null, lexicalIndex, registry, Spans.noop(), 16, true, 60, 2000, 30000, 1, 8);
+        pipeline = new IngestionPipeline(ragService, registry, 1, 1, 16, 16, 0);
+        indexJobService = new IndexJobService(jobs, documents, documentSegments, pipeline, manifest, ragService,
+                textStore, 1, 10, 1, 10);
+        documentService = new DocumentService(documents, indexJobService, ragService, manifest, textStore);
+        bootstrap = new RagBootstrap(ragService, pipeline, manifest, documents, indexJobService);
+        ReflectionTestUtils.setField(bootstrap, "uploadDir", uploads.toString());
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        indexJobService.shutdown();
+        ragService.shutdown();
+        store.close();
+    }
+
+    @Test
+    void deletingADocumentAfterSyncReindexedItLeavesNoVectors() throws Exception {
+        Path file = uploads.resolve("0001_notes.txt");
+        Files.writeString(file, paragraphs("first version", 40));
+        Document doc = new Document();
+        doc.setTitle("notes");
+        doc.setFilename("notes.txt");
+        doc.setContentType("text/plain");
+        doc.setStoragePath(file.toAbsolutePath().toString());
+        documents.insert(doc);
+        awaitDone(indexJobService.enqueue(doc, "TEXT", IndexJob.INDEX));
+        List<String> firstIds = List.copyOf(documentSegments.listByDocument(doc.getId()));
+        assertThat(firstIds).isNotEmpty();
+
+        // 文件在磁盘上被替换，重启时启动同步发现内容变化
+        Files.writeString(file, paragraphs("second version", 60));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 10_000));
+        bootstrap.run(null);
+        IndexJob reindex = jobs.findLatestByDocument(doc.getId());
+        assertThat(reindex.getKind()).isEqualTo(IndexJob.REINDEX);
+        awaitDone(reindex);
+
+        List<String> currentIds = documentSegments.listByDocument(doc.getId());
+        assertThat(currentIds).isEqualTo(manifest.get(file).chunkIds());
+        assertThat(currentIds).doesNotContainAnyElementsOf(firstIds);
+        assertThat(store.size()).isEqualTo(currentIds.size());
+        assertThat(documents.findById(doc.getId()).getContentSha256()).isEqualTo(IndexManifest.sha256(file));
+
+        assertThat(documentService.delete(doc.getId())).isTrue();
+        assertThat(store.size()).isZero();
+        assertThat(lexicalIndex.size()).isZero();
+    }
+
+    @Test
+    void deleteAlsoRemovesManifestIdsWhenSegmentRowsAreStale() throws Exception {
+        Path file = uploads.resolve("0002_guide.txt");
+        Files.writeString(file, paragraphs("guide", 30));
+        Document doc = new Document();
+        doc.setFilename("guide.txt");
+        doc.setStoragePath(file.toAbsolutePath().toString());
+        documents.insert(doc);
+        awaitDone(indexJobService.enqueue(doc, "TEXT", IndexJob.INDEX));
+
+        // 旧版本启动同步留下的状态：清单指向新片段，document_segments 仍是已删除的旧 id
+        documentSegments.deleteByDocument(doc.getId());
+        documentSegments.insertBatch(doc.getId(), List.of("stale-1", "stale-2"));
+
+        documentService.delete(doc.getId());
+        assertThat(store.size()).isZero();
+    }
+
+    private void awaitDone(IndexJob job) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (!IndexJob.DONE.equals(job.getStatus())) {
+            assertThat(job.getStatus()).isNotEqualTo(IndexJob.FAILED);
+            assertThat(System.nanoTime()).isLessThan(deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static String paragraphs(String prefix, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(prefix).append(" paragraph ").append(i)
+                    .append(": the quick brown fox jumps over the lazy dog, again and again.\n\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 由文本哈希确定性生成的向量
+     */
+    private static final class HashEmbeddingModel implements EmbeddingModel {
+        @Override
+        public Response<List<Embedding>> embedAll(List<TextSegment> segments) {
+            List<Embedding> embeddings = new ArrayList<>(segments.size());
+            for (TextSegment segment : segments) {
+                int h = segment.text().hashCode();
+                float[] v = new float[8];
+                for (int i = 0; i < v.length; i++) {
+                    v[i] = ((h >>> (i * 4)) & 0xf) + 1;
+                }
+                embeddings.add(Embedding.from(v));
+            }
+            return Response.from(embeddings);
+        }
+
+        @Override
+        public int dimension() {
+            return 8;
+        }
+    }
+
+    private static final class FakeDocumentMapper implements DocumentMapper {
+        private final Map<Long, Document> rows = new HashMap<>();
+        private final AtomicLong ids = new AtomicLong();
+
+        @Override
+        public synchronized void insert(Document doc) {
+            doc.setId(ids.incrementAndGet());
+            rows.put(doc.getId(), doc);
+        }
+
+        @Override
+        public synchronized int updateContentSha256(Long id, String sha256) {
+            Document doc = rows.get(id);
+            if (doc == null) {
+                return 0;
+            }
+            doc.setContentSha256(sha256);
+            return 1;
+        }
+
+        @Override
+        public synchronized int countByContentSha256(String sha256) {
+            return (int) rows.values().stream().filter(d -> sha256.equals(d.getContentSha256())).count();
+        }
+
+        @Override
+        public synchronized int deleteById(Long id) {
+            return rows.remove(id) == null ? 0 : 1;
+        }
+
+        @Override
+        public synchronized Document findById(Long id) {
+            return rows.get(id);
+        }
+
+        @Override
+        public synchronized Document findByStoragePath(String storagePath) {
+            return rows.values().stream().filter(d -> storagePath.equals(d.getStoragePath())).findFirst().orElse(null);
+        }
+
+        @Override
+        public synchronized List<Document> listAll() {
+            return new ArrayList<>(rows.values());
+        }
+    }
+
+    private static final class FakeSegmentMapper implements DocumentSegmentMapper {
+        private final Map<Long, List<String>> rows = new HashMap<>();
+
+        @Override
+        public synchronized void insertBatch(Long documentId, List<String> segmentIds) {
+            rows.computeIfAbsent(documentId, id -> new ArrayList<>()).addAll(segmentIds);
+        }
+
+        @Override
+        public synchronized int deleteByDocument(Long documentId) {
+            List<String> removed = rows.remove(documentId);
+            return removed == null ? 0 : removed.size();
+        }
+
+        @Override
+        public synchronized List<String> listByDocument(Long documentId) {
+            return new ArrayList<>(rows.getOrDefault(documentId, List.of()));
+        }
+    }
+
+    private static final class FakeJobMapper implements IndexJobMapper {
+        private final Map<Long, IndexJob> rows = new HashMap<>();
+        private final AtomicLong ids = new AtomicLong();
+
+        @Override
+        public synchronized void insert(IndexJob job) {
+            job.setId(ids.incrementAndGet());
+            rows.put(job.getId(), job);
+        }
+
+        @Override
+        public synchronized int update(IndexJob job) {
+            return rows.containsKey(job.getId()) ? 1 : 0;
+        }
+
+        @Override
+        public synchronized IndexJob findById(Long id) {
+            return rows.get(id);
+        }
+
+        @Override
+        public synchronized IndexJob findLatestByDocument(Long documentId) {
+            return rows.values().stream()
+                    .filter(job -> documentId.equals(job.getDocumentId()))
+                    .max(Comparator.comparing(IndexJob::getId))
+                    .orElse(null);
+        }
+
+        @Override
+        public synchronized List<IndexJob> listUnfinished() {
+            return rows.values().stream()
+                    .filter(job -> !IndexJob.DONE.equals(job.getStatus()) && !IndexJob.FAILED.equals(job.getStatus()))
+                    .toList();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.service;
+
+import com.example.domain.ChatSummary;
+import com.example.domain.Message;
+import com.example.mapper.ChatSummaryMapper;
+import com.example.mapper.MessageMapper;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.UserMessage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ContextAssemblerTest {
+    private static final long CHAT_ID = 1L;
+
+    private final List<Message> history = new ArrayList<>();
+    private ChatSummary summary;
+    private ContextAssembler assembler;
+
+    @AfterEach
+    void tearDown() {
+        if (assembler != null) {
+            assembler.shutdown();
+        }
+    }
+
+    @Test
+    void messagesCoveredBySummaryAreNotResentWhenTheBudgetWidens() {
+        for (int i = 1; i <= 10; i++) {
+            history.add(message(i, i % 2 == 1 ? "user" : "assistant", "message " + i + " about the release plan"));
+        }
+        summary = new ChatSummary();
+        summary.setChatId(CHAT_ID);
+        summary.setSummary("The user asked about the release plan; messages 1-6 are summarized here.");
+        summary.setCoveredUntilId(6L);
+        // 历史预算足够放下全部 10 条消息
+        assembler = new ContextAssembler(null, messageMapper(), summaryMapper(), new SimpleMeterRegistry(), "gpt-4o-mini",
+                6000, 3000, 2000, 400, 8, 40, Integer.MAX_VALUE);
+
+        List<ChatMessage> messages = assembler.assemble(CHAT_ID, retrieval("short prompt", "next question"));
+
+        assertThat(((SystemMessage) messages.get(0)).text()).contains(summary.getSummary());
+        List<String> historyTexts = messages.subList(1, messages.size() - 1).stream().map(ContextAssemblerTest::text).toList();
+        assertThat(historyTexts).containsExactly(
+                "message 7 about the release plan", "message 8 about the release plan",
+                "message 9 about the release plan", "message 10 about the release plan");
+        assertThat(((UserMessage) messages.get(messages.size() - 1)).singleText()).isEqualTo("next question");
+    }
+
+    @Test
+    void withoutSummaryTheWholeWindowFitsTheBudget() {
+        for (int i = 1; i <= 4; i++) {
+            history.add(message(i, i % 2 == 1 ? "user" : "assistant", "message " + i));
+        }
+        assembler = new ContextAssembler(null, messageMapper(), summaryMapper(), new SimpleMeterRegistry(), "gpt-4o-mini",
+                6000, 3000, 2000, 400, 8, 40, Integer.MAX_VALUE);
+
+        List<ChatMessage> messages = assembler.assemble(CHAT_ID, retrieval("short prompt", "next question"));
+
+        assertThat(messages).hasSize(1 + 4 + 1);
+    }
+
+    private static String text(ChatMessage message) {
+        return message instanceof UserMessage user ? user.singleText() : ((AiMessage) message).text();
+    }
+
+    private static Message message(long id, String role, String content) {
+        Message msg = new Message();
+        msg.setId(id);
+        msg.setChatId(CHAT_ID);
+        msg.setRole(role);
+        msg.setContent(content);
+        return msg;
+    }
+
+    private static RetrievalResult retrieval(String systemPrompt, String query) {
+        return new RetrievalResult(query, null, List.of(), Set.of(), systemPrompt);
+    }
+
+    private MessageMapper messageMapper() {
+        return new MessageMapper() {
+            @Override
+            public void insert(Message message) {
+                history.add(message);
+            }
+
+            @Override
+            public List<Message> listByChat(Long chatId, Long beforeId, int limit) {
+                List<Message> result = history.stream().filter(m -> beforeId == null || m.getId() < beforeId).toList();
+                return result.subList(Math.max(0, result.size() - limit), result.size());
+            }
+
+            @Override
+            public List<Message> listBetween(Long chatId, long afterId, long beforeId, int limit) {
+                return history.stream().filter(m -> m.getId() > afterId && m.getId() < beforeId).limit(limit).toList();
+            }
+        };
+    }
+
+    private ChatSummaryMapper summaryMapper() {
+        return new ChatSummaryMapper() {
+            @Override
+            public ChatSummary findByChat(Long chatId) {
+                return summary;
+            }
+
+            @Override
+            public int upsert(ChatSummary s) {
+                summary = s;
+                return 1;
+            }
+        };
+    }
+}
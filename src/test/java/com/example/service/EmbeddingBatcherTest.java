@@ -0,0 +1,262 @@
+package com.example.service;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class EmbeddingBatcherTest {
+
+    @Test
+    void concurrentCallersGetTheirOwnVectorsInOrder() throws Exception {
+        CountingModel model = new CountingModel();
+        model.delayMillis = 5;
+        int callers = 8;
+        int perCaller = 50;
+        ExecutorService pool = Executors.newFixedThreadPool(callers);
+        try (EmbeddingBatcher batcher = new EmbeddingBatcher(model, 32, 5, 2, 1024)) {
+            List<Future<List<String>>> results = new ArrayList<>();
+            for (int c = 0; c < callers; c++) {
+                int caller = c;
+                results.add(pool.submit(() -> {
+                    List<String> texts = new ArrayList<>();
+                    for (int i = 0; i < perCaller; i++) {
+                        texts.add("caller-" + caller + "-segment-" + i);
+                    }
+                    List<Embedding> embeddings = batcher.embedAll(texts.stream().map(TextSegment::from).toList()).content();
+                    assertThat(embeddings).hasSize(perCaller);
+                    for (int i = 0; i < perCaller; i++) {
+                        assertThat(embeddings.get(i).vector()).isEqualTo(CountingModel.vector(texts.get(i)));
+                    }
+                    return texts;
+                }));
+            }
+            for (Future<List<String>> result : results) {
+                result.get(10, TimeUnit.SECONDS);
+            }
+            assertThat(batcher.totalInputs()).isEqualTo(callers * perCaller);
+            assertThat(batcher.totalRequests()).isEqualTo(model.calls.get());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void concurrentQueriesAreCoalescedIntoOneRequest() throws Exception {
+        CountingModel model = new CountingModel();
+        int callers = 10;
+        ExecutorService pool = Executors.newFixedThreadPool(callers);
+        // 等待窗口足够长，凑满 maxBatchSize 即发送
+        try (EmbeddingBatcher batcher = new EmbeddingBatcher(model, callers, 5_000, 4, 1024)) {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Embedding>> results = new ArrayList<>();
+            for (int c = 0; c < callers; c++) {
+                String text = "query-" + c;
+                results.add(pool.submit(() -> {
+                    start.await();
+                    return batcher.embed(text).content();
+                }));
+            }
+            start.countDown();
+            for (int c = 0; c < callers; c++) {
+                assertThat(results.get(c).get(10, TimeUnit.SECONDS).vector()).isEqualTo(CountingModel.vector("query-" + c));
+            }
+            assertThat(model.calls.get()).isEqualTo(1);
+            assertThat(model.batches.get(0)).hasSize(callers);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void maxInFlightIsRespected() throws Exception {
+        CountingModel model = new CountingModel();
+        model.delayMillis = 20;
+        int callers = 16;
+        ExecutorService pool = Executors.newFixedThreadPool(callers);
+        try (EmbeddingBatcher batcher = new EmbeddingBatcher(model, 1, 0, 2, 1024)) {
+            List<Future<Embedding>> results = new ArrayList<>();
+            for (int c = 0; c < callers; c++) {
+                String text = "query-" + c;
+                results.add(pool.submit(() -> batcher.embed(text).content()));
+            }
+            for (Future<Embedding> result : results) {
+                result.get(10, TimeUnit.SECONDS);
+            }
+            assertThat(model.calls.get()).isEqualTo(callers);
+            assertThat(model.maxActive.get()).isEqualTo(2);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void queriesAreSentBeforeQueuedIngestInputs() throws Exception {
+        CountingModel model = new CountingModel();
+        model.gate = new CountDownLatch(1);
+        try (EmbeddingBatcher batcher = new EmbeddingBatcher(model, 1, 0, 1, 1024)) {
+            Thread blocker = start(() -> batcher.embed("first"));
+            model.entered.await(10, TimeUnit.SECONDS);
+            Thread ingest = start(() -> batcher.embedAll(List.of(TextSegment.from("ingest-0"), TextSegment.from("ingest-1"))));
+            awaitWaiting(ingest);
+            Thread query = start(() -> batcher.embed("query"));
+            awaitWaiting(query);
+
+            model.gate.countDown();
+            for (Thread t : List.of(blocker, ingest, query)) {
+                t.join(10_000);
+            }
+            assertThat(model.batches).containsExactly(
+                    List.of("first"), List.of("query"), List.of("ingest-0"), List.of("ingest-1"));
+        }
+    }
+
+    @Test
+    void failingInputOnlyFailsItsOwnCaller() throws Exception {
+        CountingModel model = new CountingModel();
+        model.rejected = "bad";
+        ExecutorService pool = Executors.newFixedThreadPool(3);
+        try (EmbeddingBatcher batcher = new EmbeddingBatcher(model, 3, 5_000, 1, 1024)) {
+            CountDownLatch start = new CountDownLatch(1);
+            Future<Embedding> good1 = pool.submit(() -> {
+                start.await();
+                return batcher.embed("good-1").content();
+            });
+            Future<Embedding> bad = pool.submit(() -> {
+                start.await();
+                return batcher.embed("bad").content();
+            });
+            Future<Embedding> good2 = pool.submit(() -> {
+                start.await();
+                return batcher.embed("good-2").content();
+            });
+            start.countDown();
+
+            assertThat(good1.get(10, TimeUnit.SECONDS).vector()).isEqualTo(CountingModel.vector("good-1"));
+            assertThat(good2.get(10, TimeUnit.SECONDS).vector()).isEqualTo(CountingModel.vector("good-2"));
+            assertThatThrownBy(() -> bad.get(10, TimeUnit.SECONDS))
+                    .isInstanceOf(ExecutionException.class)
+                    .hasRootCauseMessage("rejected input: bad");
+            assertThat(model.batches.get(0)).hasSize(3);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void closeFailsPendingCallers() throws Exception {
+        CountingModel model = new CountingModel();
+        model.gate = new CountDownLatch(1);
+        EmbeddingBatcher batcher = new EmbeddingBatcher(model, 1, 0, 1, 1024);
+        try {
+            start(() -> batcher.embed("in-flight"));
+            model.entered.await(10, TimeUnit.SECONDS);
+            AtomicReference<Throwable> error = new AtomicReference<>();
+            Thread pending = start(() -> {
+                try {
+                    batcher.embed("pending");
+                } catch (Throwable t) {
+                    error.set(t);
+                }
+            });
+            awaitWaiting(pending);
+
+            batcher.close();
+            pending.join(10_000);
+            assertThat(pending.isAlive()).isFalse();
+            assertThat(error.get()).isInstanceOf(IllegalStateException.class).hasMessage("EmbeddingBatcher is closed");
+            assertThat(model.batches).containsExactly(List.of("in-flight"));
+            assertThatThrownBy(() -> batcher.embed("after-close")).isInstanceOf(IllegalStateException.class);
+        } finally {
+            model.gate.countDown();
+        }
+    }
+
+    private static Thread start(Runnable task) {
+        Thread t = new Thread(task);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    // 调用方阻塞在 future.get() 上即说明输入已经入队
+    private static void awaitWaiting(Thread t) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (t.getState() != Thread.State.WAITING) {
+            assertThat(System.nanoTime()).isLessThan(deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * 记录每次调用的输入和并发数；向量由文本确定性地生成，便于核对结果归属
+     */
+    private static final class CountingModel implements EmbeddingModel {
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+        final List<List<String>> batches = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch entered = new CountDownLatch(1);
+        volatile CountDownLatch gate;
+        volatile long delayMillis;
+        volatile String rejected;
+
+        static float[] vector(String text) {
+            int h = text.hashCode();
+            return new float[]{text.length(), h & 0xffff, h >>> 16};
+        }
+
+        @Override
+        public Response<List<Embedding>> embedAll(List<TextSegment> segments) {
+            List<String> texts = segments.stream().map(TextSegment::text).toList();
+            batches.add(texts);
+            int now = active.incrementAndGet();
+            maxActive.accumulateAndGet(now, Math::max);
+            try {
+                entered.countDown();
+                if (gate != null) {
+                    gate.await();
+                }
+                if (delayMillis > 0) {
+                    Thread.sleep(delayMillis);
+                }
+                if (rejected != null && texts.contains(rejected)) {
+                    throw new IllegalArgumentException("rejected input: " + rejected);
+                }
+                calls.incrementAndGet();
+                List<Embedding> embeddings = new ArrayList<>(texts.size());
+                for (String text : texts) {
+                    embeddings.add(Embedding.from(vector(text)));
+                }
+                return Response.from(embeddings);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            } finally {
+                active.decrementAndGet();
+            }
+        }
+
+        @Override
+        public int dimension() {
+            return 3;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.store;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HnswEmbeddingStoreTest {
+    private static final int DIMENSION = 32;
+    private static final int COUNT = 3000;
+    private static final int K = 10;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void recallAtKAgainstExactSearch() throws Exception {
+        Random random = new Random(7);
+        try (HnswEmbeddingStore store = open()) {
+            addRandom(store, random, COUNT);
+            assertThat(averageRecall(store, random)).isGreaterThanOrEqualTo(0.95);
+        }
+    }
+
+    @Test
+    void tombstonesDoNotCrowdOutLiveResults() throws Exception {
+        Random random = new Random(11);
+        try (HnswEmbeddingStore store = open()) {
+            List<String> ids = addRandom(store, random, COUNT);
+            // 低于重建阈值，墓碑留在图里
+            Set<String> removed = new HashSet<>(ids.subList(0, 700));
+            store.removeAll(removed);
+            assertThat(store.deadNodes()).isEqualTo(700);
+
+            for (int q = 0; q < 50; q++) {
+                List<EmbeddingMatch<TextSegment>> matches = store.search(request(randomVector(random), K)).matches();
+                assertThat(matches).hasSize(K);
+                assertThat(matches).noneMatch(match -> removed.contains(match.embeddingId()));
+            }
+            assertThat(averageRecall(store, random)).isGreaterThanOrEqualTo(0.95);
+        }
+    }
+
+    @Test
+    void graphIsRebuiltOnceTombstonesPassTheThreshold() throws Exception {
+        Random random = new Random(13);
+        try (HnswEmbeddingStore store = open()) {
+            List<String> ids = addRandom(store, random, COUNT);
+            store.removeAll(ids.subList(0, 2000));
+            assertThat(store.deadNodes()).isZero();
+            assertThat(store.size()).isEqualTo(COUNT - 2000);
+            assertThat(averageRecall(store, random)).isGreaterThanOrEqualTo(0.95);
+        }
+    }
+
+    @Test
+    void graphSurvivesCloseAndReopen() throws Exception {
+        Random random = new Random(17);
+        List<float[]> queries = new ArrayList<>();
+        List<List<String>> before = new ArrayList<>();
+        try (HnswEmbeddingStore store = open()) {
+            List<String> ids = addRandom(store, random, COUNT);
+            store.removeAll(ids.subList(0, 100));
+            for (int q = 0; q < 20; q++) {
+                float[] query = randomVector(random);
+                queries.add(query);
+                before.add(resultIds(store, query));
+            }
+        }
+        assertThat(dir.resolve(HnswEmbeddingStore.GRAPH_FILE)).exists();
+
+        try (HnswEmbeddingStore store = open()) {
+            // 加载后删除图文件，只在正常关闭时写回
+            assertThat(Files.exists(dir.resolve(HnswEmbeddingStore.GRAPH_FILE))).isFalse();
+            assertThat(store.size()).isEqualTo(COUNT - 100);
+            assertThat(store.deadNodes()).isEqualTo(100);
+            for (int q = 0; q < queries.size(); q++) {
+                assertThat(resultIds(store, queries.get(q))).isEqualTo(before.get(q));
+            }
+        }
+    }
+
+    private HnswEmbeddingStore open() throws Exception {
+        return HnswEmbeddingStore.open(MappedEmbeddingStore.open(dir), 16, 100, 64, 0);
+    }
+
+    private static List<String> addRandom(HnswEmbeddingStore store, Random random, int count) {
+        List<Embedding> embeddings = new ArrayList<>(count);
+        List<TextSegment> segments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            embeddings.add(Embedding.from(randomVector(random)));
+            segments.add(TextSegment.from("segment-" + i));
+        }
+        return store.addAll(embeddings, segments);
+    }
+
+    private static double averageRecall(HnswEmbeddingStore store, Random random) {
+        double total = 0;
+        int queries = 100;
+        for (int q = 0; q < queries; q++) {
+            total += store.recallAgainstExact(Embedding.from(randomVector(random)), K);
+        }
+        return total / queries;
+    }
+
+    private static List<String> resultIds(HnswEmbeddingStore store, float[] query) {
+        return store.search(request(query, K)).matches().stream().map(EmbeddingMatch::embeddingId).toList();
+    }
+
+    private static EmbeddingSearchRequest request(float[] query, int k) {
+        return EmbeddingSearchRequest.builder().queryEmbedding(Embedding.from(query)).maxResults(k).build();
+    }
+
+    private static float[] randomVector(Random random) {
+        float[] v = new float[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++) {
+            v[i] = (float) random.nextGaussian();
+        }
+        return v;
+    }
+}
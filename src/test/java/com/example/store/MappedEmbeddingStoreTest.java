@@ -0,0 +1,146 @@
+package com.example.store;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class MappedEmbeddingStoreTest {
+    private static final int DIMENSION = 16;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void writeCloseReopenRoundTrip() throws Exception {
+        Random random = new Random(3);
+        Map<String, float[]> vectors = new HashMap<>();
+        Map<String, TextSegment> expected = new HashMap<>();
+        try (MappedEmbeddingStore store = MappedEmbeddingStore.open(dir)) {
+            List<String> ids = addRandom(store, random, 500, vectors);
+            for (int i = 0; i < ids.size(); i++) {
+                expected.put(ids.get(i), segment(i));
+            }
+            store.removeAll(ids.subList(0, 50));
+            ids.subList(0, 50).forEach(expected::remove);
+        }
+
+        try (MappedEmbeddingStore store = MappedEmbeddingStore.open(dir)) {
+            assertThat(store.size()).isEqualTo(450);
+            Map<String, TextSegment> actual = new HashMap<>();
+            store.forEachSegment(actual::put);
+            assertThat(actual).isEqualTo(expected);
+            for (String id : expected.keySet()) {
+                assertThat(store.vector(store.slotOf(id))).isEqualTo(MappedEmbeddingStore.normalized(vectors.get(id)));
+                EmbeddingMatch<TextSegment> top = store.search(request(vectors.get(id))).matches().get(0);
+                assertThat(top.embeddingId()).isEqualTo(id);
+            }
+        }
+    }
+
+    @Test
+    void compactionOnOpenDropsTombstonesAndStaleFiles() throws Exception {
+        Random random = new Random(5);
+        Map<String, float[]> vectors = new HashMap<>();
+        List<String> ids;
+        try (MappedEmbeddingStore store = MappedEmbeddingStore.open(dir)) {
+            ids = addRandom(store, random, 3000, vectors);
+            store.removeAll(ids.subList(0, 2000));
+        }
+        // 模拟中断的压缩留下的半成品
+        Files.writeString(dir.resolve(MappedEmbeddingStore.vectorsFile(1)), "partial");
+        Files.createDirectories(dir.resolve("compact123"));
+
+        try (MappedEmbeddingStore store = MappedEmbeddingStore.open(dir)) {
+            assertThat(Files.readString(dir.resolve(MappedEmbeddingStore.CURRENT_FILE))).isEqualTo("1");
+            assertThat(dir.resolve(MappedEmbeddingStore.VECTORS_FILE)).doesNotExist();
+            assertThat(dir.resolve(MappedEmbeddingStore.SEGMENTS_FILE)).doesNotExist();
+            assertThat(dir.resolve("compact123")).doesNotExist();
+            assertThat(store.size()).isEqualTo(1000);
+            assertThat(store.slotCount()).isEqualTo(1000);
+            // 压缩时对已归一化的向量再归一化一次，允许末位误差
+            for (String id : ids.subList(2000, 3000)) {
+                assertThat(store.vector(store.slotOf(id)))
+                        .containsExactly(MappedEmbeddingStore.normalized(vectors.get(id)), within(1e-6f));
+            }
+        }
+
+        try (MappedEmbeddingStore store = MappedEmbeddingStore.open(dir)) {
+            assertThat(store.size()).isEqualTo(1000);
+        }
+    }
+
+    @Test
+    void bigEndianVersionOneFileIsMigrated() throws Exception {
+        Random random = new Random(9);
+        Map<String, float[]> vectors = new HashMap<>();
+        try (MappedEmbeddingStore store = MappedEmbeddingStore.open(dir)) {
+            addRandom(store, random, 100, vectors);
+        }
+        // 改写成版本 1 的格式：文件头版本号为 1，向量按大端存放
+        try (FileChannel ch = FileChannel.open(dir.resolve(MappedEmbeddingStore.VECTORS_FILE),
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer bytes = ByteBuffer.allocate((int) ch.size());
+            ch.read(bytes, 0);
+            ByteBuffer little = bytes.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            bytes.putInt(4, 1);
+            for (int p = 16; p + Float.BYTES <= bytes.limit(); p += Float.BYTES) {
+                bytes.putFloat(p, little.getFloat(p));
+            }
+            bytes.rewind();
+            ch.write(bytes, 0);
+        }
+
+        try (MappedEmbeddingStore store = MappedEmbeddingStore.open(dir)) {
+            for (Map.Entry<String, float[]> e : vectors.entrySet()) {
+                assertThat(store.vector(store.slotOf(e.getKey()))).isEqualTo(MappedEmbeddingStore.normalized(e.getValue()));
+            }
+        }
+        ByteBuffer header = ByteBuffer.wrap(Files.readAllBytes(dir.resolve(MappedEmbeddingStore.VECTORS_FILE)), 0, 16);
+        assertThat(header.getInt(4)).isEqualTo(2);
+    }
+
+    private static List<String> addRandom(MappedEmbeddingStore store, Random random, int count, Map<String, float[]> vectors) {
+        List<Embedding> embeddings = new ArrayList<>(count);
+        List<TextSegment> segments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            float[] v = new float[DIMENSION];
+            for (int j = 0; j < DIMENSION; j++) {
+                v[j] = (float) random.nextGaussian();
+            }
+            embeddings.add(Embedding.from(v));
+            segments.add(segment(i));
+        }
+        List<String> ids = store.addAll(embeddings, segments);
+        for (int i = 0; i < count; i++) {
+            vectors.put(ids.get(i), embeddings.get(i).vector());
+        }
+        return ids;
+    }
+
+    private static TextSegment segment(int i) {
+        return TextSegment.from("片段 " + i, Metadata.from("source", "doc-" + (i % 7) + ".txt"));
+    }
+
+    private static EmbeddingSearchRequest request(float[] query) {
+        return EmbeddingSearchRequest.builder().queryEmbedding(Embedding.from(query)).maxResults(1).build();
+    }
+}